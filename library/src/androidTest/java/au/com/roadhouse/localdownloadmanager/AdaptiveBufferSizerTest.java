@@ -0,0 +1,45 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+
+@RunWith(AndroidJUnit4.class)
+public class AdaptiveBufferSizerTest {
+
+    @Test
+    public void testGrowsOnFastLink() throws Exception {
+        AdaptiveBufferSizer bufferSizer = new AdaptiveBufferSizer(8 * 1024, 128 * 1024);
+        int initialSize = bufferSizer.getBufferSize();
+
+        //50 MB/s, each step at most doubles the size until the upper bound
+        assertEquals(initialSize * 2, bufferSizer.onSample(50 * 1024 * 1024, 1000));
+        for (int i = 0; i < 10; i++) {
+            bufferSizer.onSample(50 * 1024 * 1024, 1000);
+        }
+        assertEquals(128 * 1024, bufferSizer.getBufferSize());
+        assertEquals(50 * 1024 * 1024, bufferSizer.getThroughput());
+    }
+
+    @Test
+    public void testShrinksOnSlowLink() throws Exception {
+        AdaptiveBufferSizer bufferSizer = new AdaptiveBufferSizer(8 * 1024, 128 * 1024);
+
+        //50 KB/s
+        for (int i = 0; i < 10; i++) {
+            bufferSizer.onSample(50 * 1024, 1000);
+        }
+        assertEquals(8 * 1024, bufferSizer.getBufferSize());
+    }
+
+    @Test
+    public void testBoundsRoundedToPowerOfTwo() throws Exception {
+        AdaptiveBufferSizer bufferSizer = new AdaptiveBufferSizer(5000, 20000);
+        assertEquals(8192, bufferSizer.getMinBufferSize());
+        assertEquals(32768, bufferSizer.getMaxBufferSize());
+        assertEquals(32768, bufferSizer.getBufferSize());
+    }
+}
@@ -0,0 +1,71 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class BufferPoolTest {
+
+    @Test
+    public void testReleasedBufferIsReused() throws Exception {
+        BufferPool bufferPool = new BufferPool(64 * 1024);
+
+        ByteBuffer buffer = bufferPool.acquire(5000, false);
+        assertEquals(8192, buffer.capacity());
+        assertFalse(buffer.isDirect());
+        assertEquals(1, bufferPool.getOutstandingCount());
+        bufferPool.release(buffer);
+
+        assertSame(buffer, bufferPool.acquire(8192, false));
+        assertTrue(bufferPool.acquire(8192, true).isDirect());
+        assertEquals(1, bufferPool.getHitCount());
+        assertEquals(2, bufferPool.getMissCount());
+    }
+
+    @Test
+    public void testIdleBuffersEvictedForCeiling() throws Exception {
+        BufferPool bufferPool = new BufferPool(16 * 1024);
+
+        bufferPool.release(bufferPool.acquire(8192, false));
+        bufferPool.release(bufferPool.acquire(8192, true));
+        assertEquals(16 * 1024, bufferPool.getIdleBytes());
+
+        //A larger buffer only fits once the idle buffers are dropped
+        ByteBuffer buffer = bufferPool.acquire(16 * 1024, true);
+        assertEquals(0, bufferPool.getIdleBytes());
+        assertEquals(16 * 1024, bufferPool.getOutstandingBytes());
+        bufferPool.release(buffer);
+    }
+
+    @Test
+    public void testAcquireWaitsAtCeiling() throws Exception {
+        final BufferPool bufferPool = new BufferPool(8192);
+        final ByteBuffer buffer = bufferPool.acquire(8192, false);
+
+        Thread releaseThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                bufferPool.release(buffer);
+            }
+        };
+        releaseThread.start();
+
+        assertSame(buffer, bufferPool.acquire(8192, false));
+        assertEquals(1, bufferPool.getWaitCount());
+        releaseThread.join();
+    }
+}
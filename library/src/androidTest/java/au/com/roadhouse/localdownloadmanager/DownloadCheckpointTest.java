@@ -0,0 +1,117 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class DownloadCheckpointTest {
+
+    private File createDownloadFile() throws Exception {
+        File file = File.createTempFile("checkpoint", "tmp", InstrumentationRegistry.getTargetContext().getCacheDir());
+        DownloadCheckpoint.delete(file);
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = createDownloadFile();
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(file, 2, DownloadCheckpoint.DEFAULT_INTERVAL);
+        assertFalse(checkpoint.hasRecord());
+        assertTrue(checkpoint.isDue());
+        checkpoint.setStatus(DownloadItem.STATUS_INCOMPLETE);
+        checkpoint.setDownloadSize(2048);
+        checkpoint.setBytesDownloaded(700);
+        checkpoint.setSegmentBytesDownloaded(0, 500);
+        checkpoint.setSegmentBytesDownloaded(1, 200);
+        checkpoint.setValidator("\"etag\"");
+        checkpoint.write();
+        assertFalse(checkpoint.isDue());
+        checkpoint.close();
+
+        checkpoint = DownloadCheckpoint.open(file, 2, DownloadCheckpoint.DEFAULT_INTERVAL);
+        assertTrue(checkpoint.hasRecord());
+        assertEquals(DownloadItem.STATUS_INCOMPLETE, checkpoint.getStatus());
+        assertEquals(2048, checkpoint.getDownloadSize());
+        assertEquals(700, checkpoint.getBytesDownloaded());
+        assertEquals(500, checkpoint.getSegmentBytesDownloaded(0));
+        assertEquals(200, checkpoint.getSegmentBytesDownloaded(1));
+        assertEquals("\"etag\"", checkpoint.getValidator());
+        checkpoint.close();
+
+        //The record is updated in place, so the file never grows
+        long length = DownloadCheckpoint.getCheckpointFile(file).length();
+        checkpoint = DownloadCheckpoint.open(file, 2, 0);
+        for (int i = 0; i < 10; i++) {
+            checkpoint.setBytesDownloaded(i);
+            checkpoint.write();
+        }
+        checkpoint.close();
+        assertEquals(length, DownloadCheckpoint.getCheckpointFile(file).length());
+
+        assertTrue(DownloadCheckpoint.delete(file));
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void testTornWriteFallsBackToPreviousRecord() throws Exception {
+        File file = createDownloadFile();
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(file, 0, 0);
+        checkpoint.setBytesDownloaded(100);
+        checkpoint.write();
+        checkpoint.setBytesDownloaded(200);
+        checkpoint.setValidator(null);
+        checkpoint.write();
+        checkpoint.close();
+
+        //Corrupts the newest record, the second one written
+        File checkpointFile = DownloadCheckpoint.getCheckpointFile(file);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(checkpointFile, "rw");
+        randomAccessFile.seek(randomAccessFile.length() - 1);
+        int lastByte = randomAccessFile.read();
+        randomAccessFile.seek(randomAccessFile.length() - 1);
+        randomAccessFile.write(~lastByte);
+        randomAccessFile.close();
+
+        checkpoint = DownloadCheckpoint.open(file, 0, 0);
+        assertTrue(checkpoint.hasRecord());
+        assertEquals(100, checkpoint.getBytesDownloaded());
+        assertNull(checkpoint.getValidator());
+        checkpoint.close();
+
+        DownloadCheckpoint.delete(file);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void testSegmentCountChangeDiscardsRecord() throws Exception {
+        File file = createDownloadFile();
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.open(file, 4, 0);
+        checkpoint.setBytesDownloaded(100);
+        checkpoint.write();
+        checkpoint.close();
+
+        checkpoint = DownloadCheckpoint.open(file, 0, 0);
+        assertFalse(checkpoint.hasRecord());
+        assertEquals(0, checkpoint.getBytesDownloaded());
+        checkpoint.close();
+
+        DownloadCheckpoint.delete(file);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
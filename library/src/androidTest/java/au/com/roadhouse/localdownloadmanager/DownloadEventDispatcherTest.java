@@ -0,0 +1,101 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class DownloadEventDispatcherTest {
+
+    @Test
+    public void testDispatch() throws Exception {
+        DownloadEventDispatcher dispatcher = new DownloadEventDispatcher();
+        assertFalse(dispatcher.hasListeners());
+
+        final List<String> events = new ArrayList<>();
+        DownloadEventListener listener = new SimpleDownloadEventListener() {
+            @Override
+            public void onDownloadTaskQueued(DownloadTask downloadTask) {
+                events.add("queued " + downloadTask.getLabel());
+            }
+
+            @Override
+            public void onDownloadTaskProgress(String tag, long bytesDownloaded, long totalBytes, long bytesPerSecond) {
+                events.add("progress " + tag + " " + bytesDownloaded + "/" + totalBytes + " " + bytesPerSecond);
+            }
+        };
+        dispatcher.addListener(listener, null);
+        assertTrue(dispatcher.hasListeners());
+
+        DownloadTask downloadTask = new DownloadTask.Builder("Task")
+                .addDownloadUrl("http://example.com/1")
+                .build();
+        dispatcher.dispatchDownloadTaskQueued(downloadTask);
+        dispatcher.dispatchDownloadTaskProgress(downloadTask.getTag(), 100, 1000, 50);
+        dispatcher.dispatchDownloadTaskComplete(downloadTask);
+        assertEquals(2, events.size());
+        assertEquals("queued Task", events.get(0));
+        assertEquals("progress " + downloadTask.getTag() + " 100/1000 50", events.get(1));
+
+        dispatcher.removeListener(listener);
+        assertFalse(dispatcher.hasListeners());
+        dispatcher.dispatchDownloadTaskQueued(downloadTask);
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void testSubscriptions() throws Exception {
+        DownloadEventDispatcher dispatcher = new DownloadEventDispatcher();
+        final List<String> events = new ArrayList<>();
+        dispatcher.addListener(new SimpleDownloadEventListener() {
+            @Override
+            public void onDownloadTaskProgress(String tag, long bytesDownloaded, long totalBytes, long bytesPerSecond) {
+                events.add("progress " + tag);
+            }
+
+            @Override
+            public void onDownloadTaskComplete(DownloadTask downloadTask) {
+                events.add("complete");
+            }
+        }, null, DownloadEventDispatcher.EVENT_PROGRESS);
+        assertTrue(dispatcher.hasListeners(DownloadEventDispatcher.EVENT_PROGRESS));
+        assertFalse(dispatcher.hasListeners(DownloadEventDispatcher.EVENT_COMPLETE));
+
+        DownloadTask downloadTask = new DownloadTask.Builder("Task")
+                .addDownloadUrl("http://example.com/1")
+                .build();
+        dispatcher.dispatchDownloadTaskProgress(downloadTask.getTag(), 100, 1000, 0);
+        dispatcher.dispatchDownloadTaskComplete(downloadTask);
+        assertEquals(1, events.size());
+        assertEquals(2, dispatcher.getProducedCount());
+        assertEquals(1, dispatcher.getDeliveredCount());
+        assertEquals(1, dispatcher.getSkippedCount());
+
+        assertFalse(dispatcher.hasBroadcastReceivers());
+        int receiverEvents = DownloadEventDispatcher.EVENT_QUEUED | DownloadEventDispatcher.EVENT_COMPLETE;
+        dispatcher.addBroadcastReceiver(receiverEvents);
+        assertTrue(dispatcher.hasBroadcastReceivers());
+        dispatcher.addBroadcastReceiver(DownloadEventDispatcher.EVENT_COMPLETE);
+        assertTrue(dispatcher.hasBroadcastReceivers(DownloadEventDispatcher.EVENT_QUEUED));
+        assertFalse(dispatcher.hasBroadcastReceivers(DownloadEventDispatcher.EVENT_PROGRESS));
+        dispatcher.removeBroadcastReceiver(receiverEvents);
+        assertFalse(dispatcher.hasBroadcastReceivers(DownloadEventDispatcher.EVENT_QUEUED));
+        assertTrue(dispatcher.hasBroadcastReceivers(DownloadEventDispatcher.EVENT_COMPLETE));
+        dispatcher.removeBroadcastReceiver(DownloadEventDispatcher.EVENT_COMPLETE);
+        assertFalse(dispatcher.hasBroadcastReceivers(DownloadEventDispatcher.EVENT_COMPLETE));
+        assertFalse(dispatcher.hasBroadcastReceivers());
+
+        dispatcher.resetCounts();
+        assertEquals(0, dispatcher.getProducedCount());
+    }
+}
@@ -0,0 +1,65 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadSegment;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class DownloadTaskCodecTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        DownloadTask downloadTask = new DownloadTask.Builder("Label")
+                .addDownloadUrl("http://example.com/a.jpg")
+                .addDownloadUrl("http://example.com/b.jpg")
+                .setPriority(3)
+                .setMaxConcurrentItems(2)
+                .build();
+        downloadTask.setStatus(DownloadTask.DOWNLOADING);
+        DownloadItem downloadItem = downloadTask.getDownloadItems().get(0);
+        downloadItem.setFile(new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "a.jpg"));
+        downloadItem.setDownloadSize(2000);
+        downloadItem.setBytesDownloaded(500);
+        downloadItem.setSegments(Arrays.asList(new DownloadSegment(0, 999), new DownloadSegment(1000, 1999)));
+
+        DownloadTask decodedTask = DownloadTask.fromByteArray(downloadTask.toByteArray());
+        assertEquals(downloadTask, decodedTask);
+        assertEquals("Label", decodedTask.getLabel());
+        assertEquals(DownloadTask.DOWNLOADING, decodedTask.getStatus());
+        assertEquals(2, decodedTask.getMaxConcurrentItems());
+        assertEquals(2, decodedTask.getDownloadItems().size());
+
+        DownloadItem decodedItem = decodedTask.getDownloadItems().get(0);
+        assertEquals("http://example.com/a.jpg", decodedItem.getUrl());
+        assertEquals(downloadItem.getFile(), decodedItem.getFile());
+        assertEquals(500, decodedItem.getBytesDownloaded());
+        assertEquals(1000, decodedItem.getSegments().get(1).getStartOffset());
+        assertNull(decodedTask.getDownloadItems().get(1).getFile());
+        assertNull(decodedTask.getDownloadItems().get(1).getSegments());
+    }
+
+    @Test
+    public void testTruncatedData() {
+        byte[] data = new DownloadTask.Builder("Label").addDownloadUrl("http://example.com/a.jpg").build().toByteArray();
+        try {
+            DownloadTask.fromByteArray(Arrays.copyOf(data, data.length - 4));
+            fail("Truncated data should not decode");
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+}
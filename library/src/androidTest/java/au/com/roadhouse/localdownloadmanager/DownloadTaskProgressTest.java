@@ -0,0 +1,84 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class DownloadTaskProgressTest {
+
+    @Test
+    public void testRunningTotals() throws Exception {
+        DownloadTask downloadTask = new DownloadTask.Builder("Task")
+                .addDownloadUrl("http://example.com/1")
+                .addDownloadUrl("http://example.com/2")
+                .build();
+        List<DownloadItem> downloadItems = downloadTask.getDownloadItems();
+        downloadItems.get(0).setDownloadSize(1000);
+        downloadItems.get(0).setBytesDownloaded(400);
+        assertEquals(400, downloadTask.getBytesDownloaded());
+        assertFalse(downloadTask.isDownloadSizeKnown());
+        //The unknown item is estimated as the average of the known items
+        assertEquals(2000, downloadTask.getDownloadSize());
+
+        downloadItems.get(1).setBytesDownloaded(1500);
+        assertEquals(1900, downloadTask.getBytesDownloaded());
+        assertEquals(2500, downloadTask.getDownloadSize());
+
+        downloadItems.get(1).setDownloadSize(3000);
+        assertTrue(downloadTask.isDownloadSizeKnown());
+        assertEquals(4000, downloadTask.getDownloadSize());
+
+        downloadTask.addDownloadUrl("http://example.com/3");
+        assertFalse(downloadTask.isDownloadSizeKnown());
+        assertEquals(6000, downloadTask.getDownloadSize());
+
+        //Decoded tasks start their totals from the decoded items
+        DownloadTask decodedTask = DownloadTask.fromByteArray(downloadTask.toByteArray());
+        assertEquals(1900, decodedTask.getBytesDownloaded());
+        assertEquals(6000, decodedTask.getDownloadSize());
+    }
+
+    @Test
+    public void testConcurrentItemProgress() throws Exception {
+        DownloadTask.Builder builder = new DownloadTask.Builder("Task");
+        for (int i = 0; i < 8; i++) {
+            builder.addDownloadUrl("http://example.com/" + i);
+        }
+        final DownloadTask downloadTask = builder.build();
+        downloadTask.getBytesDownloaded();
+
+        List<Thread> threads = new ArrayList<>();
+        for (final DownloadItem downloadItem : downloadTask.getDownloadItems()) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 10000; i++) {
+                        downloadItem.setBytesDownloaded(i);
+                    }
+                    downloadItem.setDownloadSize(10000);
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80000, downloadTask.getBytesDownloaded());
+        assertEquals(80000, downloadTask.getDownloadSize());
+        assertTrue(downloadTask.isDownloadSizeKnown());
+    }
+}
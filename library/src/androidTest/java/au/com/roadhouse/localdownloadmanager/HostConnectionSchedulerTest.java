@@ -0,0 +1,92 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class HostConnectionSchedulerTest {
+
+    @Test
+    public void testRoundRobinAcrossHosts() throws Exception {
+        DownloadTask downloadTask = new DownloadTask.Builder("Test")
+                .addDownloadUrl("https://slow.example.com/1")
+                .addDownloadUrl("https://slow.example.com/2")
+                .addDownloadUrl("https://fast.example.com/1")
+                .addDownloadUrl("https://fast.example.com/2")
+                .build();
+        HostConnectionScheduler scheduler = new HostConnectionScheduler(1);
+        for (DownloadItem downloadItem : downloadTask.getDownloadItems()) {
+            scheduler.submit(downloadTask, downloadItem);
+        }
+        assertEquals(2, scheduler.getBacklogCount("slow.example.com"));
+
+        DownloadItem first = scheduler.take(downloadTask);
+        DownloadItem second = scheduler.take(downloadTask);
+        assertSame(downloadTask.getDownloadItems().get(0), first);
+        //The slow host is at its limit so the other host is served instead of waiting
+        assertSame(downloadTask.getDownloadItems().get(2), second);
+        assertEquals(1, scheduler.getInFlightCount("slow.example.com"));
+        assertEquals(1, scheduler.getBacklogCount("slow.example.com"));
+
+        scheduler.release(second);
+        assertSame(downloadTask.getDownloadItems().get(3), scheduler.take(downloadTask));
+    }
+
+    @Test
+    public void testHostLimitOverride() throws Exception {
+        HostConnectionScheduler scheduler = new HostConnectionScheduler(1);
+        scheduler.setMaxConnectionsForHost("cdn.example.com", 2);
+
+        assertTrue(scheduler.tryAcquire("https://cdn.example.com/a"));
+        assertTrue(scheduler.tryAcquire("https://cdn.example.com/b"));
+        assertFalse(scheduler.tryAcquire("https://cdn.example.com/c"));
+        assertEquals(2, scheduler.getInFlightCount("cdn.example.com"));
+
+        scheduler.release("https://cdn.example.com/a");
+        scheduler.release("https://cdn.example.com/b");
+        assertEquals(0, scheduler.getInFlightCount("cdn.example.com"));
+        assertTrue(scheduler.getHosts().isEmpty());
+    }
+
+    @Test
+    public void testCancelWakesWaitingThreads() throws Exception {
+        final DownloadTask downloadTask = new DownloadTask.Builder("Test")
+                .addDownloadUrl("https://example.com/1")
+                .addDownloadUrl("https://example.com/2")
+                .build();
+        final HostConnectionScheduler scheduler = new HostConnectionScheduler(1);
+        scheduler.submit(downloadTask, downloadTask.getDownloadItems().get(0));
+        scheduler.submit(downloadTask, downloadTask.getDownloadItems().get(1));
+        scheduler.take(downloadTask);
+
+        final DownloadItem[] result = new DownloadItem[]{downloadTask.getDownloadItems().get(0)};
+        Thread waitingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = scheduler.take(downloadTask);
+                } catch (InterruptedException e) {
+                    //Ignore
+                }
+            }
+        });
+        waitingThread.start();
+        Thread.sleep(100);
+        scheduler.cancel(downloadTask);
+        waitingThread.join(1000);
+
+        assertFalse(waitingThread.isAlive());
+        assertNull(result[0]);
+    }
+}
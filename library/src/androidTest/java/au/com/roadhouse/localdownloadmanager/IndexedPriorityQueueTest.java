@@ -0,0 +1,153 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+import au.com.roadhouse.localdownloadmanager.model.PriorityAgingComparator;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class IndexedPriorityQueueTest {
+
+    @Test
+    public void testOrderingWithRemovals() {
+        IndexedPriorityQueue<Integer> queue = new IndexedPriorityQueue<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            queue.add(random.nextInt(100000));
+        }
+        for (int i = 0; i < 100000; i += 3) {
+            queue.remove(i);
+        }
+
+        int previous = Integer.MIN_VALUE;
+        while (!queue.isEmpty()) {
+            int next = queue.poll();
+            assertTrue(next >= previous);
+            assertTrue(next % 3 != 0);
+            previous = next;
+        }
+    }
+
+    @Test
+    public void testFindAndUpdateByTag() {
+        IndexedPriorityQueue<DownloadTask> queue = new IndexedPriorityQueue<>();
+        DownloadTask first = new DownloadTask.Builder("First").setPriority(1).build();
+        DownloadTask second = new DownloadTask.Builder("Second").setPriority(2).build();
+        queue.add(first);
+        queue.add(second);
+        assertFalse(queue.add(new DownloadTask(first.getTag())));
+
+        DownloadTask found = queue.find(new DownloadTask(second.getTag()));
+        assertSame(second, found);
+        found.setPriority(0);
+        assertTrue(queue.update(found));
+        assertSame(second, queue.peek());
+
+        assertTrue(queue.remove(new DownloadTask(second.getTag())));
+        assertNull(queue.find(new DownloadTask(second.getTag())));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testFindFirst() {
+        IndexedPriorityQueue<Integer> queue = new IndexedPriorityQueue<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            queue.add(random.nextInt(100000));
+        }
+        int[] sorted = new int[queue.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = (Integer) queue.toArray()[i];
+        }
+        Arrays.sort(sorted);
+
+        //Skips the first few elements in order, as the service skips tasks already claimed
+        final Set<Integer> skipped = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            skipped.add(sorted[i]);
+        }
+        assertEquals(Integer.valueOf(sorted[10]), queue.findFirst(new PersistentQueue.Filter<Integer>() {
+            @Override
+            public boolean accept(Integer element) {
+                return !skipped.contains(element);
+            }
+        }));
+        assertNull(queue.findFirst(new PersistentQueue.Filter<Integer>() {
+            @Override
+            public boolean accept(Integer element) {
+                return false;
+            }
+        }));
+        assertEquals(sorted.length, queue.size());
+    }
+
+    @Test
+    public void testUpdateInPlace() {
+        IndexedPriorityQueue<DownloadTask> queue = new IndexedPriorityQueue<>();
+        DownloadTask first = new DownloadTask.Builder("First").setPriority(1).build();
+        DownloadTask second = new DownloadTask.Builder("Second").setPriority(2).build();
+        queue.add(first);
+        queue.add(second);
+
+        DownloadTask updated = queue.update(new DownloadTask(second.getTag()), new PersistentQueue.ElementChange<DownloadTask>() {
+            @Override
+            public void apply(DownloadTask element) {
+                element.setPriority(0);
+            }
+        });
+        assertSame(second, updated);
+        assertSame(second, queue.peek());
+        assertNull(queue.update(new DownloadTask("Missing"), new PersistentQueue.ElementChange<DownloadTask>() {
+            @Override
+            public void apply(DownloadTask element) {
+                element.setPriority(0);
+            }
+        }));
+    }
+
+    @Test
+    public void testFifoWithinPriority() {
+        IndexedPriorityQueue<DownloadTask> queue = new IndexedPriorityQueue<>();
+        for (int i = 0; i < 20; i++) {
+            DownloadTask downloadTask = new DownloadTask.Builder("Task" + i).setPriority(i % 2).build();
+            downloadTask.setEnqueued(i, 0);
+            queue.add(downloadTask);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            DownloadTask downloadTask = queue.poll();
+            assertEquals(i < 10 ? 0 : 1, downloadTask.getPriority());
+            assertEquals(i < 10 ? i * 2 : (i - 10) * 2 + 1, downloadTask.getSequenceNumber());
+        }
+    }
+
+    @Test
+    public void testPriorityAging() {
+        IndexedPriorityQueue<DownloadTask> queue = new IndexedPriorityQueue<>();
+        DownloadTask oldTask = new DownloadTask.Builder("Old").setPriority(5).build();
+        oldTask.setEnqueued(0, 0);
+        DownloadTask newTask = new DownloadTask.Builder("New").setPriority(0).build();
+        newTask.setEnqueued(1, 10000);
+        queue.add(oldTask);
+        queue.add(newTask);
+        assertSame(newTask, queue.peek());
+
+        //Waiting 10 seconds at one level per second outweighs 5 priority levels
+        queue.setComparator(new PriorityAgingComparator(1000));
+        assertSame(oldTask, queue.peek());
+    }
+}
@@ -0,0 +1,50 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class KeepAliveDownloadStackTest {
+
+    private static final String TEST_URL = "https://upload.wikimedia.org/wikipedia/commons/0/06/Google-apps-training-logo.png";
+
+    @Test
+    public void testSizeRequestConnectionReused() throws Exception {
+        ConnectionReuseTracker connectionReuseTracker = new ConnectionReuseTracker();
+        KeepAliveDownloadStack downloadStack = new KeepAliveDownloadStack(connectionReuseTracker);
+
+        long fileSize = downloadStack.requestFileSize(TEST_URL);
+        assertTrue(fileSize > 0);
+        assertEquals(1, connectionReuseTracker.getEstimatedNewConnectionCount());
+        assertEquals(1, connectionReuseTracker.getIdleConnectionCount(TEST_URL));
+
+        File file = downloadStack.downloadFile(InstrumentationRegistry.getTargetContext().getCacheDir(), TEST_URL, null);
+        assertEquals(fileSize, file.length());
+        //The body fetch reused the connection of the size request, and was drained for the next request
+        assertEquals(1, connectionReuseTracker.getEstimatedReuseCount());
+        assertEquals(1, connectionReuseTracker.getIdleConnectionCount(TEST_URL));
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        ConnectionReuseTracker connectionReuseTracker = new ConnectionReuseTracker(1, 0);
+        KeepAliveDownloadStack downloadStack = new KeepAliveDownloadStack(connectionReuseTracker);
+
+        downloadStack.requestFileSize(TEST_URL);
+        Thread.sleep(10);
+        connectionReuseTracker.evictIdleConnections();
+        assertEquals(0, connectionReuseTracker.getIdleConnectionCount(TEST_URL));
+        assertEquals(1, connectionReuseTracker.getEvictionCount());
+    }
+}
@@ -1,89 +1,140 @@
 package au.com.roadhouse.localdownloadmanager;
 
+import android.content.Context;
 import android.support.test.InstrumentationRegistry;
-import android.support.test.runner.AndroidJUnit4;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
-@RunWith(AndroidJUnit4.class)
+@RunWith(Parameterized.class)
 public class PersistentQueueTest {
 
+    private static final String STORE_FILE = "file";
+    private static final String STORE_SQLITE = "sqlite";
+    private static final String DATABASE_NAME = "test_queue.db";
+
+    private final String mStoreType;
+    private final List<PersistentQueue<DownloadTask>> mQueues = new ArrayList<>();
+    private final List<QueueStore<DownloadTask>> mStores = new ArrayList<>();
+    private Context mContext;
+    private File mQueueFile;
+
+    /**
+     * The tests which don't depend on how the queue is stored are run against each store
+     */
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> getStoreTypes() {
+        return Arrays.asList(new Object[][]{{STORE_FILE}, {STORE_SQLITE}});
+    }
+
+    public PersistentQueueTest(String storeType) {
+        mStoreType = storeType;
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mQueueFile = new File(mContext.getCacheDir(), "test.que");
+        deleteStore();
+    }
+
+    @After
+    public void tearDown() {
+        deleteStore();
+    }
+
     @Test
-    public void testBlockingPersistence() throws Exception{
-        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
-        queueFile.delete();
-        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
+    public void testBlockingPersistence() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
         persistentQueue.setBlocking(true);
-        persistentQueue.add("test");
-        persistentQueue = new PersistentQueue<>(queueFile);
+        DownloadTask task = new DownloadTask.Builder("Test").build();
+        persistentQueue.add(task);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 1);
-        assertEquals(persistentQueue.peek(), "test");
-        queueFile.delete();
+        assertEquals(persistentQueue.peek().getTag(), task.getTag());
     }
 
     @Test
-    public void testNonBlockingPersistence() throws Exception{
-        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
-        queueFile.delete();
-        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
+    public void testNonBlockingPersistence() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
         persistentQueue.setBlocking(false);
-        persistentQueue.add("test");
+        DownloadTask task = new DownloadTask.Builder("Test").build();
+        persistentQueue.add(task);
         persistentQueue.flushUpdates();
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 1);
-        assertEquals(persistentQueue.peek(), "test");
-        queueFile.delete();
+        assertEquals(persistentQueue.peek().getTag(), task.getTag());
     }
 
     @Test
     public void testItemRemoval() {
-        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
-        queueFile.delete();
-        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
-        persistentQueue.add("Hello");
-        persistentQueue.add("You");
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        DownloadTask hello = new DownloadTask.Builder("Hello").setPriority(1).build();
+        persistentQueue.add(hello);
+        persistentQueue.add(new DownloadTask.Builder("You").setPriority(2).build());
         assertEquals(persistentQueue.size(), 2);
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 2);
-        persistentQueue.remove("Hello");
+        persistentQueue.remove(hello);
         assertEquals(persistentQueue.size(), 1);
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 1);
-
+        assertFalse(persistentQueue.contains(hello));
     }
 
     @Test
     public void testRemove() {
-        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
-        queueFile.delete();
-        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
-        persistentQueue.add("Hello");
-        persistentQueue.add("You");
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        DownloadTask hello = new DownloadTask.Builder("Hello").setPriority(1).build();
+        DownloadTask you = new DownloadTask.Builder("You").setPriority(2).build();
+        persistentQueue.add(hello);
+        persistentQueue.add(you);
         assertEquals(persistentQueue.size(), 2);
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 2);
-       ;
-        assertEquals(persistentQueue.remove(), "Hello");
+        assertEquals(persistentQueue.remove().getTag(), hello.getTag());
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 1);
-        assertEquals(persistentQueue.remove(), "You");
+        assertEquals(persistentQueue.remove().getTag(), you.getTag());
+        persistentQueue.flushUpdates();
 
-        queueFile.delete();
-        persistentQueue = new PersistentQueue<>(queueFile);
+        deleteStore();
+        persistentQueue = openQueue();
         //Sanity check
         assertEquals(persistentQueue.size(), 0);
         try{
@@ -94,53 +145,49 @@ public class PersistentQueueTest {
 
         //Shouldn't get here
         assertTrue(false);
-
     }
 
     @Test
     public void testPeek() {
-        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
-        queueFile.delete();
-        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
-        persistentQueue.add("Hello");
-        persistentQueue.add("You");
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        DownloadTask hello = new DownloadTask.Builder("Hello").setPriority(1).build();
+        persistentQueue.add(hello);
+        persistentQueue.add(new DownloadTask.Builder("You").setPriority(2).build());
         assertEquals(persistentQueue.size(), 2);
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 2);
 
-        assertEquals(persistentQueue.peek(), "Hello");
+        assertEquals(persistentQueue.peek().getTag(), hello.getTag());
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 2);
-        assertEquals(persistentQueue.peek(), "Hello");
-
+        assertEquals(persistentQueue.peek().getTag(), hello.getTag());
     }
 
     @Test
     public void testElement() {
-        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
-        queueFile.delete();
-        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
-        persistentQueue.add("Hello");
-        persistentQueue.add("You");
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        DownloadTask hello = new DownloadTask.Builder("Hello").setPriority(1).build();
+        persistentQueue.add(hello);
+        persistentQueue.add(new DownloadTask.Builder("You").setPriority(2).build());
         assertEquals(persistentQueue.size(), 2);
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 2);
 
-        assertEquals(persistentQueue.element(), "Hello");
+        assertEquals(persistentQueue.element().getTag(), hello.getTag());
         persistentQueue.flushUpdates();
 
-        persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue = openQueue();
         assertEquals(persistentQueue.size(), 2);
-        assertEquals(persistentQueue.element(), "Hello");
+        assertEquals(persistentQueue.element().getTag(), hello.getTag());
 
-        queueFile.delete();
-        persistentQueue = new PersistentQueue<>(queueFile);
+        deleteStore();
+        persistentQueue = openQueue();
         //Sanity check
         assertEquals(persistentQueue.size(), 0);
         try{
@@ -155,22 +202,505 @@ public class PersistentQueueTest {
 
     @Test
     public void testClear() {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        persistentQueue.add(new DownloadTask.Builder("Hello").setPriority(1).build());
+        persistentQueue.add(new DownloadTask.Builder("You").setPriority(2).build());
+        assertEquals(persistentQueue.size(), 2);
+        persistentQueue.flushUpdates();
+
+        persistentQueue = openQueue();
+        assertEquals(persistentQueue.size(), 2);
+        persistentQueue.clear();
+        assertEquals(persistentQueue.size(), 0);
+        persistentQueue.flushUpdates();
+
+        persistentQueue = openQueue();
+        assertEquals(persistentQueue.size(), 0);
+    }
+
+    @Test
+    public void testJournalCompaction() throws Exception {
+        assumeTrue(isFileStore());
+        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
+        File journalFile = new File(queueFile.getPath() + ".log");
+        queueFile.delete();
+        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue.setCompactionThreshold(1024);
+        for (int i = 0; i < 100; i++) {
+            persistentQueue.add("Item" + i);
+            if (i % 2 == 0) {
+                persistentQueue.remove("Item" + i);
+            }
+        }
+        persistentQueue.flushUpdates();
+
+        //The journal is folded into the snapshot once it passes the threshold
+        assertTrue(journalFile.length() < 2048);
+
+        persistentQueue = new PersistentQueue<>(queueFile);
+        assertEquals(50, persistentQueue.size());
+        assertTrue(persistentQueue.contains("Item99"));
+        assertFalse(persistentQueue.contains("Item98"));
+        queueFile.delete();
+    }
+
+    @Test
+    public void testTornJournalRecord() throws Exception {
+        assumeTrue(isFileStore());
         File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
+        File journalFile = new File(queueFile.getPath() + ".log");
         queueFile.delete();
         PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
         persistentQueue.add("Hello");
         persistentQueue.add("You");
-        assertEquals(persistentQueue.size(), 2);
         persistentQueue.flushUpdates();
 
+        //Simulate a crash part way through appending a record
+        FileOutputStream fileOutputStream = new FileOutputStream(journalFile, true);
+        fileOutputStream.write(new byte[]{1, 0, 0, 0, 50, 1, 2, 3});
+        fileOutputStream.close();
+
         persistentQueue = new PersistentQueue<>(queueFile);
-        assertEquals(persistentQueue.size(), 2);
-        persistentQueue.clear();
-        assertEquals(persistentQueue.size(), 0);
+        assertEquals(2, persistentQueue.size());
+        persistentQueue.add("Again");
         persistentQueue.flushUpdates();
 
         persistentQueue = new PersistentQueue<>(queueFile);
-        assertEquals(persistentQueue.size(), 0);
+        assertEquals(3, persistentQueue.size());
+        queueFile.delete();
+    }
+
+    @Test
+    public void testJournalRemoveByKey() throws Exception {
+        assumeTrue(isFileStore());
+        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
+        File journalFile = new File(queueFile.getPath() + ".log");
+        queueFile.delete();
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(queueFile, DownloadTask.CODEC);
+        persistentQueue.setBlocking(true);
+        DownloadTask.Builder builder = new DownloadTask.Builder("Large");
+        for (int i = 0; i < 50; i++) {
+            builder.addDownloadUrl("http://example.com/" + i);
+        }
+        DownloadTask large = builder.build();
+        DownloadTask small = new DownloadTask.Builder("Small").addDownloadUrl("http://example.com/small").build();
+        persistentQueue.add(large);
+        persistentQueue.add(small);
+        long journalLength = journalFile.length();
+
+        //Only the key of the removed task is logged, not its download items
+        persistentQueue.remove(large);
+        assertTrue(journalFile.length() - journalLength < DownloadTask.CODEC.encode(large).length);
+
+        persistentQueue = new PersistentQueue<>(queueFile, DownloadTask.CODEC);
+        assertEquals(1, persistentQueue.size());
+        assertFalse(persistentQueue.contains(large));
+        assertEquals(small.getTag(), persistentQueue.peek().getTag());
+        queueFile.delete();
+    }
 
+    @Test
+    public void testGroupCommit() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        persistentQueue.setMaxCommitDelay(10000);
+        persistentQueue.setMaxBatchSize(100);
+        for (int i = 0; i < 10; i++) {
+            persistentQueue.add(new DownloadTask.Builder("Item" + i).build());
+        }
+        persistentQueue.flushUpdates();
+        assertEquals(1, persistentQueue.getCommitCount());
+
+        persistentQueue = openQueue();
+        assertEquals(10, persistentQueue.size());
+    }
+
+    @Test
+    public void testCorruptSnapshotRecovery() throws Exception {
+        assumeTrue(isFileStore());
+        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
+        File previousFile = new File(queueFile.getPath() + ".prev");
+        queueFile.delete();
+        previousFile.delete();
+        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue.add("Hello");
+        persistentQueue.flushUpdates();
+
+        //Keep a good copy as the previous generation, then damage the current snapshot
+        byte[] snapshot = readFile(queueFile);
+        FileOutputStream fileOutputStream = new FileOutputStream(previousFile);
+        fileOutputStream.write(snapshot);
+        fileOutputStream.close();
+        snapshot[snapshot.length - 1] ^= 0xff;
+        fileOutputStream = new FileOutputStream(queueFile);
+        fileOutputStream.write(snapshot);
+        fileOutputStream.close();
+
+        persistentQueue = new PersistentQueue<>(queueFile);
+        assertEquals(1, persistentQueue.size());
+        assertEquals("Hello", persistentQueue.peek());
+        assertTrue(persistentQueue.getRecoveryTime() >= 0);
+        queueFile.delete();
+        previousFile.delete();
+    }
+
+    @Test
+    public void testInterruptedSnapshotReplace() throws Exception {
+        assumeTrue(isFileStore());
+        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
+        File previousFile = new File(queueFile.getPath() + ".prev");
+        queueFile.delete();
+        previousFile.delete();
+        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
+        persistentQueue.add("Hello");
+        persistentQueue.flushUpdates();
+
+        //Simulate a crash after the current snapshot became the previous one, but before the new one was moved into place
+        assertTrue(queueFile.renameTo(previousFile));
+
+        persistentQueue = new PersistentQueue<>(queueFile);
+        assertEquals(1, persistentQueue.size());
+        assertEquals("Hello", persistentQueue.peek());
+        queueFile.delete();
+        previousFile.delete();
+    }
+
+    @Test
+    public void testLegacyQueueMigration() throws Exception {
+        assumeTrue(isFileStore());
+        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
+        queueFile.delete();
+        new File(queueFile.getPath() + ".log").delete();
+
+        //Older versions stored the queue as a single serialized object
+        PriorityBlockingQueue<String> legacyQueue = new PriorityBlockingQueue<>();
+        legacyQueue.add("Hello");
+        legacyQueue.add("You");
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(queueFile));
+        objectOutputStream.writeObject(legacyQueue);
+        objectOutputStream.close();
+
+        PersistentQueue<String> persistentQueue = new PersistentQueue<>(queueFile);
+        assertEquals(2, persistentQueue.size());
+        persistentQueue.add("Again");
+        persistentQueue.flushUpdates();
+
+        persistentQueue = new PersistentQueue<>(queueFile);
+        assertEquals(3, persistentQueue.size());
+        assertTrue(persistentQueue.contains("Hello"));
+        queueFile.delete();
+    }
+
+    @Test
+    public void testUpdatePersistence() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        DownloadTask first = new DownloadTask.Builder("First").setPriority(1).build();
+        DownloadTask second = new DownloadTask.Builder("Second").setPriority(2).build();
+        persistentQueue.add(first);
+        persistentQueue.add(second);
+
+        DownloadTask found = persistentQueue.find(new DownloadTask(second.getTag()));
+        found.setPriority(0);
+        persistentQueue.update(found);
+        persistentQueue.flushUpdates();
+
+        persistentQueue = openQueue();
+        assertEquals(2, persistentQueue.size());
+        assertEquals(second.getTag(), persistentQueue.peek().getTag());
+        assertEquals(0, persistentQueue.peek().getPriority());
+    }
+
+    @Test
+    public void testUpdateInPlace() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        DownloadTask first = new DownloadTask.Builder("First").setPriority(1).build();
+        DownloadTask second = new DownloadTask.Builder("Second").setPriority(2).build();
+        persistentQueue.add(first);
+        persistentQueue.add(second);
+        persistentQueue.flushUpdates();
+
+        persistentQueue = openQueue();
+        assertTrue(persistentQueue.update(new DownloadTask(second.getTag()), new PersistentQueue.ElementChange<DownloadTask>() {
+            @Override
+            public void apply(DownloadTask element) {
+                element.setPriority(0);
+            }
+        }));
+        assertEquals(second.getTag(), persistentQueue.findFirst(new PersistentQueue.Filter<DownloadTask>() {
+            @Override
+            public boolean accept(DownloadTask element) {
+                return true;
+            }
+        }).getTag());
+        persistentQueue.flushUpdates();
+
+        persistentQueue = openQueue();
+        assertEquals(2, persistentQueue.size());
+        assertEquals(second.getTag(), persistentQueue.peek().getTag());
+        assertEquals(0, persistentQueue.peek().getPriority());
+    }
+
+    @Test
+    public void testUpdatePart() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        DownloadTask task = new DownloadTask.Builder("Test").addDownloadUrl("http://example.com/1")
+                .addDownloadUrl("http://example.com/2").build();
+        persistentQueue.add(task);
+        persistentQueue.flushUpdates();
+
+        persistentQueue = openQueue();
+        DownloadTask found = persistentQueue.find(new DownloadTask(task.getTag()));
+        found.setStatus(DownloadTask.DOWNLOADING);
+        assertTrue(persistentQueue.updatePart(found, DownloadTask.PART_TASK));
+        found.getDownloadItems().get(1).setStatus(DownloadItem.STATUS_COMPLETE);
+        assertTrue(persistentQueue.updatePart(found, 1));
+        assertFalse(persistentQueue.updatePart(new DownloadTask("Missing"), DownloadTask.PART_TASK));
+        persistentQueue.flushUpdates();
+
+        persistentQueue = openQueue();
+        found = persistentQueue.find(new DownloadTask(task.getTag()));
+        assertEquals(DownloadTask.DOWNLOADING, found.getStatus());
+        assertEquals(2, found.getDownloadItems().size());
+        assertEquals(DownloadItem.STATUS_WAITING, found.getDownloadItems().get(0).getStatus());
+        assertEquals(DownloadItem.STATUS_COMPLETE, found.getDownloadItems().get(1).getStatus());
+        assertEquals("http://example.com/2", found.getDownloadItems().get(1).getUrl());
+    }
+
+    @Test
+    public void testFlushFuture() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        persistentQueue.setMaxCommitDelay(10000);
+        persistentQueue.add(new DownloadTask.Builder("Hello").build());
+        persistentQueue.add(new DownloadTask.Builder("You").build());
+        assertEquals(2, persistentQueue.getWriteGeneration());
+        assertTrue(persistentQueue.getDurableGeneration() < 2);
+
+        Future<Long> flush = persistentQueue.flush();
+        assertEquals(Long.valueOf(2), flush.get(5, TimeUnit.SECONDS));
+        assertTrue(flush.isDone());
+        assertEquals(2, persistentQueue.getDurableGeneration());
+
+        persistentQueue = openQueue();
+        assertEquals(2, persistentQueue.size());
+    }
+
+    @Test
+    public void testFailedCommitRetried() throws Exception {
+        FailingQueueStore<DownloadTask> store = new FailingQueueStore<>(openStore());
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(store);
+        mQueues.add(persistentQueue);
+        persistentQueue.setMaxCommitDelay(10000);
+        persistentQueue.add(new DownloadTask.Builder("Hello").build());
+        persistentQueue.flushUpdates();
+
+        store.setFailing(true);
+        DownloadTask you = new DownloadTask.Builder("You").build();
+        persistentQueue.add(you);
+        Future<Long> flush = persistentQueue.flush();
+        try {
+            flush.get(5, TimeUnit.SECONDS);
+            assertFalse(true);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(1, persistentQueue.getDurableGeneration());
+
+        //The change is kept and written by the next commit
+        store.setFailing(false);
+        persistentQueue.flushUpdates();
+        assertEquals(2, persistentQueue.getDurableGeneration());
+
+        persistentQueue = openQueue();
+        assertEquals(2, persistentQueue.size());
+        assertTrue(persistentQueue.contains(you));
+    }
+
+    @Test
+    public void testBatchMutations() throws Exception {
+        PersistentQueue<DownloadTask> persistentQueue = openQueue();
+        persistentQueue.setBlocking(true);
+        final DownloadTask a = new DownloadTask.Builder("A").build();
+        final DownloadTask b = new DownloadTask.Builder("B").build();
+        final DownloadTask c = new DownloadTask.Builder("C").build();
+        final DownloadTask d = new DownloadTask.Builder("D").build();
+        final DownloadTask e = new DownloadTask.Builder("E").build();
+        final DownloadTask f = new DownloadTask.Builder("F").build();
+        persistentQueue.addAll(Arrays.asList(a, b, c, d, e));
+        assertEquals(1, persistentQueue.getCommitCount());
+
+        persistentQueue.removeAll(Arrays.asList(a, b));
+        assertEquals(2, persistentQueue.getCommitCount());
+
+        persistentQueue.mutate(new PersistentQueue.Mutation<DownloadTask>() {
+            @Override
+            public void apply(PersistentQueue<DownloadTask> queue) {
+                queue.add(f);
+                queue.remove(c);
+                queue.retainAll(Arrays.asList(d, f));
+            }
+        });
+        assertEquals(3, persistentQueue.getCommitCount());
+
+        persistentQueue = openQueue();
+        assertEquals(2, persistentQueue.size());
+        assertTrue(persistentQueue.contains(d));
+        assertTrue(persistentQueue.contains(f));
+    }
+
+    @Test
+    public void testLazyHydration() throws Exception {
+        assumeTrue(isFileStore());
+        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "test.que");
+        queueFile.delete();
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(queueFile, DownloadTask.CODEC);
+        persistentQueue.setBlocking(true);
+        persistentQueue.setCompactionThreshold(0);
+        DownloadTask first = new DownloadTask.Builder("First").setPriority(1).addDownloadUrl("http://example.com/1").build();
+        DownloadTask second = new DownloadTask.Builder("Second").setPriority(2).addDownloadUrl("http://example.com/2").build();
+        DownloadTask third = new DownloadTask.Builder("Third").setPriority(3).addDownloadUrl("http://example.com/3").build();
+        persistentQueue.add(first);
+        persistentQueue.add(second);
+        persistentQueue.add(third);
+        //The journal outgrows the snapshot, which moves every task into a new snapshot
+        for (int i = 0; i < 20; i++) {
+            persistentQueue.update(first);
+        }
+
+        persistentQueue = new PersistentQueue<>(queueFile, DownloadTask.CODEC);
+        persistentQueue.setBlocking(true);
+        persistentQueue.setCompactionThreshold(0);
+        assertEquals(3, persistentQueue.size());
+        for (DownloadTask indexedTask : persistentQueue.indexSnapshot()) {
+            if (indexedTask.equals(second)) {
+                assertTrue(indexedTask.getDownloadItems().isEmpty());
+                assertEquals(2, indexedTask.getPriority());
+            }
+        }
+        assertEquals(1, persistentQueue.find(new DownloadTask(second.getTag())).getDownloadItems().size());
+
+        //Tasks which haven't been read are copied into the next snapshot
+        for (int i = 0; i < 20; i++) {
+            persistentQueue.update(first);
+        }
+        persistentQueue = new PersistentQueue<>(queueFile, DownloadTask.CODEC);
+        assertEquals(first.getTag(), persistentQueue.poll().getTag());
+        assertEquals(second.getTag(), persistentQueue.poll().getTag());
+        DownloadTask polled = persistentQueue.poll();
+        assertEquals(third.getTag(), polled.getTag());
+        assertEquals("http://example.com/3", polled.getDownloadItems().get(0).getUrl());
+        queueFile.delete();
+    }
+
+    private boolean isFileStore() {
+        return STORE_FILE.equals(mStoreType);
+    }
+
+    private QueueStore<DownloadTask> openStore() {
+        QueueStore<DownloadTask> store;
+        if (isFileStore()) {
+            store = new FileQueueStore<>(mQueueFile, DownloadTask.CODEC);
+        } else {
+            store = new SqliteDownloadTaskStore(mContext, DATABASE_NAME);
+        }
+        mStores.add(store);
+        return store;
+    }
+
+    private PersistentQueue<DownloadTask> openQueue() {
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(openStore());
+        mQueues.add(persistentQueue);
+        return persistentQueue;
+    }
+
+    /**
+     * Closes the stores opened by the test once their queues have been flushed, and deletes what they stored
+     */
+    private void deleteStore() {
+        for (PersistentQueue<DownloadTask> persistentQueue : mQueues) {
+            persistentQueue.flushUpdates();
+        }
+        mQueues.clear();
+        for (QueueStore<DownloadTask> store : mStores) {
+            store.close();
+        }
+        mStores.clear();
+
+        mQueueFile.delete();
+        new File(mQueueFile.getPath() + ".log").delete();
+        new File(mQueueFile.getPath() + ".prev").delete();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * A store which can be made to fail every write, commit and rewrite
+     */
+    private static class FailingQueueStore<E> implements QueueStore<E> {
+        private final QueueStore<E> mStore;
+        private volatile boolean mIsFailing;
+
+        FailingQueueStore(QueueStore<E> store) {
+            mStore = store;
+        }
+
+        void setFailing(boolean isFailing) {
+            mIsFailing = isFailing;
+        }
+
+        @Override
+        public boolean load(Queue<E> queue, Collection<E> unhydrated) throws IOException {
+            return mStore.load(queue, unhydrated);
+        }
+
+        @Override
+        public E hydrate(E element) throws IOException {
+            return mStore.hydrate(element);
+        }
+
+        @Override
+        public void write(byte type, E element) throws IOException {
+            checkFailing();
+            mStore.write(type, element);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            checkFailing();
+            mStore.commit();
+        }
+
+        @Override
+        public boolean isRewriteDue() {
+            return mStore.isRewriteDue();
+        }
+
+        @Override
+        public void rewrite(List<E> elements, Set<E> unhydrated) throws IOException {
+            checkFailing();
+            mStore.rewrite(elements, unhydrated);
+        }
+
+        @Override
+        public void close() {
+            mStore.close();
+        }
+
+        private void checkFailing() throws IOException {
+            if (mIsFailing) {
+                throw new IOException("Store is failing");
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                offset += fileInputStream.read(data, offset, data.length - offset);
+            }
+            return data;
+        } finally {
+            fileInputStream.close();
+        }
     }
 }
@@ -0,0 +1,110 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Compares the file and SQLite queue stores at different queue sizes. Results are logged with the
+ * tag QueueStoreBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class QueueStoreBenchmark {
+
+    private static final String TAG = "QueueStoreBenchmark";
+    private static final int[] QUEUE_SIZES = {1000, 10000, 100000};
+    private static final int UPDATE_COUNT = 1000;
+    private static final String DATABASE_NAME = "benchmark_queue.db";
+
+    @Test
+    public void benchmarkFileStore() throws Exception {
+        File queueFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "benchmark.que");
+        for (int queueSize : QUEUE_SIZES) {
+            deleteQueueFiles(queueFile);
+            benchmark("file", queueSize, new FileQueueStore<>(queueFile, DownloadTask.CODEC),
+                    new FileQueueStore<>(queueFile, DownloadTask.CODEC));
+        }
+        deleteQueueFiles(queueFile);
+    }
+
+    @Test
+    public void benchmarkSqliteStore() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        for (int queueSize : QUEUE_SIZES) {
+            context.deleteDatabase(DATABASE_NAME);
+            benchmark("sqlite", queueSize, new SqliteDownloadTaskStore(context, DATABASE_NAME),
+                    new SqliteDownloadTaskStore(context, DATABASE_NAME));
+        }
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * Fills a queue, opens it again, and changes the priority of some of its tasks
+     * @param writeStore The store the queue is filled through
+     * @param readStore A second store over the same storage, which the queue is opened again from
+     */
+    private void benchmark(String storeName, int queueSize, QueueStore<DownloadTask> writeStore,
+                           QueueStore<DownloadTask> readStore) throws Exception {
+        List<DownloadTask> downloadTasks = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < queueSize; i++) {
+            DownloadTask downloadTask = new DownloadTask.Builder("Task " + i)
+                    .setPriority(random.nextInt(10))
+                    .addDownloadUrl("http://example.com/" + i + "/first")
+                    .addDownloadUrl("http://example.com/" + i + "/second")
+                    .build();
+            downloadTask.setEnqueued(i, System.currentTimeMillis());
+            downloadTasks.add(downloadTask);
+        }
+
+        long startTime = System.nanoTime();
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(writeStore);
+        persistentQueue.addAll(downloadTasks);
+        persistentQueue.flushUpdates();
+        long fillTime = System.nanoTime() - startTime;
+        writeStore.close();
+
+        startTime = System.nanoTime();
+        persistentQueue = new PersistentQueue<>(readStore);
+        persistentQueue.awaitLoaded();
+        long loadTime = System.nanoTime() - startTime;
+        startTime = System.nanoTime();
+        persistentQueue.peek();
+        long firstTaskTime = System.nanoTime() - startTime;
+        assertEquals(queueSize, persistentQueue.size());
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < UPDATE_COUNT; i++) {
+            DownloadTask downloadTask = persistentQueue.find(downloadTasks.get(random.nextInt(queueSize)));
+            downloadTask.setPriority(random.nextInt(10));
+            persistentQueue.update(downloadTask);
+        }
+        persistentQueue.flushUpdates();
+        long updateTime = System.nanoTime() - startTime;
+        readStore.close();
+
+        Log.i(TAG, String.format("%s store, %d tasks: fill %d ms, load %d ms, first task %d ms, %d updates %d ms",
+                storeName, queueSize, fillTime / 1000000, loadTime / 1000000, firstTaskTime / 1000000,
+                UPDATE_COUNT, updateTime / 1000000));
+    }
+
+    private static void deleteQueueFiles(File queueFile) {
+        for (String suffix : new String[]{"", ".log", ".prev", ".tmp"}) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(queueFile.getPath() + suffix).delete();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class SqliteDownloadTaskStoreTest {
+
+    private static final String DATABASE_NAME = "test_queue.db";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testUpdatePersistence() throws Exception {
+        SqliteDownloadTaskStore store = new SqliteDownloadTaskStore(mContext, DATABASE_NAME);
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(store);
+        DownloadTask first = new DownloadTask.Builder("First").setPriority(1).addDownloadUrl("http://example.com/1").build();
+        DownloadTask second = new DownloadTask.Builder("Second").setPriority(2).addDownloadUrl("http://example.com/2").build();
+        persistentQueue.add(first);
+        persistentQueue.add(second);
+
+        DownloadTask found = persistentQueue.find(new DownloadTask(second.getTag()));
+        found.setPriority(0);
+        found.getDownloadItems().get(0).setStatus(DownloadItem.STATUS_COMPLETE);
+        persistentQueue.update(found);
+        persistentQueue.flushUpdates();
+        assertEquals(1, store.getItemCount(DownloadItem.STATUS_COMPLETE));
+        store.close();
+
+        store = new SqliteDownloadTaskStore(mContext, DATABASE_NAME);
+        persistentQueue = new PersistentQueue<>(store);
+        DownloadTask head = persistentQueue.peek();
+        assertEquals(second.getTag(), head.getTag());
+        assertEquals(0, head.getPriority());
+        assertEquals(DownloadItem.STATUS_COMPLETE, head.getDownloadItems().get(0).getStatus());
+        store.close();
+    }
+
+    @Test
+    public void testUpdatePart() throws Exception {
+        SqliteDownloadTaskStore store = new SqliteDownloadTaskStore(mContext, DATABASE_NAME);
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(store);
+        DownloadTask task = new DownloadTask.Builder("Test").addDownloadUrl("http://example.com/1")
+                .addDownloadUrl("http://example.com/2").build();
+        persistentQueue.add(task);
+        persistentQueue.flushUpdates();
+        assertEquals(1, store.getTaskCount(DownloadTask.PENDING));
+        assertEquals(2, store.getItemCount(DownloadItem.STATUS_WAITING));
+
+        task.setStatus(DownloadTask.DOWNLOADING);
+        persistentQueue.updatePart(task, DownloadTask.PART_TASK);
+        task.getDownloadItems().get(0).setStatus(DownloadItem.STATUS_COMPLETE);
+        persistentQueue.updatePart(task, 0);
+        persistentQueue.flushUpdates();
+        assertEquals(0, store.getTaskCount(DownloadTask.PENDING));
+        assertEquals(1, store.getTaskCount(DownloadTask.DOWNLOADING));
+        assertEquals(1, store.getItemCount(DownloadItem.STATUS_WAITING));
+        assertEquals(1, store.getItemCount(DownloadItem.STATUS_COMPLETE));
+        store.close();
+    }
+
+    @Test
+    public void testLazyHydration() throws Exception {
+        SqliteDownloadTaskStore store = new SqliteDownloadTaskStore(mContext, DATABASE_NAME);
+        PersistentQueue<DownloadTask> persistentQueue = new PersistentQueue<>(store);
+        DownloadTask first = new DownloadTask.Builder("First").setPriority(1).addDownloadUrl("http://example.com/1").build();
+        persistentQueue.add(first);
+        persistentQueue.flushUpdates();
+        store.close();
+
+        store = new SqliteDownloadTaskStore(mContext, DATABASE_NAME);
+        persistentQueue = new PersistentQueue<>(store);
+        assertTrue(persistentQueue.indexSnapshot().get(0).getDownloadItems().isEmpty());
+        assertEquals(1, store.getTaskCount(DownloadTask.PENDING));
+        assertEquals("http://example.com/1", persistentQueue.find(first).getDownloadItems().get(0).getUrl());
+        store.close();
+    }
+}
@@ -8,9 +8,20 @@ import android.support.test.runner.AndroidJUnit4;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
@@ -194,4 +205,195 @@ public class UrlDownloadHttpStackTest {
         Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
         assertNotNull(bitmap);
     }
+
+    @Test
+    public void testTransferModesMatch() throws Exception {
+        UrlDownloadStack downloadStack = new UrlDownloadStack();
+        File cacheDir = InstrumentationRegistry.getTargetContext().getCacheDir();
+
+        downloadStack.setTransferMode(UrlDownloadStack.TRANSFER_MODE_STREAM);
+        File streamFile = downloadStack.downloadFile(cacheDir,
+                "https://upload.wikimedia.org/wikipedia/commons/0/06/Google-apps-training-logo.png", null);
+
+        downloadStack.setTransferMode(UrlDownloadStack.TRANSFER_MODE_CHANNEL);
+        File channelFile = downloadStack.downloadFile(cacheDir,
+                "https://upload.wikimedia.org/wikipedia/commons/0/06/Google-apps-training-logo.png", null);
+
+        assertTrue(streamFile.length() > 0);
+        assertEquals(streamFile.length(), channelFile.length());
+
+        FileInputStream streamInput = new FileInputStream(streamFile);
+        FileInputStream channelInput = new FileInputStream(channelFile);
+        int streamByte;
+        do {
+            streamByte = streamInput.read();
+            assertEquals(streamByte, channelInput.read());
+        } while (streamByte != -1);
+        streamInput.close();
+        channelInput.close();
+
+        //noinspection ResultOfMethodCallIgnored
+        streamFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        channelFile.delete();
+    }
+
+    @Test
+    public void testSegmentedDownload() throws Exception {
+        UrlDownloadStack downloadStack = new UrlDownloadStack();
+        downloadStack.setSegmentCount(4);
+        downloadStack.setMinimumSegmentSize(1024);
+
+        DownloadTask downloadTask = new DownloadTask.Builder("Segmented")
+                .addDownloadUrl("https://upload.wikimedia.org/wikipedia/commons/0/06/Google-apps-training-logo.png")
+                .build();
+        DownloadItem downloadItem = downloadTask.getDownloadItems().get(0);
+        downloadItem.setFile(InstrumentationRegistry.getTargetContext().getCacheDir());
+
+        final long[] lastProgress = new long[1];
+        File file = downloadStack.downloadFile(downloadItem, new OnDownloadProgressListener() {
+            @Override
+            public void onFileProgress(File file, String url, long bytesDownloaded, long totalBytes) {
+                //Progress is reported as one total across all segments
+                assertTrue(bytesDownloaded <= totalBytes);
+                lastProgress[0] = bytesDownloaded;
+            }
+
+            @Override
+            public void onFileComplete(String url, File tempFile) {
+
+            }
+
+            @Override
+            public void onFileError(String url) {
+                assertFalse(true);
+            }
+        });
+
+        assertTrue(downloadItem.isSegmented());
+        assertEquals(file.length(), downloadItem.getDownloadSize());
+        assertEquals(file.length(), lastProgress[0]);
+
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        assertNotNull(bitmap);
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void testSegmentedDownloadWithRangesIgnored() throws Exception {
+        byte[] body = new byte[64 * 1024];
+        new Random(1).nextBytes(body);
+        AtomicInteger getCount = new AtomicInteger();
+        ServerSocket serverSocket = startRangeIgnoringServer(body, getCount);
+
+        UrlDownloadStack downloadStack = new UrlDownloadStack();
+        downloadStack.setSegmentCount(4);
+        downloadStack.setMinimumSegmentSize(1024);
+
+        DownloadTask downloadTask = new DownloadTask.Builder("Ranges ignored")
+                .addDownloadUrl("http://127.0.0.1:" + serverSocket.getLocalPort() + "/file")
+                .build();
+        DownloadItem downloadItem = downloadTask.getDownloadItems().get(0);
+        downloadItem.setFile(InstrumentationRegistry.getTargetContext().getCacheDir());
+
+        final boolean[] isComplete = new boolean[1];
+        File file = downloadStack.downloadFile(downloadItem, new OnDownloadProgressListener() {
+            @Override
+            public void onFileProgress(File file, String url, long bytesDownloaded, long totalBytes) {
+
+            }
+
+            @Override
+            public void onFileComplete(String url, File tempFile) {
+                isComplete[0] = true;
+            }
+
+            @Override
+            public void onFileError(String url) {
+                assertFalse(true);
+            }
+        });
+        serverSocket.close();
+
+        //The rejected segments fall back to a single stream instead of segmenting again
+        assertTrue(isComplete[0]);
+        assertFalse(downloadItem.isSegmented());
+        assertTrue(getCount.get() <= 5);
+        assertEquals(body.length, file.length());
+        FileInputStream inputStream = new FileInputStream(file);
+        for (int i = 0; i < body.length; i++) {
+            assertEquals(body[i], (byte) inputStream.read());
+        }
+        inputStream.close();
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Starts a server which advertises byte ranges, but answers every request with the whole body
+     */
+    private ServerSocket startRangeIgnoringServer(final byte[] body, final AtomicInteger getCount) throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread acceptThread = new Thread() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    final Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket, body, getCount);
+                        }
+                    }.start();
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return serverSocket;
+    }
+
+    private void serve(Socket socket, byte[] body, AtomicInteger getCount) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            OutputStream outputStream = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null) {
+                String header;
+                do {
+                    header = reader.readLine();
+                } while (header != null && !header.isEmpty());
+
+                boolean isHead = requestLine.startsWith("HEAD");
+                if (!isHead) {
+                    getCount.incrementAndGet();
+                }
+                String response = "HTTP/1.1 200 OK\r\n" +
+                        "Content-Length: " + body.length + "\r\n" +
+                        "Accept-Ranges: bytes\r\n" +
+                        "ETag: \"v1\"\r\n\r\n";
+                outputStream.write(response.getBytes("US-ASCII"));
+                if (!isHead) {
+                    outputStream.write(body);
+                }
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            //The client closed the connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Already closed
+            }
+        }
+    }
 }
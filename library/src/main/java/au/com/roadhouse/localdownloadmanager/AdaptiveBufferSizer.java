@@ -0,0 +1,117 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import timber.log.Timber;
+
+/**
+ * Chooses the size of transfer buffers from the measured throughput of a connection. Each read is
+ * sized to hold roughly {@link #TARGET_READ_DURATION} milliseconds of data, so fast links use large
+ * buffers and need fewer reads, writes and progress callbacks, while slow or lossy links keep small
+ * buffers. Sizes are powers of two within configurable bounds, and change by at most one step per
+ * sample so a single stall doesn't collapse the buffer.
+ */
+public class AdaptiveBufferSizer {
+
+    public static final int DEFAULT_MIN_BUFFER_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 256 * 1024;
+    /**
+     * The minimum time in milliseconds a throughput sample should cover
+     */
+    public static final long SAMPLE_INTERVAL = 250;
+    private static final long TARGET_READ_DURATION = 20;
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+
+    private int mMinBufferSize;
+    private int mMaxBufferSize;
+    private volatile int mBufferSize;
+    private volatile long mThroughput = -1;
+
+    /**
+     * Creates a sizer using the default bounds
+     */
+    public AdaptiveBufferSizer() {
+        this(DEFAULT_MIN_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new sizer
+     * @param minBufferSize The smallest buffer size in bytes
+     * @param maxBufferSize The largest buffer size in bytes
+     */
+    public AdaptiveBufferSizer(int minBufferSize, int maxBufferSize) {
+        setBounds(minBufferSize, maxBufferSize);
+    }
+
+    /**
+     * Sets the range the buffer size is chosen from. Both bounds are rounded up to a power of two.
+     * @param minBufferSize The smallest buffer size in bytes
+     * @param maxBufferSize The largest buffer size in bytes
+     */
+    public synchronized void setBounds(int minBufferSize, int maxBufferSize) {
+        if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+            throw new IllegalArgumentException("Invalid buffer size bounds " + minBufferSize + "-" + maxBufferSize);
+        }
+        mMinBufferSize = roundUpToPowerOfTwo(minBufferSize);
+        mMaxBufferSize = roundUpToPowerOfTwo(maxBufferSize);
+        mBufferSize = clamp(mBufferSize > 0 ? mBufferSize : INITIAL_BUFFER_SIZE);
+    }
+
+    public int getMinBufferSize() {
+        return mMinBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return mMaxBufferSize;
+    }
+
+    /**
+     * @return The buffer size that should be used for the next read, in bytes
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return The smoothed throughput of recent samples in bytes per second, or -1 before the first sample
+     */
+    public long getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * Records the bytes a connection transferred over a period of time and adjusts the buffer size
+     * @param bytesTransferred The number of bytes transferred
+     * @param duration The time taken in milliseconds
+     * @return The new buffer size in bytes
+     */
+    public synchronized int onSample(long bytesTransferred, long duration) {
+        if (duration <= 0) {
+            return mBufferSize;
+        }
+
+        long throughput = bytesTransferred * 1000 / duration;
+        mThroughput = mThroughput < 0 ? throughput : (mThroughput + throughput) / 2;
+
+        long targetSize = mThroughput * TARGET_READ_DURATION / 1000;
+        int bufferSize = mBufferSize;
+        if (targetSize >= bufferSize * 2L && bufferSize < mMaxBufferSize) {
+            bufferSize *= 2;
+        } else if (targetSize < bufferSize / 2 && bufferSize > mMinBufferSize) {
+            bufferSize /= 2;
+        }
+
+        if (bufferSize != mBufferSize) {
+            Timber.d("onSample: Throughput %d bytes/s, buffer size %d -> %d", mThroughput, mBufferSize, bufferSize);
+            mBufferSize = bufferSize;
+        }
+        return bufferSize;
+    }
+
+    private int clamp(int bufferSize) {
+        return Math.max(mMinBufferSize, Math.min(mMaxBufferSize, bufferSize));
+    }
+
+    private static int roundUpToPowerOfTwo(int size) {
+        int powerOfTwo = Integer.highestOneBit(size);
+        return powerOfTwo == size ? size : powerOfTwo << 1;
+    }
+}
@@ -0,0 +1,217 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of transfer buffers shared by download stacks, so downloads reuse the same buffers
+ * instead of allocating new ones for every file.
+ *
+ * Buffers are handed out in power of two size classes, either on the heap or as direct buffers. The
+ * memory held by the pool, both buffers in use and idle buffers, never exceeds a global ceiling.
+ * Idle buffers are dropped to make room for new ones, and once the buffers in use reach the ceiling
+ * further requests wait until a buffer is released.
+ */
+public class BufferPool {
+
+    public static final long DEFAULT_MAX_MEMORY = 4 * 1024 * 1024;
+    private static final int MIN_BUFFER_SIZE = 4096;
+
+    private static BufferPool sSharedPool;
+
+    private final long mMaxMemory;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> mIdleHeapBuffers = new HashMap<>();
+    private final Map<Integer, ArrayDeque<ByteBuffer>> mIdleDirectBuffers = new HashMap<>();
+    private long mIdleBytes;
+    private long mOutstandingBytes;
+    private int mOutstandingCount;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mWaitCount = new AtomicLong();
+
+    /**
+     * @return The pool shared by every download stack that hasn't been given its own pool
+     */
+    public static synchronized BufferPool getSharedPool() {
+        if (sSharedPool == null) {
+            sSharedPool = new BufferPool(DEFAULT_MAX_MEMORY);
+        }
+        return sSharedPool;
+    }
+
+    /**
+     * Creates a new pool
+     * @param maxMemory The maximum number of bytes held in buffers, both in use and idle
+     */
+    public BufferPool(long maxMemory) {
+        mMaxMemory = Math.max(MIN_BUFFER_SIZE, maxMemory);
+    }
+
+    /**
+     * Takes a buffer from the pool, waiting if the buffers in use have reached the memory ceiling.
+     * The buffer is cleared and its capacity is at least the requested size, unless that is larger
+     * than the ceiling. It must be returned with {@link #release(ByteBuffer)} once it's no longer used.
+     * @param size The minimum capacity in bytes
+     * @param isDirect True for a direct buffer, false for a heap buffer backed by an array
+     * @return A buffer
+     * @throws InterruptedIOException If the thread was interrupted while waiting for a buffer
+     */
+    public ByteBuffer acquire(int size, boolean isDirect) throws InterruptedIOException {
+        int capacity = getSizeClass(size);
+
+        synchronized (this) {
+            boolean hasWaited = false;
+            while (true) {
+                ArrayDeque<ByteBuffer> idleBuffers = getIdleBuffers(isDirect).get(capacity);
+                if (idleBuffers != null && !idleBuffers.isEmpty()) {
+                    ByteBuffer buffer = idleBuffers.pollLast();
+                    mIdleBytes -= capacity;
+                    onBufferAcquired(capacity);
+                    mHitCount.incrementAndGet();
+                    buffer.clear();
+                    return buffer;
+                }
+
+                if (mOutstandingBytes + capacity <= mMaxMemory) {
+                    evictIdleBuffers(mMaxMemory - mOutstandingBytes - capacity);
+                    onBufferAcquired(capacity);
+                    mMissCount.incrementAndGet();
+                    break;
+                }
+
+                if (!hasWaited) {
+                    mWaitCount.incrementAndGet();
+                    hasWaited = true;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a buffer");
+                }
+            }
+        }
+
+        //The memory is already reserved, so the allocation itself doesn't need to hold the lock
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns a buffer taken with {@link #acquire(int, boolean)} to the pool. A buffer must only be
+     * released once, and must not be used after it has been released.
+     * @param buffer The buffer
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        mOutstandingBytes -= capacity;
+        mOutstandingCount--;
+
+        if (mIdleBytes + mOutstandingBytes + capacity <= mMaxMemory) {
+            Map<Integer, ArrayDeque<ByteBuffer>> idleBuffersBySize = getIdleBuffers(buffer.isDirect());
+            ArrayDeque<ByteBuffer> idleBuffers = idleBuffersBySize.get(capacity);
+            if (idleBuffers == null) {
+                idleBuffers = new ArrayDeque<>();
+                idleBuffersBySize.put(capacity, idleBuffers);
+            }
+            idleBuffers.addLast(buffer);
+            mIdleBytes += capacity;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Drops every idle buffer, for example once all downloads have finished
+     */
+    public synchronized void clear() {
+        evictIdleBuffers(0);
+    }
+
+    public long getMaxMemory() {
+        return mMaxMemory;
+    }
+
+    /**
+     * @return The number of buffers taken from the idle buffers of the pool
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return The number of buffers that had to be allocated
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return The number of requests that had to wait for the memory ceiling
+     */
+    public long getWaitCount() {
+        return mWaitCount.get();
+    }
+
+    /**
+     * @return The number of buffers currently in use
+     */
+    public synchronized int getOutstandingCount() {
+        return mOutstandingCount;
+    }
+
+    /**
+     * @return The number of bytes held by buffers currently in use
+     */
+    public synchronized long getOutstandingBytes() {
+        return mOutstandingBytes;
+    }
+
+    /**
+     * @return The number of bytes held by idle buffers
+     */
+    public synchronized long getIdleBytes() {
+        return mIdleBytes;
+    }
+
+    private void onBufferAcquired(int capacity) {
+        mOutstandingBytes += capacity;
+        mOutstandingCount++;
+    }
+
+    private void evictIdleBuffers(long maxIdleBytes) {
+        evictIdleBuffers(mIdleHeapBuffers, maxIdleBytes);
+        evictIdleBuffers(mIdleDirectBuffers, maxIdleBytes);
+    }
+
+    private void evictIdleBuffers(Map<Integer, ArrayDeque<ByteBuffer>> idleBuffersBySize, long maxIdleBytes) {
+        Iterator<Map.Entry<Integer, ArrayDeque<ByteBuffer>>> iterator = idleBuffersBySize.entrySet().iterator();
+        while (mIdleBytes > maxIdleBytes && iterator.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<ByteBuffer>> entry = iterator.next();
+            ArrayDeque<ByteBuffer> idleBuffers = entry.getValue();
+            while (mIdleBytes > maxIdleBytes && !idleBuffers.isEmpty()) {
+                idleBuffers.pollFirst();
+                mIdleBytes -= entry.getKey();
+            }
+            if (idleBuffers.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private Map<Integer, ArrayDeque<ByteBuffer>> getIdleBuffers(boolean isDirect) {
+        return isDirect ? mIdleDirectBuffers : mIdleHeapBuffers;
+    }
+
+    private int getSizeClass(int size) {
+        int capacity = MIN_BUFFER_SIZE;
+        while (capacity < size && capacity < mMaxMemory) {
+            capacity <<= 1;
+        }
+        return (int) Math.min(capacity, mMaxMemory);
+    }
+}
@@ -0,0 +1,196 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the connections of the download stacks of the download service which were released in a
+ * reusable state, and estimates how many new requests reuse a kept alive connection.
+ *
+ * This is not a connection pool. HttpURLConnection owns the actual sockets, and reuses a kept alive
+ * socket for the next request to the same host once the previous response was read to the end and
+ * closed. The platform doesn't report whether a request actually reused a socket, so a request
+ * counts as a reuse when a connection to its host was released reusable and hasn't outlived the
+ * keep alive duration. The platform may still have closed that socket, so the counts are an
+ * estimate. The platform limits themselves are only changed by {@link #applyKeepAliveProperties(int, long)}.
+ */
+public class ConnectionReuseTracker {
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 5;
+    public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+    private final int mMaxIdleConnectionsPerHost;
+    private final long mKeepAliveDuration;
+    private final Map<String, ArrayDeque<Long>> mIdleConnections = new HashMap<>();
+    private final AtomicLong mReuseCount = new AtomicLong();
+    private final AtomicLong mNewConnectionCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    /**
+     * Creates a tracker using the default limits
+     */
+    public ConnectionReuseTracker() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_DURATION);
+    }
+
+    /**
+     * Creates a new tracker. The limits should match those of the platform, see
+     * {@link #applyKeepAliveProperties(int, long)}.
+     * @param maxIdleConnectionsPerHost The maximum number of idle connections tracked per host
+     * @param keepAliveDuration The time in milliseconds an idle connection is tracked before eviction
+     */
+    public ConnectionReuseTracker(int maxIdleConnectionsPerHost, long keepAliveDuration) {
+        mMaxIdleConnectionsPerHost = Math.max(1, maxIdleConnectionsPerHost);
+        mKeepAliveDuration = keepAliveDuration;
+    }
+
+    /**
+     * Sets the platform keep alive limits through the process wide http.keepAlive, http.maxConnections
+     * and http.keepAliveDuration system properties. Properties the app has already set are left
+     * alone, and the limits only take effect if no connection has been opened by the process yet.
+     * @param maxIdleConnectionsPerHost The maximum number of idle connections kept alive per host
+     * @param keepAliveDuration The time in milliseconds an idle connection is kept alive
+     */
+    public static void applyKeepAliveProperties(int maxIdleConnectionsPerHost, long keepAliveDuration) {
+        setDefaultProperty("http.keepAlive", "true");
+        setDefaultProperty("http.maxConnections", String.valueOf(Math.max(1, maxIdleConnectionsPerHost)));
+        setDefaultProperty("http.keepAliveDuration", String.valueOf(keepAliveDuration));
+    }
+
+    /**
+     * Opens a connection to a url. The platform reuses a kept alive connection to the same host if it
+     * has one, which is counted as a reuse if a tracked idle connection is available
+     * @param url The url to connect to
+     * @return An unconnected HttpURLConnection
+     * @throws IOException If the url is invalid or the connection can't be opened
+     */
+    public HttpURLConnection open(String url) throws IOException {
+        URL connectionUrl = new URL(url);
+        HttpURLConnection urlConnection = (HttpURLConnection) connectionUrl.openConnection();
+
+        boolean isIdleConnectionAvailable;
+        synchronized (this) {
+            ArrayDeque<Long> idleConnections = mIdleConnections.get(getPoolKey(connectionUrl));
+            evictExpired(idleConnections, System.currentTimeMillis());
+            //The most recently released connection is the one the platform is most likely to reuse
+            isIdleConnectionAvailable = idleConnections != null && idleConnections.pollLast() != null;
+        }
+
+        if (isIdleConnectionAvailable) {
+            mReuseCount.incrementAndGet();
+        } else {
+            mNewConnectionCount.incrementAndGet();
+        }
+
+        return urlConnection;
+    }
+
+    /**
+     * Releases a connection, tracking it as idle if it can be reused
+     * @param urlConnection The connection returned from {@link #open(String)}
+     * @param isReusable True if the response was read to the end and closed. Connections that aren't
+     *                   reusable are disconnected so the socket is closed immediately
+     */
+    public void release(HttpURLConnection urlConnection, boolean isReusable) {
+        if (!isReusable) {
+            urlConnection.disconnect();
+            return;
+        }
+
+        synchronized (this) {
+            String poolKey = getPoolKey(urlConnection.getURL());
+            ArrayDeque<Long> idleConnections = mIdleConnections.get(poolKey);
+            if (idleConnections == null) {
+                idleConnections = new ArrayDeque<>();
+                mIdleConnections.put(poolKey, idleConnections);
+            }
+
+            if (idleConnections.size() >= mMaxIdleConnectionsPerHost) {
+                idleConnections.pollFirst();
+                mEvictionCount.incrementAndGet();
+            }
+            idleConnections.addLast(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Stops tracking idle connections that have exceeded the keep alive duration
+     */
+    public synchronized void evictIdleConnections() {
+        long currentTime = System.currentTimeMillis();
+        Iterator<ArrayDeque<Long>> iterator = mIdleConnections.values().iterator();
+        while (iterator.hasNext()) {
+            ArrayDeque<Long> idleConnections = iterator.next();
+            evictExpired(idleConnections, currentTime);
+            if (idleConnections.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @param url A url on the host
+     * @return The number of idle connections currently tracked for the url's host
+     */
+    public synchronized int getIdleConnectionCount(String url) {
+        try {
+            ArrayDeque<Long> idleConnections = mIdleConnections.get(getPoolKey(new URL(url)));
+            evictExpired(idleConnections, System.currentTimeMillis());
+            return idleConnections != null ? idleConnections.size() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return The estimated number of connections which reused a kept alive connection, counted when a
+     * tracked idle connection to the host was available
+     */
+    public long getEstimatedReuseCount() {
+        return mReuseCount.get();
+    }
+
+    /**
+     * @return The estimated number of connections which needed a new socket, counted when no tracked
+     * idle connection to the host was available
+     */
+    public long getEstimatedNewConnectionCount() {
+        return mNewConnectionCount.get();
+    }
+
+    /**
+     * @return The number of idle connections no longer tracked for exceeding the per host limit or
+     * keep alive duration
+     */
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    private void evictExpired(ArrayDeque<Long> idleConnections, long currentTime) {
+        if (idleConnections == null) {
+            return;
+        }
+
+        while (!idleConnections.isEmpty() && currentTime - idleConnections.peekFirst() > mKeepAliveDuration) {
+            idleConnections.pollFirst();
+            mEvictionCount.incrementAndGet();
+        }
+    }
+
+    private static String getPoolKey(URL url) {
+        //Connections are only shared between requests with the same scheme, host and port
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    private static void setDefaultProperty(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import timber.log.Timber;
+
+/**
+ * A small fixed size record of how far a download item has been written, kept in a file next to
+ * the downloaded file. It holds the item's status, size, bytes downloaded per segment and the
+ * validator (an ETag or Last-Modified date) of the response, so a download can be resumed from an
+ * exact offset and the server can confirm the file hasn't changed since.
+ *
+ * The record is updated in place rather than appended to. Two copies are kept and written in turn,
+ * each with a generation and a checksum, so a write torn by a crash leaves the previous copy
+ * readable. The downloaded file is synced before every write, so the record is never ahead of the
+ * data on disk.
+ */
+public class DownloadCheckpoint {
+
+    /**
+     * The default minimum time between progress writes in milliseconds
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    private static final String FILE_SUFFIX = ".chk";
+    private static final int MAGIC = 0x4c444d43;
+    private static final int VERSION = 1;
+    //Magic, version and segment count
+    private static final int HEADER_SIZE = 9;
+    private static final int MAX_VALIDATOR_LENGTH = 128;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mSegmentCount;
+    private final int mSlotSize;
+    private final long mInterval;
+    private final long[] mSegmentBytesDownloaded;
+    private final RandomAccessFile mCheckpointFile;
+    private final RandomAccessFile mDataFile;
+    private boolean mHasRecord;
+    private long mGeneration;
+    private long mLastWriteTime;
+    private int mStatus = DownloadItem.STATUS_WAITING;
+    private long mDownloadSize = -1;
+    private long mBytesDownloaded;
+    private String mValidator;
+
+    private DownloadCheckpoint(RandomAccessFile checkpointFile, RandomAccessFile dataFile, int segmentCount, long interval) {
+        mCheckpointFile = checkpointFile;
+        mDataFile = dataFile;
+        mSegmentCount = segmentCount;
+        mSlotSize = getSlotSize(segmentCount);
+        mInterval = interval;
+        mSegmentBytesDownloaded = new long[segmentCount];
+    }
+
+    /**
+     * Opens the checkpoint of a downloaded file, creating it if it doesn't exist. A checkpoint
+     * written for a different number of segments is discarded.
+     * @param file The downloaded file
+     * @param segmentCount The number of segments the file is downloaded as, or 0 for a single stream
+     * @param interval The minimum time between progress writes in milliseconds, see {@link #isDue()}
+     * @return The open checkpoint, which must be closed once the download stops
+     * @throws IOException If the checkpoint or the downloaded file can't be opened
+     */
+    public static DownloadCheckpoint open(@NonNull File file, int segmentCount, long interval) throws IOException {
+        RandomAccessFile checkpointFile = new RandomAccessFile(getCheckpointFile(file), "rw");
+        RandomAccessFile dataFile = null;
+        try {
+            dataFile = new RandomAccessFile(file, "rw");
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint(checkpointFile, dataFile, segmentCount, interval);
+            if (!checkpoint.read()) {
+                checkpoint.reset();
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            close(checkpointFile);
+            close(dataFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the checkpoint of a downloaded file, if it has one
+     * @param file The downloaded file
+     * @return True if a checkpoint was deleted
+     */
+    public static boolean delete(@NonNull File file) {
+        return getCheckpointFile(file).delete();
+    }
+
+    /**
+     * @param file The downloaded file
+     * @return The file the checkpoint of the downloaded file is kept in
+     */
+    public static File getCheckpointFile(@NonNull File file) {
+        return new File(file.getPath() + FILE_SUFFIX);
+    }
+
+    private static int getSlotSize(int segmentCount) {
+        //Generation, status, download size, bytes downloaded, validator, segments and checksum
+        return 8 + 4 + 8 + 8 + 2 + MAX_VALIDATOR_LENGTH + 8 * segmentCount + 4;
+    }
+
+    private boolean read() throws IOException {
+        if (mCheckpointFile.length() < HEADER_SIZE + 2 * mSlotSize) {
+            return false;
+        }
+
+        mCheckpointFile.seek(0);
+        if (mCheckpointFile.readInt() != MAGIC || mCheckpointFile.readByte() != VERSION ||
+                mCheckpointFile.readInt() != mSegmentCount) {
+            return false;
+        }
+
+        byte[] slot = new byte[mSlotSize];
+        long newestGeneration = -1;
+        for (int i = 0; i < 2; i++) {
+            mCheckpointFile.readFully(slot);
+            ByteBuffer buffer = ByteBuffer.wrap(slot);
+            CRC32 crc = new CRC32();
+            crc.update(slot, 0, mSlotSize - 4);
+            long generation = buffer.getLong();
+            if ((int) crc.getValue() != buffer.getInt(mSlotSize - 4) || generation <= newestGeneration) {
+                //A torn write, or an older copy
+                continue;
+            }
+
+            newestGeneration = generation;
+            mGeneration = generation;
+            mStatus = buffer.getInt();
+            mDownloadSize = buffer.getLong();
+            mBytesDownloaded = buffer.getLong();
+            int validatorLength = buffer.getShort();
+            mValidator = validatorLength >= 0 ? new String(slot, buffer.position(), validatorLength, UTF_8) : null;
+            buffer.position(buffer.position() + MAX_VALIDATOR_LENGTH);
+            for (int j = 0; j < mSegmentCount; j++) {
+                mSegmentBytesDownloaded[j] = buffer.getLong();
+            }
+            mHasRecord = true;
+        }
+
+        return mHasRecord;
+    }
+
+    private void reset() throws IOException {
+        mCheckpointFile.setLength(0);
+        mCheckpointFile.seek(0);
+        mCheckpointFile.writeInt(MAGIC);
+        mCheckpointFile.writeByte(VERSION);
+        mCheckpointFile.writeInt(mSegmentCount);
+        //Both copies start out empty, so neither passes its checksum until it is written
+        mCheckpointFile.write(new byte[2 * mSlotSize]);
+    }
+
+    /**
+     * @return True if a record was read when the checkpoint was opened, or has been written since
+     */
+    public synchronized boolean hasRecord() {
+        return mHasRecord;
+    }
+
+    public synchronized int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @param status One of the DownloadItem STATUS_ values
+     */
+    public synchronized void setStatus(int status) {
+        mStatus = status;
+    }
+
+    /**
+     * @return The size of the file in bytes, or -1 if it isn't known
+     */
+    public synchronized long getDownloadSize() {
+        return mDownloadSize;
+    }
+
+    public synchronized void setDownloadSize(long downloadSize) {
+        mDownloadSize = downloadSize;
+    }
+
+    /**
+     * @return The number of bytes from the start of the file known to be written, or for a segmented
+     * download the total of its segments
+     */
+    public synchronized long getBytesDownloaded() {
+        return mBytesDownloaded;
+    }
+
+    public synchronized void setBytesDownloaded(long bytesDownloaded) {
+        mBytesDownloaded = bytesDownloaded;
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * @param index The index of the segment
+     * @return The number of bytes from the start of the segment known to be written
+     */
+    public synchronized long getSegmentBytesDownloaded(int index) {
+        return mSegmentBytesDownloaded[index];
+    }
+
+    public synchronized void setSegmentBytesDownloaded(int index, long bytesDownloaded) {
+        mSegmentBytesDownloaded[index] = bytesDownloaded;
+    }
+
+    /**
+     * @return The ETag or Last-Modified date of the response the file was downloaded from, or null if
+     * the server didn't send a usable validator
+     */
+    public synchronized String getValidator() {
+        return mValidator;
+    }
+
+    /**
+     * Sets the validator sent as If-Range when the download is resumed. Validators too long for the
+     * fixed size record aren't kept.
+     * @param validator The ETag or Last-Modified date of the response
+     */
+    public synchronized void setValidator(String validator) {
+        if (validator != null && validator.getBytes(UTF_8).length > MAX_VALIDATOR_LENGTH) {
+            Timber.d("setValidator: Validator too long to checkpoint, resumes won't be validated");
+            validator = null;
+        }
+        mValidator = validator;
+    }
+
+    /**
+     * @return True if the interval has passed since the last write, so progress should be written
+     */
+    public synchronized boolean isDue() {
+        return System.currentTimeMillis() - mLastWriteTime >= mInterval;
+    }
+
+    /**
+     * Syncs the downloaded file, then writes the record over the older of its two copies and syncs it
+     * @throws IOException If either file couldn't be written
+     */
+    public synchronized void write() throws IOException {
+        mDataFile.getFD().sync();
+
+        ByteBuffer buffer = ByteBuffer.allocate(mSlotSize);
+        buffer.putLong(mGeneration + 1);
+        buffer.putInt(mStatus);
+        buffer.putLong(mDownloadSize);
+        buffer.putLong(mBytesDownloaded);
+        if (mValidator != null) {
+            byte[] validator = mValidator.getBytes(UTF_8);
+            buffer.putShort((short) validator.length);
+            buffer.put(validator);
+            buffer.position(buffer.position() + MAX_VALIDATOR_LENGTH - validator.length);
+        } else {
+            buffer.putShort((short) -1);
+            buffer.position(buffer.position() + MAX_VALIDATOR_LENGTH);
+        }
+        for (int i = 0; i < mSegmentCount; i++) {
+            buffer.putLong(mSegmentBytesDownloaded[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, mSlotSize - 4);
+        buffer.putInt((int) crc.getValue());
+
+        mCheckpointFile.seek(HEADER_SIZE + (mGeneration % 2) * mSlotSize);
+        mCheckpointFile.write(buffer.array());
+        mCheckpointFile.getFD().sync();
+        mGeneration++;
+        mHasRecord = true;
+        mLastWriteTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Closes the checkpoint without writing it
+     */
+    public synchronized void close() {
+        close(mCheckpointFile);
+        close(mDataFile);
+    }
+
+    private static void close(RandomAccessFile randomAccessFile) {
+        try {
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            Timber.e("close: Unable to close checkpoint", e);
+        }
+    }
+}
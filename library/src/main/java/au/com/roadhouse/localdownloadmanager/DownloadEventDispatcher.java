@@ -0,0 +1,394 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+/**
+ * Delivers download events from the DownloadService to the {@link DownloadEventListener}s
+ * registered in the same process. Events are passed straight to each listener, so progress events
+ * carry only primitives and nothing is serialized.
+ *
+ * A listener registered without a handler is called on the service thread which produced the event,
+ * and must return quickly. A listener registered with a handler is called on the handler's thread.
+ *
+ * The dispatcher also tracks which events have subscribers on each channel, so the DownloadService
+ * only builds the payload of an event for channels that will receive it. Each event produced is either
+ * delivered to or skipped by each of the {@link #CHANNEL_COUNT} channels: the listeners, local
+ * broadcast receivers and the app's manifest receivers.
+ */
+public class DownloadEventDispatcher {
+
+    public static final int EVENT_QUEUED = 1;
+    public static final int EVENT_PROGRESS = 1 << 1;
+    public static final int EVENT_CANCELLED = 1 << 2;
+    public static final int EVENT_ERROR = 1 << 3;
+    public static final int EVENT_ITEM_COMPLETE = 1 << 4;
+    public static final int EVENT_COMPLETE = 1 << 5;
+    public static final int EVENT_ALL = (1 << 6) - 1;
+    public static final int CHANNEL_COUNT = 3;
+
+    private static DownloadEventDispatcher sSharedDispatcher;
+
+    //Replaced on every change, so events are dispatched without locking or allocating an iterator
+    private volatile Registration[] mRegistrations = new Registration[0];
+    private volatile int mListenerEvents;
+    private final int[] mBroadcastReceiverCounts = new int[Integer.bitCount(EVENT_ALL)];
+    private volatile int mBroadcastReceiverEvents;
+    private final AtomicLong mProducedCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+
+    /**
+     * @return The dispatcher used by the DownloadService and LocalDownloadManager
+     */
+    public static synchronized DownloadEventDispatcher getSharedDispatcher() {
+        if (sSharedDispatcher == null) {
+            sSharedDispatcher = new DownloadEventDispatcher();
+        }
+        return sSharedDispatcher;
+    }
+
+    /**
+     * Registers a listener for every event. A listener registered more than once receives each event
+     * once for each registration.
+     * @param listener The listener
+     * @param handler The handler to call the listener on, or null to call it on the service thread
+     *                which produced the event
+     */
+    public void addListener(@NonNull DownloadEventListener listener, @Nullable Handler handler) {
+        addListener(listener, handler, EVENT_ALL);
+    }
+
+    /**
+     * Registers a listener for some of the events
+     * @param listener The listener
+     * @param handler The handler to call the listener on, or null to call it on the service thread
+     *                which produced the event
+     * @param events The events to receive, a combination of the EVENT_ flags
+     */
+    public synchronized void addListener(@NonNull DownloadEventListener listener, @Nullable Handler handler,
+                                         int events) {
+        Registration[] registrations = new Registration[mRegistrations.length + 1];
+        System.arraycopy(mRegistrations, 0, registrations, 0, mRegistrations.length);
+        registrations[mRegistrations.length] = new Registration(listener, handler, events & EVENT_ALL);
+        mRegistrations = registrations;
+        mListenerEvents |= events & EVENT_ALL;
+    }
+
+    /**
+     * Removes every registration of a listener
+     * @param listener The listener
+     */
+    public synchronized void removeListener(DownloadEventListener listener) {
+        int count = 0;
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener != listener) {
+                count++;
+            }
+        }
+
+        Registration[] registrations = new Registration[count];
+        int index = 0;
+        int listenerEvents = 0;
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener != listener) {
+                registrations[index++] = registration;
+                listenerEvents |= registration.mEvents;
+            }
+        }
+        mRegistrations = registrations;
+        mListenerEvents = listenerEvents;
+    }
+
+    public boolean hasListeners() {
+        return mRegistrations.length > 0;
+    }
+
+    /**
+     * @param event One of the EVENT_ flags
+     * @return True if a listener is registered for the event
+     */
+    public boolean hasListeners(int event) {
+        return (mListenerEvents & event) != 0;
+    }
+
+    /**
+     * Records that a local broadcast receiver has been registered for some of the events. While any
+     * receiver is recorded, local broadcasts of an event are only sent if a receiver is registered for
+     * it. Without any, every event is broadcast for receivers registered with the
+     * LocalBroadcastManager directly.
+     * @param events The events received, a combination of the EVENT_ flags
+     */
+    public synchronized void addBroadcastReceiver(int events) {
+        int receiverEvents = 0;
+        for (int i = 0; i < mBroadcastReceiverCounts.length; i++) {
+            if ((events & (1 << i)) != 0) {
+                mBroadcastReceiverCounts[i]++;
+            }
+            if (mBroadcastReceiverCounts[i] > 0) {
+                receiverEvents |= 1 << i;
+            }
+        }
+        mBroadcastReceiverEvents = receiverEvents;
+    }
+
+    /**
+     * Records that a local broadcast receiver added with {@link #addBroadcastReceiver(int)} has been
+     * unregistered
+     * @param events The events the receiver was added with
+     */
+    public synchronized void removeBroadcastReceiver(int events) {
+        int receiverEvents = 0;
+        for (int i = 0; i < mBroadcastReceiverCounts.length; i++) {
+            if ((events & (1 << i)) != 0 && mBroadcastReceiverCounts[i] > 0) {
+                mBroadcastReceiverCounts[i]--;
+            }
+            if (mBroadcastReceiverCounts[i] > 0) {
+                receiverEvents |= 1 << i;
+            }
+        }
+        mBroadcastReceiverEvents = receiverEvents;
+    }
+
+    /**
+     * @return True if any local broadcast receiver has been registered with
+     * {@link #addBroadcastReceiver(int)}
+     */
+    public boolean hasBroadcastReceivers() {
+        return mBroadcastReceiverEvents != 0;
+    }
+
+    /**
+     * @param event One of the EVENT_ flags
+     * @return True if a local broadcast receiver is registered for the event
+     */
+    public boolean hasBroadcastReceivers(int event) {
+        return (mBroadcastReceiverEvents & event) != 0;
+    }
+
+    /**
+     * Records an event delivered to a broadcast channel
+     */
+    public void onBroadcastDelivered() {
+        mDeliveredCount.incrementAndGet();
+    }
+
+    /**
+     * Records an event not sent to a broadcast channel, as it had no subscribers
+     */
+    public void onBroadcastSkipped() {
+        mSkippedCount.incrementAndGet();
+    }
+
+    /**
+     * @return The number of events produced by the DownloadService
+     */
+    public long getProducedCount() {
+        return mProducedCount.get();
+    }
+
+    /**
+     * @return The number of times an event was delivered to a channel. An event delivered to several
+     * listeners counts once.
+     */
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * @return The number of times an event wasn't sent to a channel, as the channel had no subscribers
+     * for it
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    public void resetCounts() {
+        mProducedCount.set(0);
+        mDeliveredCount.set(0);
+        mSkippedCount.set(0);
+    }
+
+    /**
+     * Counts an event as produced, and as delivered to or skipped by the listeners
+     * @return The registrations to dispatch to
+     */
+    private Registration[] onEventProduced(int event) {
+        mProducedCount.incrementAndGet();
+        if ((mListenerEvents & event) == 0) {
+            mSkippedCount.incrementAndGet();
+            return null;
+        }
+        mDeliveredCount.incrementAndGet();
+        return mRegistrations;
+    }
+
+    public void dispatchDownloadTaskQueued(final DownloadTask downloadTask) {
+        Registration[] registrations = onEventProduced(EVENT_QUEUED);
+        if (registrations == null) {
+            return;
+        }
+
+        for (int i = 0; i < registrations.length; i++) {
+            if ((registrations[i].mEvents & EVENT_QUEUED) == 0) {
+                continue;
+            }
+
+            final DownloadEventListener listener = registrations[i].mListener;
+            if (registrations[i].mHandler == null) {
+                listener.onDownloadTaskQueued(downloadTask);
+            } else {
+                registrations[i].mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDownloadTaskQueued(downloadTask);
+                    }
+                });
+            }
+        }
+    }
+
+    public void dispatchDownloadTaskProgress(final String tag, final long bytesDownloaded, final long totalBytes,
+                                             final long bytesPerSecond) {
+        Registration[] registrations = onEventProduced(EVENT_PROGRESS);
+        if (registrations == null) {
+            return;
+        }
+
+        for (int i = 0; i < registrations.length; i++) {
+            if ((registrations[i].mEvents & EVENT_PROGRESS) == 0) {
+                continue;
+            }
+
+            final DownloadEventListener listener = registrations[i].mListener;
+            if (registrations[i].mHandler == null) {
+                listener.onDownloadTaskProgress(tag, bytesDownloaded, totalBytes, bytesPerSecond);
+            } else {
+                registrations[i].mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDownloadTaskProgress(tag, bytesDownloaded, totalBytes, bytesPerSecond);
+                    }
+                });
+            }
+        }
+    }
+
+    public void dispatchDownloadTaskCancelled(final DownloadTask downloadTask) {
+        Registration[] registrations = onEventProduced(EVENT_CANCELLED);
+        if (registrations == null) {
+            return;
+        }
+
+        for (int i = 0; i < registrations.length; i++) {
+            if ((registrations[i].mEvents & EVENT_CANCELLED) == 0) {
+                continue;
+            }
+
+            final DownloadEventListener listener = registrations[i].mListener;
+            if (registrations[i].mHandler == null) {
+                listener.onDownloadTaskCancelled(downloadTask);
+            } else {
+                registrations[i].mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDownloadTaskCancelled(downloadTask);
+                    }
+                });
+            }
+        }
+    }
+
+    public void dispatchDownloadTaskError(final DownloadTask downloadTask, final int errorCode) {
+        Registration[] registrations = onEventProduced(EVENT_ERROR);
+        if (registrations == null) {
+            return;
+        }
+
+        for (int i = 0; i < registrations.length; i++) {
+            if ((registrations[i].mEvents & EVENT_ERROR) == 0) {
+                continue;
+            }
+
+            final DownloadEventListener listener = registrations[i].mListener;
+            if (registrations[i].mHandler == null) {
+                listener.onDownloadTaskError(downloadTask, errorCode);
+            } else {
+                registrations[i].mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDownloadTaskError(downloadTask, errorCode);
+                    }
+                });
+            }
+        }
+    }
+
+    public void dispatchDownloadItemComplete(final DownloadTask downloadTask, final DownloadItem downloadItem) {
+        Registration[] registrations = onEventProduced(EVENT_ITEM_COMPLETE);
+        if (registrations == null) {
+            return;
+        }
+
+        for (int i = 0; i < registrations.length; i++) {
+            if ((registrations[i].mEvents & EVENT_ITEM_COMPLETE) == 0) {
+                continue;
+            }
+
+            final DownloadEventListener listener = registrations[i].mListener;
+            if (registrations[i].mHandler == null) {
+                listener.onDownloadItemComplete(downloadTask, downloadItem);
+            } else {
+                registrations[i].mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDownloadItemComplete(downloadTask, downloadItem);
+                    }
+                });
+            }
+        }
+    }
+
+    public void dispatchDownloadTaskComplete(final DownloadTask downloadTask) {
+        Registration[] registrations = onEventProduced(EVENT_COMPLETE);
+        if (registrations == null) {
+            return;
+        }
+
+        for (int i = 0; i < registrations.length; i++) {
+            if ((registrations[i].mEvents & EVENT_COMPLETE) == 0) {
+                continue;
+            }
+
+            final DownloadEventListener listener = registrations[i].mListener;
+            if (registrations[i].mHandler == null) {
+                listener.onDownloadTaskComplete(downloadTask);
+            } else {
+                registrations[i].mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onDownloadTaskComplete(downloadTask);
+                    }
+                });
+            }
+        }
+    }
+
+    private static class Registration {
+        private final DownloadEventListener mListener;
+        private final Handler mHandler;
+        private final int mEvents;
+
+        Registration(DownloadEventListener listener, Handler handler, int events) {
+            mListener = listener;
+            mHandler = handler;
+            mEvents = events;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+/**
+ * Receives download events in the process running the DownloadService, without any broadcast or
+ * serialization. Register with {@link LocalDownloadManager#addDownloadEventListener(DownloadEventListener)}.
+ *
+ * The tasks and items passed to a listener are the service's own instances. They must not be
+ * modified, and a task being downloaded keeps changing after the callback returns. Use
+ * {@link SimpleDownloadEventListener} to only implement some of the callbacks.
+ */
+public interface DownloadEventListener {
+
+    /**
+     * Triggered when a download task has been queued by the DownloadService
+     * @param downloadTask The download task that was queued
+     */
+    void onDownloadTaskQueued(DownloadTask downloadTask);
+
+    /**
+     * Triggered when data has been downloaded for a task. Progress is sampled, so this is called at
+     * most once per sample interval for each task in progress.
+     * @param tag The tag of the download task
+     * @param bytesDownloaded The total bytes downloaded of the task
+     * @param totalBytes The total size of the task in bytes, which is provisional until every item's
+     *                   size is known
+     * @param bytesPerSecond The recent download rate of the task
+     */
+    void onDownloadTaskProgress(String tag, long bytesDownloaded, long totalBytes, long bytesPerSecond);
+
+    /**
+     * Triggered when a download task has been explicitly cancelled
+     * @param downloadTask The download task that was cancelled
+     */
+    void onDownloadTaskCancelled(DownloadTask downloadTask);
+
+    /**
+     * Triggered each time a download item of a task fails
+     * @param downloadTask The download task which contains the failed download item
+     * @param errorCode The reason the item failed, one of the OnDownloadProgressListener error codes
+     */
+    void onDownloadTaskError(DownloadTask downloadTask, int errorCode);
+
+    /**
+     * Triggers when a download item has completed. The download task may or may not be complete.
+     * @param downloadTask The owner of the download item that was completed
+     * @param downloadItem The download item that was completed
+     */
+    void onDownloadItemComplete(DownloadTask downloadTask, DownloadItem downloadItem);
+
+    /**
+     * Triggers once every item of a download task has been attempted. Check the status of each item,
+     * as this doesn't mean every item succeeded.
+     * @param downloadTask The download task that completed
+     */
+    void onDownloadTaskComplete(DownloadTask downloadTask);
+}
@@ -3,7 +3,8 @@ package au.com.roadhouse.localdownloadmanager;
 import java.io.File;
 
 /**
- * Provides a common interface for web stacks used by the DownloadService
+ * Provides a common interface for web stacks used by the DownloadService. Stacks which keep resume
+ * state on the download item, such as byte range segments, implement {@link ItemDownloadHttpStack}.
  */
 public interface DownloadHttpStack {
 
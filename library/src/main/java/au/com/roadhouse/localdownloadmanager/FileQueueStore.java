@@ -0,0 +1,532 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * The default {@link QueueStore}, which keeps the queue in a snapshot file and a journal of the
+ * changes made since.
+ *
+ * Changes are appended to a journal next to the queue file, so persisting a change doesn't depend on
+ * the size of the queue. Once the journal grows past the compaction threshold, or the size of the
+ * last snapshot, the whole queue is written as a new snapshot and the journal is emptied.
+ *
+ * Snapshots carry a checksum and are written to a temporary file which replaces the current snapshot
+ * once it's fully on disk. The previous generation is kept, and used if the current snapshot turns
+ * out to be corrupt.
+ *
+ * Elements are stored with a {@link QueueCodec}, which defaults to java serialization. Queues saved
+ * by older versions of the library, which serialized the whole queue, are migrated to the current
+ * format the first time they're loaded. With an {@link IndexedQueueCodec} only the index at the
+ * start of the snapshot is read when the queue is loaded, and each full element is read from the
+ * snapshot when it's hydrated.
+ *
+ * @param <E> The class type stored in the queue
+ */
+public class FileQueueStore<E extends Serializable> implements QueueStore<E> {
+
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64 * 1024;
+    private static final int SNAPSHOT_MAGIC = 0x5051534e;
+    private static final int SNAPSHOT_VERSION = 3;
+    private static final int SNAPSHOT_HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+
+    private final File mFile;
+    private final File mTempFile;
+    private final File mPreviousFile;
+    private final QueueCodec<E> mCodec;
+    private final IndexedQueueCodec<E> mIndexedCodec;
+    private final QueueJournal<E> mJournal;
+    //Where to find the elements of the snapshot which may not have been read yet. Guarded by itself.
+    private final Map<E, SnapshotEntry> mEntries = new HashMap<>();
+    private long mSnapshotLength;
+    private long mGeneration;
+    private volatile long mCompactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+    /**
+     * Creates a store backed by a file
+     * @param file The file the queue is stored in
+     * @param codec Converts elements to and from the bytes stored in the file. An
+     *              {@link IndexedQueueCodec} lets elements be read on demand.
+     */
+    public FileQueueStore(@NonNull File file, @NonNull QueueCodec<E> codec) {
+        mFile = file;
+        mCodec = codec;
+        //noinspection unchecked
+        mIndexedCodec = codec instanceof IndexedQueueCodec ? (IndexedQueueCodec<E>) codec : null;
+        mTempFile = new File(file.getPath() + ".tmp");
+        mPreviousFile = new File(file.getPath() + ".prev");
+        mJournal = new QueueJournal<>(new File(file.getPath() + ".log"), codec);
+    }
+
+    /**
+     * Sets the journal size that triggers a new snapshot. The journal is also compacted whenever it
+     * grows larger than the last snapshot.
+     * @param compactionThreshold The journal size in bytes
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        mCompactionThreshold = compactionThreshold;
+    }
+
+    @Override
+    public boolean load(Queue<E> queue, Collection<E> unhydrated) throws IOException {
+        //A snapshot left half written by a crash is never the one in use, so it can be discarded
+        //noinspection ResultOfMethodCallIgnored
+        mTempFile.delete();
+
+        Snapshot<E> snapshot = null;
+        if (mFile.exists()) {
+            snapshot = readSnapshot(mFile);
+            if (snapshot == null && mPreviousFile.exists()) {
+                Timber.w("load: Snapshot is corrupt, falling back to the previous generation");
+                snapshot = readSnapshot(mPreviousFile);
+            }
+        } else if (mPreviousFile.exists()) {
+            //The process may have died between replacing the previous snapshot and moving the new
+            //one into place. The journal still belongs to the previous snapshot in that case.
+            Snapshot<E> previousSnapshot = readSnapshot(mPreviousFile);
+            if (previousSnapshot != null && mJournal.isJournalFor(previousSnapshot.mLength, previousSnapshot.mChecksum)) {
+                Timber.w("load: Snapshot is missing, recovering the previous generation");
+                snapshot = previousSnapshot;
+            } else if (previousSnapshot != null) {
+                previousSnapshot.close();
+            }
+        }
+
+        if (snapshot == null) {
+            //A journal is only valid on top of its own snapshot, so start both again
+            //noinspection ResultOfMethodCallIgnored
+            mPreviousFile.delete();
+            return true;
+        }
+
+        queue.addAll(snapshot.mElements);
+        unhydrated.addAll(snapshot.mEntries.keySet());
+        synchronized (mEntries) {
+            mEntries.putAll(snapshot.mEntries);
+        }
+        mSnapshotLength = snapshot.mLength;
+        mGeneration = snapshot.mGeneration;
+        int recordCount = mJournal.open(snapshot.mLength, snapshot.mChecksum, new ReplayQueue(queue, unhydrated));
+        Timber.d("load: Replayed %d journal records on top of snapshot generation %d", recordCount, mGeneration);
+        if (snapshot.mIsLegacy) {
+            Timber.i("load: Migrating queue to the current format");
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public E hydrate(E element) throws IOException {
+        while (true) {
+            SnapshotEntry entry;
+            synchronized (mEntries) {
+                entry = mEntries.get(element);
+            }
+            if (entry == null) {
+                throw new IOException("Queue entry isn't in the snapshot");
+            }
+
+            try {
+                return mCodec.decode(readBody(entry));
+            } catch (IOException e) {
+                synchronized (mEntries) {
+                    if (mEntries.get(element) != entry) {
+                        //Moved into a new snapshot while it was being read
+                        continue;
+                    }
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void write(byte type, E element) throws IOException {
+        mJournal.append(type, element);
+    }
+
+    @Override
+    public void commit() throws IOException {
+        mJournal.flush();
+    }
+
+    @Override
+    public boolean isRewriteDue() {
+        return mJournal.length() > Math.max(mCompactionThreshold, mSnapshotLength);
+    }
+
+    /**
+     * Writes the whole queue as a new snapshot and empties the journal. Elements which haven't
+     * been read yet are copied from the previous snapshot without decoding them, and any which
+     * can't be read are left out.
+     */
+    @Override
+    public void rewrite(List<E> elements, Set<E> unhydrated) throws IOException {
+        Map<E, SnapshotEntry> previousEntries;
+        synchronized (mEntries) {
+            previousEntries = new HashMap<>(mEntries);
+        }
+
+        ByteArrayOutputStream entryByteStream = new ByteArrayOutputStream();
+        DataOutputStream entryOutputStream = new DataOutputStream(entryByteStream);
+        ByteArrayOutputStream bodyOutputStream = new ByteArrayOutputStream();
+        Map<E, SnapshotEntry> movedEntries = new HashMap<>();
+        int elementCount = 0;
+        for (E element : elements) {
+            if (mIndexedCodec == null) {
+                byte[] encodedElement = mCodec.encode(element);
+                entryOutputStream.writeInt(encodedElement.length);
+                entryOutputStream.write(encodedElement);
+                entryOutputStream.writeInt(-1);
+                entryOutputStream.writeLong(0);
+                elementCount++;
+                continue;
+            }
+
+            SnapshotEntry entry = unhydrated.contains(element) ? previousEntries.get(element) : null;
+            byte[] body;
+            if (entry != null) {
+                try {
+                    body = readBody(entry);
+                } catch (IOException e) {
+                    Timber.e("rewrite: Unable to read queue entry, dropping it", e);
+                    continue;
+                }
+            } else if (unhydrated.contains(element)) {
+                Timber.w("rewrite: Queue entry isn't in the snapshot, dropping it");
+                continue;
+            } else {
+                body = mCodec.encode(element);
+            }
+            byte[] indexEntry = mIndexedCodec.encodeIndex(element);
+            long bodyChecksum = getChecksum(body, 0, body.length);
+            entryOutputStream.writeInt(indexEntry.length);
+            entryOutputStream.write(indexEntry);
+            entryOutputStream.writeInt(body.length);
+            entryOutputStream.writeLong(bodyChecksum);
+            if (entry != null) {
+                movedEntries.put(element, new SnapshotEntry(null, bodyOutputStream.size(), body.length, bodyChecksum));
+            }
+            bodyOutputStream.write(body);
+            elementCount++;
+        }
+        entryOutputStream.close();
+
+        ByteArrayOutputStream indexByteStream = new ByteArrayOutputStream();
+        DataOutputStream indexOutputStream = new DataOutputStream(indexByteStream);
+        indexOutputStream.writeInt(elementCount);
+        entryByteStream.writeTo(indexOutputStream);
+        indexOutputStream.close();
+        byte[] index = indexByteStream.toByteArray();
+        long checksum = getChecksum(index, 0, index.length);
+        long generation = mGeneration + 1;
+
+        //The new snapshot only replaces the current one once it's completely on disk, so a crash
+        //leaves either the old or the new snapshot in place, never a partial one
+        FileOutputStream fileOutputStream = new FileOutputStream(mTempFile);
+        try {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            outputStream.writeInt(SNAPSHOT_MAGIC);
+            outputStream.writeInt(SNAPSHOT_VERSION);
+            outputStream.writeLong(generation);
+            outputStream.writeInt(index.length);
+            outputStream.writeLong(checksum);
+            outputStream.write(index);
+            bodyOutputStream.writeTo(outputStream);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            fileOutputStream.close();
+        }
+
+        if (mFile.exists() && !mFile.renameTo(mPreviousFile)) {
+            throw new IOException("Unable to keep the previous snapshot");
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            throw new IOException("Unable to move the new snapshot into place");
+        }
+
+        mGeneration = generation;
+        mSnapshotLength = SNAPSHOT_HEADER_SIZE + index.length + bodyOutputStream.size();
+        mJournal.reset(mSnapshotLength, checksum);
+        moveEntries(previousEntries, movedEntries, SNAPSHOT_HEADER_SIZE + index.length);
+        Timber.d("rewrite: Compacted %d queue entries into snapshot generation %d", elementCount, generation);
+    }
+
+    @Override
+    public void close() {
+        mJournal.close();
+        Set<RandomAccessFile> readers = new HashSet<>();
+        synchronized (mEntries) {
+            for (SnapshotEntry entry : mEntries.values()) {
+                readers.add(entry.mReader);
+            }
+            mEntries.clear();
+        }
+        for (RandomAccessFile reader : readers) {
+            closeReader(reader);
+        }
+    }
+
+    /**
+     * Points the elements which still haven't been read at the new snapshot. Files of previous
+     * snapshots are closed once nothing reads from them.
+     */
+    private void moveEntries(Map<E, SnapshotEntry> previousEntries, Map<E, SnapshotEntry> movedEntries,
+                             long bodyOffset) throws IOException {
+        if (previousEntries.isEmpty()) {
+            return;
+        }
+
+        RandomAccessFile reader = movedEntries.isEmpty() ? null : new RandomAccessFile(mFile, "r");
+        Map<E, SnapshotEntry> entries = new HashMap<>();
+        for (Map.Entry<E, SnapshotEntry> movedEntry : movedEntries.entrySet()) {
+            SnapshotEntry entry = movedEntry.getValue();
+            entries.put(movedEntry.getKey(), new SnapshotEntry(reader, bodyOffset + entry.mOffset,
+                    entry.mLength, entry.mChecksum));
+        }
+
+        Set<RandomAccessFile> previousReaders = new HashSet<>();
+        synchronized (mEntries) {
+            for (SnapshotEntry entry : mEntries.values()) {
+                previousReaders.add(entry.mReader);
+            }
+            mEntries.clear();
+            mEntries.putAll(entries);
+        }
+
+        for (RandomAccessFile previousReader : previousReaders) {
+            closeReader(previousReader);
+        }
+    }
+
+    /**
+     * Reads a snapshot. Snapshots in the current format are read up to the end of their index, and
+     * the elements in the rest of the file are read on demand if the codec is indexed. Queues
+     * written by older versions of the library, which are just the serialized queue, are read whole
+     * and flagged so they can be migrated.
+     * @param file The snapshot file
+     * @return The snapshot, or null if it is missing or corrupt
+     */
+    private Snapshot<E> readSnapshot(File file) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            Snapshot<E> snapshot = new Snapshot<>();
+            snapshot.mLength = randomAccessFile.length();
+            if (snapshot.mLength >= SNAPSHOT_HEADER_SIZE && randomAccessFile.readInt() == SNAPSHOT_MAGIC) {
+                int version = randomAccessFile.readInt();
+                if (version != SNAPSHOT_VERSION) {
+                    throw new IOException("Unsupported snapshot version " + version);
+                }
+                snapshot.mGeneration = randomAccessFile.readLong();
+                int indexLength = randomAccessFile.readInt();
+                snapshot.mChecksum = randomAccessFile.readLong();
+                if (indexLength < 0 || indexLength > snapshot.mLength - SNAPSHOT_HEADER_SIZE) {
+                    throw new IOException("Snapshot index is truncated");
+                }
+                byte[] index = new byte[indexLength];
+                randomAccessFile.readFully(index);
+                if (getChecksum(index, 0, index.length) != snapshot.mChecksum) {
+                    throw new IOException("Snapshot checksum mismatch");
+                }
+                readIndex(snapshot, new DataInputStream(new ByteArrayInputStream(index)),
+                        randomAccessFile, SNAPSHOT_HEADER_SIZE + indexLength);
+                if (!snapshot.mEntries.isEmpty()) {
+                    //Kept open to read the elements from
+                    snapshot.mReader = randomAccessFile;
+                    randomAccessFile = null;
+                }
+                return snapshot;
+            }
+
+            byte[] data = new byte[(int) snapshot.mLength];
+            randomAccessFile.seek(0);
+            randomAccessFile.readFully(data);
+            snapshot.mIsLegacy = true;
+            snapshot.mChecksum = getChecksum(data, 0, data.length);
+            ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(data));
+            //noinspection unchecked
+            snapshot.mElements.addAll((Queue<E>) objectInputStream.readObject());
+            objectInputStream.close();
+            return snapshot;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Timber.w("readSnapshot: Unable to read " + file.getName(), e);
+            return null;
+        } finally {
+            closeReader(randomAccessFile);
+        }
+    }
+
+    /**
+     * Reads the index of a snapshot. Elements stored whole in the index are decoded straight away,
+     * the others are decoded from their index entry and their full element is located in the file.
+     */
+    private void readIndex(Snapshot<E> snapshot, DataInputStream inputStream, RandomAccessFile reader,
+                           long bodyOffset) throws IOException {
+        int elementCount = inputStream.readInt();
+        for (int i = 0; i < elementCount; i++) {
+            byte[] indexEntry = new byte[inputStream.readInt()];
+            inputStream.readFully(indexEntry);
+            int bodyLength = inputStream.readInt();
+            long bodyChecksum = inputStream.readLong();
+            if (bodyLength < 0) {
+                snapshot.mElements.add(mCodec.decode(indexEntry));
+            } else if (mIndexedCodec != null) {
+                E element = mIndexedCodec.decodeIndex(indexEntry);
+                snapshot.mElements.add(element);
+                snapshot.mEntries.put(element, new SnapshotEntry(reader, bodyOffset, bodyLength, bodyChecksum));
+                bodyOffset += bodyLength;
+            } else {
+                throw new IOException("Snapshot was written with an indexed codec");
+            }
+        }
+        if (bodyOffset != snapshot.mLength) {
+            throw new IOException("Snapshot length doesn't match its index");
+        }
+    }
+
+    private static byte[] readBody(SnapshotEntry entry) throws IOException {
+        byte[] body = new byte[entry.mLength];
+        synchronized (entry.mReader) {
+            entry.mReader.seek(entry.mOffset);
+            entry.mReader.readFully(body);
+        }
+        if (getChecksum(body, 0, body.length) != entry.mChecksum) {
+            throw new IOException("Queue entry checksum mismatch");
+        }
+        return body;
+    }
+
+    private static void closeReader(RandomAccessFile reader) {
+        if (reader == null) {
+            return;
+        }
+        //Waits for a read in progress, a read after this fails and looks for the element again
+        synchronized (reader) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static long getChecksum(byte[] data, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, offset, length);
+        return crc32.getValue();
+    }
+
+    private static class Snapshot<E> {
+        private final List<E> mElements = new ArrayList<>();
+        private final Map<E, SnapshotEntry> mEntries = new HashMap<>();
+        private RandomAccessFile mReader;
+        private long mLength;
+        private long mChecksum;
+        private long mGeneration;
+        private boolean mIsLegacy;
+
+        void close() {
+            closeReader(mReader);
+        }
+    }
+
+    /**
+     * The location of an element in a snapshot which so far has only been read from the index
+     */
+    private static class SnapshotEntry {
+        private final RandomAccessFile mReader;
+        private final long mOffset;
+        private final int mLength;
+        private final long mChecksum;
+
+        SnapshotEntry(RandomAccessFile reader, long offset, int length, long checksum) {
+            mReader = reader;
+            mOffset = offset;
+            mLength = length;
+            mChecksum = checksum;
+        }
+    }
+
+    /**
+     * Applies journal records to the queue as it's loaded. Elements which are replaced or removed
+     * no longer need to be read from the snapshot.
+     */
+    private final class ReplayQueue extends AbstractQueue<E> {
+
+        private final Queue<E> mQueue;
+        private final Collection<E> mUnhydrated;
+
+        ReplayQueue(Queue<E> queue, Collection<E> unhydrated) {
+            mQueue = queue;
+            mUnhydrated = unhydrated;
+        }
+
+        @Override
+        public boolean offer(E e) {
+            return mQueue.offer(e);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            mUnhydrated.remove(o);
+            return mQueue.remove(o);
+        }
+
+        @Override
+        public void clear() {
+            mUnhydrated.clear();
+            mQueue.clear();
+        }
+
+        @Override
+        public E poll() {
+            E e = mQueue.peek();
+            if (e != null) {
+                remove(e);
+            }
+            return e;
+        }
+
+        @Override
+        public E peek() {
+            return mQueue.peek();
+        }
+
+        @Override
+        public int size() {
+            return mQueue.size();
+        }
+
+        @NonNull
+        @Override
+        public Iterator<E> iterator() {
+            return mQueue.iterator();
+        }
+    }
+}
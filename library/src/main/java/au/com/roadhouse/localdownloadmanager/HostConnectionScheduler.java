@@ -0,0 +1,259 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+
+/**
+ * Schedules download connections between the download queue and the download stacks. The number of
+ * simultaneous connections to each origin host is capped, and waiting download items are handed out
+ * round robin across hosts so a slow host can't starve items from other hosts.
+ *
+ * Download items are submitted against an owner, usually the download task they belong to, and are
+ * only handed out to threads working for the same owner.
+ */
+public class HostConnectionScheduler {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    private final Map<String, HostState> mHostStates = new HashMap<>();
+    private final List<String> mHostOrder = new ArrayList<>();
+    private final Map<String, Integer> mHostConnectionLimits = new HashMap<>();
+    private int mMaxConnectionsPerHost;
+    private int mNextHostIndex = 0;
+
+    /**
+     * Creates a new scheduler
+     * @param maxConnectionsPerHost The default maximum number of simultaneous connections to a host
+     */
+    public HostConnectionScheduler(int maxConnectionsPerHost) {
+        mMaxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    /**
+     * Sets the default maximum number of simultaneous connections to a single host
+     * @param maxConnectionsPerHost The maximum number of connections
+     */
+    public synchronized void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        mMaxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        notifyAll();
+    }
+
+    /**
+     * Overrides the maximum number of simultaneous connections for a single host
+     * @param host The host name, for example "example.com"
+     * @param maxConnections The maximum number of connections, or 0 to use the default limit
+     */
+    public synchronized void setMaxConnectionsForHost(String host, int maxConnections) {
+        if (maxConnections > 0) {
+            mHostConnectionLimits.put(host.toLowerCase(Locale.US), maxConnections);
+        } else {
+            mHostConnectionLimits.remove(host.toLowerCase(Locale.US));
+        }
+        notifyAll();
+    }
+
+    /**
+     * @param host The host name
+     * @return The maximum number of simultaneous connections allowed to the host
+     */
+    public synchronized int getMaxConnections(String host) {
+        Integer maxConnections = mHostConnectionLimits.get(host.toLowerCase(Locale.US));
+        return maxConnections != null ? maxConnections : mMaxConnectionsPerHost;
+    }
+
+    /**
+     * @param host The host name
+     * @return The number of connections currently open to the host
+     */
+    public synchronized int getInFlightCount(String host) {
+        HostState hostState = mHostStates.get(host.toLowerCase(Locale.US));
+        return hostState != null ? hostState.mInFlight : 0;
+    }
+
+    /**
+     * @param host The host name
+     * @return The number of download items waiting for a connection to the host
+     */
+    public synchronized int getBacklogCount(String host) {
+        HostState hostState = mHostStates.get(host.toLowerCase(Locale.US));
+        return hostState != null ? hostState.mBacklog.size() : 0;
+    }
+
+    /**
+     * @return The hosts which currently have open connections or waiting download items
+     */
+    public synchronized List<String> getHosts() {
+        return Collections.unmodifiableList(new ArrayList<>(mHostOrder));
+    }
+
+    /**
+     * Adds a download item to the backlog of its host
+     * @param owner The owner the item will be handed out to, usually its download task
+     * @param downloadItem The download item waiting for a connection
+     */
+    public synchronized void submit(Object owner, DownloadItem downloadItem) {
+        getHostState(getHost(downloadItem.getUrl())).mBacklog.add(new PendingItem(owner, downloadItem));
+        notifyAll();
+    }
+
+    /**
+     * Takes the next download item of an owner whose host has a free connection, visiting hosts
+     * round robin. Blocks while all of the owner's items are waiting on busy hosts. The returned item
+     * holds a connection until {@link #release(DownloadItem)} is called.
+     * @param owner The owner to take an item for
+     * @return The next download item, or null if the owner has no items left
+     * @throws InterruptedException If the thread was interrupted while waiting for a connection
+     */
+    public synchronized DownloadItem take(Object owner) throws InterruptedException {
+        while (true) {
+            boolean hasPendingItems = false;
+            for (int i = 0; i < mHostOrder.size(); i++) {
+                int hostIndex = (mNextHostIndex + i) % mHostOrder.size();
+                String host = mHostOrder.get(hostIndex);
+                HostState hostState = mHostStates.get(host);
+
+                Iterator<PendingItem> iterator = hostState.mBacklog.iterator();
+                while (iterator.hasNext()) {
+                    PendingItem pendingItem = iterator.next();
+                    if (pendingItem.mOwner != owner) {
+                        continue;
+                    }
+
+                    hasPendingItems = true;
+                    if (hostState.mInFlight < getMaxConnections(host)) {
+                        iterator.remove();
+                        hostState.mInFlight++;
+                        mNextHostIndex = (hostIndex + 1) % mHostOrder.size();
+                        return pendingItem.mDownloadItem;
+                    }
+                    break;
+                }
+            }
+
+            if (!hasPendingItems) {
+                return null;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Releases the connection held by a download item returned from {@link #take(Object)}
+     * @param downloadItem The download item that has finished downloading
+     */
+    public void release(DownloadItem downloadItem) {
+        release(downloadItem.getUrl());
+    }
+
+    /**
+     * Claims an additional connection to the host of a url if one is free, without waiting. Used by
+     * stacks that open more than one connection per download item.
+     * @param url The url that will be requested
+     * @return True if a connection was claimed and must be released with {@link #release(String)}
+     */
+    public synchronized boolean tryAcquire(String url) {
+        String host = getHost(url);
+        HostState hostState = getHostState(host);
+        if (hostState.mInFlight < getMaxConnections(host)) {
+            hostState.mInFlight++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Releases a connection claimed by {@link #tryAcquire(String)}
+     * @param url The url that was requested
+     */
+    public synchronized void release(String url) {
+        String host = getHost(url);
+        HostState hostState = mHostStates.get(host);
+        if (hostState != null && hostState.mInFlight > 0) {
+            hostState.mInFlight--;
+            removeIfIdle(host, hostState);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Removes every waiting download item of an owner, and wakes any threads waiting for the owner
+     * @param owner The owner whose items should be removed
+     */
+    public synchronized void cancel(Object owner) {
+        for (int i = mHostOrder.size() - 1; i >= 0; i--) {
+            String host = mHostOrder.get(i);
+            HostState hostState = mHostStates.get(host);
+            Iterator<PendingItem> iterator = hostState.mBacklog.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().mOwner == owner) {
+                    iterator.remove();
+                }
+            }
+            removeIfIdle(host, hostState);
+        }
+        notifyAll();
+    }
+
+    private HostState getHostState(String host) {
+        HostState hostState = mHostStates.get(host);
+        if (hostState == null) {
+            hostState = new HostState();
+            mHostStates.put(host, hostState);
+            mHostOrder.add(host);
+        }
+        return hostState;
+    }
+
+    private void removeIfIdle(String host, HostState hostState) {
+        if (hostState.mInFlight == 0 && hostState.mBacklog.isEmpty()) {
+            int hostIndex = mHostOrder.indexOf(host);
+            mHostOrder.remove(hostIndex);
+            mHostStates.remove(host);
+            if (hostIndex < mNextHostIndex) {
+                mNextHostIndex--;
+            }
+            if (mNextHostIndex >= mHostOrder.size()) {
+                mNextHostIndex = 0;
+            }
+        }
+    }
+
+    /**
+     * Extracts the host a url will connect to
+     * @param url The url
+     * @return The lower case host name, or the url itself if it can't be parsed
+     */
+    public static String getHost(String url) {
+        try {
+            return new URL(url).getHost().toLowerCase(Locale.US);
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    private static class HostState {
+        private int mInFlight;
+        private final ArrayDeque<PendingItem> mBacklog = new ArrayDeque<>();
+    }
+
+    private static class PendingItem {
+        private final Object mOwner;
+        private final DownloadItem mDownloadItem;
+
+        PendingItem(Object owner, DownloadItem downloadItem) {
+            mOwner = owner;
+            mDownloadItem = downloadItem;
+        }
+    }
+}
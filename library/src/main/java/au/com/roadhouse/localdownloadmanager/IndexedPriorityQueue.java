@@ -0,0 +1,322 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A thread safe binary heap which keeps an index of where each element is stored. Elements are
+ * ordered by a comparator, or their natural ordering, and identified by equals and hashCode, so looking up, removing
+ * or repositioning an element costs O(log n) instead of a scan of the whole queue.
+ *
+ * Elements are unique. Offering an element equal to one already queued leaves the queue unchanged.
+ *
+ * @param <E> The class type stored in the queue, which must be Comparable unless a comparator is used
+ */
+class IndexedPriorityQueue<E> extends AbstractQueue<E> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] mHeap = new Object[INITIAL_CAPACITY];
+    private int mSize;
+    private final Map<Object, Integer> mIndex = new HashMap<>();
+    private Comparator<? super E> mComparator;
+
+    /**
+     * @return The comparator ordering the queue, or null if it uses the natural ordering of its elements
+     */
+    public synchronized Comparator<? super E> comparator() {
+        return mComparator;
+    }
+
+    /**
+     * Changes how the queue is ordered, rebuilding the heap in O(n)
+     * @param comparator The comparator to order the queue by, or null for the natural ordering
+     */
+    public synchronized void setComparator(Comparator<? super E> comparator) {
+        mComparator = comparator;
+        for (int i = (mSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    @Override
+    public synchronized boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        } else if (mIndex.containsKey(e)) {
+            return false;
+        }
+
+        if (mSize == mHeap.length) {
+            mHeap = Arrays.copyOf(mHeap, mHeap.length * 2);
+        }
+        mHeap[mSize] = e;
+        mIndex.put(e, mSize);
+        mSize++;
+        siftUp(mSize - 1);
+        return true;
+    }
+
+    @Override
+    public boolean add(E e) {
+        return offer(e);
+    }
+
+    @Override
+    public synchronized E poll() {
+        if (mSize == 0) {
+            return null;
+        }
+
+        E element = elementAt(0);
+        removeAt(0);
+        return element;
+    }
+
+    @Override
+    public synchronized E peek() {
+        return mSize > 0 ? elementAt(0) : null;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        return o != null && mIndex.containsKey(o);
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        Integer position = o != null ? mIndex.get(o) : null;
+        if (position == null) {
+            return false;
+        }
+
+        removeAt(position);
+        return true;
+    }
+
+    /**
+     * Finds the queued element equal to the given object
+     * @param o An object equal to the element
+     * @return The queued element, or null if there is none
+     */
+    public synchronized E find(Object o) {
+        Integer position = o != null ? mIndex.get(o) : null;
+        return position != null ? elementAt(position) : null;
+    }
+
+    /**
+     * Replaces the queued element equal to the given element, and moves it to the position its
+     * ordering now requires. Used once the ordering of a queued element has changed.
+     * @param e The updated element
+     * @return True if an equal element was queued
+     */
+    public synchronized boolean update(E e) {
+        Integer position = mIndex.remove(e);
+        if (position == null) {
+            return false;
+        }
+
+        mHeap[position] = e;
+        mIndex.put(e, position);
+        siftDown(siftUp(position));
+        return true;
+    }
+
+    /**
+     * Changes the queued element equal to the given object in place, and moves it to the position its
+     * ordering now requires
+     * @param o An object equal to the element
+     * @param change The change to make, which must not change what the element is equal to
+     * @return The changed element, or null if there is none
+     */
+    public synchronized E update(Object o, PersistentQueue.ElementChange<? super E> change) {
+        Integer position = o != null ? mIndex.get(o) : null;
+        if (position == null) {
+            return null;
+        }
+
+        E element = elementAt(position);
+        change.apply(element);
+        siftDown(siftUp(position));
+        return element;
+    }
+
+    /**
+     * Finds the first element in the queue's order which a filter accepts, without sorting the queue.
+     * The heap is walked from its root through the children of the elements rejected, so the cost
+     * depends on how many elements are rejected rather than on the size of the queue.
+     * @param filter Called with each element in order until it accepts one
+     * @return The first element accepted, or null if there is none
+     */
+    public synchronized E findFirst(PersistentQueue.Filter<? super E> filter) {
+        if (mSize == 0) {
+            return null;
+        }
+
+        PriorityQueue<Integer> frontier = new PriorityQueue<>(INITIAL_CAPACITY, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return IndexedPriorityQueue.this.compare(mHeap[first], mHeap[second]);
+            }
+        });
+        frontier.add(0);
+        while (!frontier.isEmpty()) {
+            int position = frontier.poll();
+            E element = elementAt(position);
+            if (filter.accept(element)) {
+                return element;
+            }
+
+            int left = 2 * position + 1;
+            if (left < mSize) {
+                frontier.add(left);
+            }
+            if (left + 1 < mSize) {
+                frontier.add(left + 1);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        Arrays.fill(mHeap, 0, mSize, null);
+        mSize = 0;
+        mIndex.clear();
+    }
+
+    @Override
+    public synchronized Object[] toArray() {
+        return Arrays.copyOf(mHeap, mSize);
+    }
+
+    @Override
+    public synchronized <T> T[] toArray(T[] a) {
+        if (a.length < mSize) {
+            //noinspection unchecked
+            return (T[]) Arrays.copyOf(mHeap, mSize, a.getClass());
+        }
+
+        System.arraycopy(mHeap, 0, a, 0, mSize);
+        if (a.length > mSize) {
+            a[mSize] = null;
+        }
+        return a;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue, in no particular order. Removing through the
+     * iterator removes the element from the queue.
+     * @return An iterator over the queued elements
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final Object[] snapshot = toArray();
+        return new Iterator<E>() {
+            private int mPosition;
+            private int mLastPosition = -1;
+
+            @Override
+            public boolean hasNext() {
+                return mPosition < snapshot.length;
+            }
+
+            @Override
+            public E next() {
+                if (mPosition >= snapshot.length) {
+                    throw new NoSuchElementException();
+                }
+                mLastPosition = mPosition++;
+                //noinspection unchecked
+                return (E) snapshot[mLastPosition];
+            }
+
+            @Override
+            public void remove() {
+                if (mLastPosition < 0) {
+                    throw new IllegalStateException();
+                }
+                IndexedPriorityQueue.this.remove(snapshot[mLastPosition]);
+                mLastPosition = -1;
+            }
+        };
+    }
+
+    private void removeAt(int position) {
+        mIndex.remove(mHeap[position]);
+        int last = --mSize;
+        if (position == last) {
+            mHeap[last] = null;
+            return;
+        }
+
+        Object moved = mHeap[last];
+        mHeap[last] = null;
+        mHeap[position] = moved;
+        mIndex.put(moved, position);
+        siftDown(siftUp(position));
+    }
+
+    private int siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (compare(mHeap[position], mHeap[parent]) >= 0) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+        return position;
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int smallest = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < mSize && compare(mHeap[left], mHeap[smallest]) < 0) {
+                smallest = left;
+            }
+            if (right < mSize && compare(mHeap[right], mHeap[smallest]) < 0) {
+                smallest = right;
+            }
+            if (smallest == position) {
+                return;
+            }
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int first, int second) {
+        Object element = mHeap[first];
+        mHeap[first] = mHeap[second];
+        mHeap[second] = element;
+        mIndex.put(mHeap[first], first);
+        mIndex.put(mHeap[second], second);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(Object first, Object second) {
+        if (mComparator != null) {
+            return mComparator.compare((E) first, (E) second);
+        }
+        return ((Comparable<Object>) first).compareTo(second);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elementAt(int position) {
+        return (E) mHeap[position];
+    }
+}
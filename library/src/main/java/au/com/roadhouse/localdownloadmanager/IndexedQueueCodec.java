@@ -0,0 +1,31 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.IOException;
+
+/**
+ * A {@link QueueCodec} which can also encode a small index entry for each element. A
+ * {@link PersistentQueue} using an indexed codec stores the index entries ahead of the full elements
+ * in its snapshot, so it can be opened by reading only the index. Full elements are read the first
+ * time they're needed.
+ *
+ * An element decoded from its index entry stands in for the full element until it's read, so it
+ * must hold every field used by equals, hashCode and the ordering of the queue.
+ *
+ * @param <E> The class type stored in the queue
+ */
+public interface IndexedQueueCodec<E> extends QueueCodec<E> {
+
+    /**
+     * @param element The element to index
+     * @return The index entry for the element
+     * @throws IOException If the element can't be encoded
+     */
+    byte[] encodeIndex(E element) throws IOException;
+
+    /**
+     * @param data Bytes returned by {@link #encodeIndex(Object)}, possibly by another version of the codec
+     * @return An element holding only the indexed fields
+     * @throws IOException If the data is corrupt
+     */
+    E decodeIndex(byte[] data) throws IOException;
+}
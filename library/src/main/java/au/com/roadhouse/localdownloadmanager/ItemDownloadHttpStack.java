@@ -0,0 +1,24 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.File;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+
+/**
+ * A {@link DownloadHttpStack} which downloads whole download items rather than single urls. The
+ * DownloadService uses {@link #downloadFile(DownloadItem, OnDownloadProgressListener)} for stacks
+ * which implement this interface, and {@link #downloadFile(File, String, OnDownloadProgressListener)}
+ * for any other stack.
+ */
+public interface ItemDownloadHttpStack extends DownloadHttpStack {
+
+    /**
+     * Begins the download of a download item synchronously. Any resume state, such as byte range
+     * segments, is read from and written back to the download item, and may also be kept in a
+     * {@link DownloadCheckpoint} next to the item's file.
+     * @param downloadItem The download item to download
+     * @param listener A listener which will receive progress and status updates
+     * @return The file object which contains the completed file.
+     */
+    File downloadFile(DownloadItem downloadItem, OnDownloadProgressListener listener);
+}
@@ -0,0 +1,43 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * A UrlDownloadStack which drains and releases all of its connections, including file size requests
+ * and segment downloads, so consecutive requests to the same host can reuse a kept alive connection
+ * instead of paying a new TCP and TLS handshake each time. Reuse is estimated by a shared
+ * {@link ConnectionReuseTracker}.
+ */
+public class KeepAliveDownloadStack extends UrlDownloadStack {
+
+    private final ConnectionReuseTracker mConnectionReuseTracker;
+
+    /**
+     * Creates a new stack
+     * @param connectionReuseTracker The reuse tracker shared by every stack downloading from the same hosts
+     */
+    public KeepAliveDownloadStack(ConnectionReuseTracker connectionReuseTracker) {
+        mConnectionReuseTracker = connectionReuseTracker;
+    }
+
+    public ConnectionReuseTracker getConnectionReuseTracker() {
+        return mConnectionReuseTracker;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected HttpURLConnection openConnection(String url) throws IOException {
+        return mConnectionReuseTracker.open(url);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void releaseConnection(HttpURLConnection urlConnection, boolean isDrained) {
+        mConnectionReuseTracker.release(urlConnection, isDrained);
+    }
+}
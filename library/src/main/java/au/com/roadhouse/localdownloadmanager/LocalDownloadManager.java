@@ -2,9 +2,12 @@ package au.com.roadhouse.localdownloadmanager;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 
-import java.io.Serializable;
+import java.util.List;
 import java.util.UUID;
 
 import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
@@ -14,11 +17,30 @@ import timber.log.Timber;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_PAUSE_DOWNLOAD;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_QUEUE_DOWNLOAD;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_REMOVE_ALL_DOWNLOAD;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_HOST_CONNECTIONS;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_MAX_CONCURRENT_DOWNLOADS;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_REMOVE_DOWNLOAD;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_RESUME_DOWNLOAD;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_BROADCASTS;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_COMPACT_BROADCASTS;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_EVENT_BATCHING;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_NETWORK_TYPE;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_PRIORITY_AGING;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_SETTINGS_SEGMENT_COUNT;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.ACTION_UPDATE_PRIORITY;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_AGING_INTERVAL;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_BATCH_WINDOW;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_BROADCASTS_ENABLED;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_COMPACT_BROADCASTS_ENABLED;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_DOWNLOAD_TAG;
-import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_DOWNLOAD_TASK;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_DOWNLOAD_TAGS;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_DOWNLOAD_TASK_DATA;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_DOWNLOAD_TASKS;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_HOST;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_MAX_CONNECTIONS_PER_HOST;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_MAX_CONCURRENT_DOWNLOADS;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_PRIORITY;
+import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_SEGMENT_COUNT;
 import static au.com.roadhouse.localdownloadmanager.service.DownloadService.EXTRA_WIFI_ONLY;
 
 /**
@@ -44,10 +66,23 @@ public class LocalDownloadManager {
     public void addDownloadToQueue( DownloadTask downloadTask) {
         Intent intent = new Intent(mContext, DownloadService.class);
         intent.setAction(ACTION_QUEUE_DOWNLOAD);
-        intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
+        intent.putExtra(EXTRA_DOWNLOAD_TASK_DATA, downloadTask.toByteArray());
         ContextCompat.startForegroundService(mContext, intent);
     }
 
+    /**
+     * Adds several download tasks to the DownloadService at once. The tasks are queued together and
+     * written to the persisted queue in a single write.
+     * @param downloadTasks The download tasks to add to the queue
+     */
+    public void addDownloadsToQueue(List<DownloadTask> downloadTasks) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_QUEUE_DOWNLOAD);
+        intent.putExtra(EXTRA_DOWNLOAD_TASKS, DownloadTask.toByteArray(downloadTasks));
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("addDownloadsToQueue: queueing %d downloads", downloadTasks.size());
+    }
+
     /**
      * Pauses all current and queued downloads
      */
@@ -80,6 +115,33 @@ public class LocalDownloadManager {
         Timber.d("removeDownload: removing downloads with tag %s", tag);
     }
 
+    /**
+     * Removes several downloads at once, based on their unique tags
+     * @param tags The unique tags of the download tasks to remove
+     */
+    public void removeDownloads(List<String> tags) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_REMOVE_DOWNLOAD);
+        intent.putExtra(EXTRA_DOWNLOAD_TAGS, tags.toArray(new String[tags.size()]));
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("removeDownloads: removing %d downloads", tags.size());
+    }
+
+    /**
+     * Changes the priority of a queued download task. Has no effect on a task that has already
+     * started downloading.
+     * @param tag The unique tag received when calling {@link #addDownloadToQueue(DownloadTask)}
+     * @param priority The new priority of the task
+     */
+    public void updateDownloadPriority(String tag, int priority) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_UPDATE_PRIORITY);
+        intent.putExtra(EXTRA_DOWNLOAD_TAG, tag);
+        intent.putExtra(EXTRA_PRIORITY, priority);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("updateDownloadPriority: setting priority of %s to %d", tag, priority);
+    }
+
     /**
      * Removes the current download task in progress, and clears any pending downloads.
      */
@@ -101,4 +163,162 @@ public class LocalDownloadManager {
         ContextCompat.startForegroundService(mContext, intent);
         Timber.d("setWifiOnlyDownload: " + (wifiOnlyDownload ? "Restricting download to wifi" : "Unrestricting download"));
     }
+
+    /**
+     * Sets the maximum number of parallel connections used to download a single file. Files are only
+     * split when the server supports byte range requests and reports the file size. A value of 1
+     * downloads every file over a single connection.
+     * @param segmentCount The maximum number of connections per file
+     */
+    public void setMaxSegmentsPerDownload(int segmentCount) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_SEGMENT_COUNT);
+        intent.putExtra(EXTRA_SEGMENT_COUNT, segmentCount);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setMaxSegmentsPerDownload: Using up to %d connections per file", segmentCount);
+    }
+
+    /**
+     * Sets how many download tasks may be downloaded at the same time. Tasks are still started in
+     * priority order. Defaults to 1.
+     * @param maxConcurrentDownloads The maximum number of download tasks in progress at once
+     */
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_MAX_CONCURRENT_DOWNLOADS);
+        intent.putExtra(EXTRA_MAX_CONCURRENT_DOWNLOADS, maxConcurrentDownloads);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setMaxConcurrentDownloads: Downloading up to %d tasks at once", maxConcurrentDownloads);
+    }
+
+    /**
+     * Makes queued download tasks move ahead of newer, higher priority tasks the longer they wait, so
+     * low priority tasks are still downloaded while high priority tasks keep being queued. Disabled by
+     * default, in which case tasks are downloaded strictly by priority.
+     * @param agingInterval The time in milliseconds a task must wait to move one priority level
+     *                      ahead, or 0 to disable aging
+     */
+    public void setPriorityAging(long agingInterval) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_PRIORITY_AGING);
+        intent.putExtra(EXTRA_AGING_INTERVAL, agingInterval);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setPriorityAging: Aging queued tasks one priority level every %d ms", agingInterval);
+    }
+
+    /**
+     * Sets the maximum number of simultaneous connections opened to any single host, across all
+     * downloads in progress. Defaults to {@link HostConnectionScheduler#DEFAULT_MAX_CONNECTIONS_PER_HOST}.
+     * @param maxConnections The maximum number of connections per host
+     */
+    public void setMaxConnectionsPerHost(int maxConnections) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_HOST_CONNECTIONS);
+        intent.putExtra(EXTRA_MAX_CONNECTIONS_PER_HOST, maxConnections);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setMaxConnectionsPerHost: Using up to %d connections per host", maxConnections);
+    }
+
+    /**
+     * Overrides the maximum number of simultaneous connections opened to a specific host
+     * @param host The host name, for example "cdn.example.com"
+     * @param maxConnections The maximum number of connections, or 0 to use the default limit
+     */
+    public void setMaxConnectionsForHost(String host, int maxConnections) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_HOST_CONNECTIONS);
+        intent.putExtra(EXTRA_HOST, host);
+        intent.putExtra(EXTRA_MAX_CONNECTIONS_PER_HOST, maxConnections);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setMaxConnectionsForHost: Using up to %d connections for %s", maxConnections, host);
+    }
+
+    /**
+     * Registers a listener for the download events of the DownloadService. The listener is called on
+     * the service thread which produced the event, so it must return quickly. Listeners only receive
+     * events while the service runs in this process, and stay registered until removed.
+     * @param listener The listener to register
+     */
+    public void addDownloadEventListener(@NonNull DownloadEventListener listener) {
+        DownloadEventDispatcher.getSharedDispatcher().addListener(listener, null);
+    }
+
+    /**
+     * Registers a listener for the download events of the DownloadService, called on the thread of the
+     * given handler
+     * @param listener The listener to register
+     * @param handler The handler to call the listener on, for example one created on the main looper
+     */
+    public void addDownloadEventListener(@NonNull DownloadEventListener listener, @NonNull Handler handler) {
+        DownloadEventDispatcher.getSharedDispatcher().addListener(listener, handler);
+    }
+
+    /**
+     * Registers a listener for some of the download events of the DownloadService
+     * @param listener The listener to register
+     * @param handler The handler to call the listener on, or null to call it on the service thread
+     *                which produced the event
+     * @param events The events to receive, a combination of the DownloadEventDispatcher EVENT_ flags
+     */
+    public void addDownloadEventListener(@NonNull DownloadEventListener listener, @Nullable Handler handler,
+                                         int events) {
+        DownloadEventDispatcher.getSharedDispatcher().addListener(listener, handler, events);
+    }
+
+    /**
+     * Removes a listener registered with addDownloadEventListener
+     * @param listener The listener to remove
+     */
+    public void removeDownloadEventListener(DownloadEventListener listener) {
+        DownloadEventDispatcher.getSharedDispatcher().removeListener(listener);
+    }
+
+    /**
+     * Makes the DownloadService also send its download events as broadcasts, for receivers such as
+     * {@link au.com.roadhouse.localdownloadmanager.toolkit.DownloadBroadcastReceiver} and
+     * {@link au.com.roadhouse.localdownloadmanager.toolkit.DownloadStatusService}. Each broadcast
+     * serializes the download task, so prefer {@link #addDownloadEventListener(DownloadEventListener)}.
+     * Disabled by default.
+     * @param broadcastsEnabled True to send broadcasts, false otherwise
+     */
+    public void setBroadcastsEnabled(boolean broadcastsEnabled) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_BROADCASTS);
+        intent.putExtra(EXTRA_BROADCASTS_ENABLED, broadcastsEnabled);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setBroadcastsEnabled: " + (broadcastsEnabled ? "Sending download broadcasts" : "Not sending download broadcasts"));
+    }
+
+    /**
+     * Coalesces the queued and item complete broadcasts sent within a window into a single
+     * broadcast holding a list of compact task or item references, received by the batch callbacks of
+     * the toolkit classes. The individual broadcasts aren't sent while batching. Batched items are
+     * always sent before their task's complete broadcast. Listeners still receive every event.
+     * Disabled by default.
+     * @param batchWindow The time in milliseconds to collect events for, or 0 to disable batching
+     */
+    public void setEventBatchWindow(long batchWindow) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_EVENT_BATCHING);
+        intent.putExtra(EXTRA_BATCH_WINDOW, batchWindow);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setEventBatchWindow: Batching events over %d ms", batchWindow);
+    }
+
+    /**
+     * Makes the broadcasts sent to manifest receivers carry the download task and item in the compact
+     * binary format of {@link DownloadTask#toByteArray()}, under DownloadService.EXTRA_DOWNLOAD_TASK_DATA
+     * and EXTRA_DOWNLOAD_ITEM_DATA, instead of serialized under EXTRA_DOWNLOAD_TASK and
+     * EXTRA_DOWNLOAD_ITEM. Only enable this if every manifest receiver reads the task with
+     * DownloadService.getDownloadTask, as the toolkit classes do. Local broadcasts are unaffected.
+     * Disabled by default.
+     * @param compactBroadcastsEnabled True to send the binary format, false to send serialized objects
+     */
+    public void setCompactBroadcastsEnabled(boolean compactBroadcastsEnabled) {
+        Intent intent = new Intent(mContext, DownloadService.class);
+        intent.setAction(ACTION_SETTINGS_COMPACT_BROADCASTS);
+        intent.putExtra(EXTRA_COMPACT_BROADCASTS_ENABLED, compactBroadcastsEnabled);
+        ContextCompat.startForegroundService(mContext, intent);
+        Timber.d("setCompactBroadcastsEnabled: " + (compactBroadcastsEnabled ? "Sending compact broadcasts" : "Sending serialized broadcasts"));
+    }
 }
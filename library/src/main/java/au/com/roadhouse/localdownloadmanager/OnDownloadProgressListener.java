@@ -7,12 +7,21 @@ import java.io.File;
  */
 public interface OnDownloadProgressListener {
 
+    /**
+     * The download failed because of a network or server error, it can be retried later
+     */
+    int ERROR_DOWNLOAD_FAILED = 1;
+    /**
+     * There isn't enough free storage to hold the file, see {@link OnInsufficientStorageListener}
+     */
+    int ERROR_INSUFFICIENT_STORAGE = 2;
+
     /**
      * Triggers when download progress has increased.
      * @param file The download file
      * @param url The url being downloaded
      * @param bytesDownloaded The total bytes downloaded
-     * @param totalBytes The total file size
+     * @param totalBytes The total file size, or -1 if the server didn't report it
      */
     void onFileProgress(File file, String url, long bytesDownloaded, long totalBytes);
 
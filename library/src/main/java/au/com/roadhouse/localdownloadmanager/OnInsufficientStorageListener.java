@@ -0,0 +1,16 @@
+package au.com.roadhouse.localdownloadmanager;
+
+/**
+ * An {@link OnDownloadProgressListener} which is told apart when a download fails because the storage
+ * is full. Stacks call {@link #onInsufficientStorage(String)} instead of
+ * {@link #onFileError(String)} for listeners which implement this interface, and onFileError for any
+ * other listener.
+ */
+public interface OnInsufficientStorageListener extends OnDownloadProgressListener {
+
+    /**
+     * Triggers when a file can't be downloaded because there isn't enough free storage to hold it
+     * @param url The url that was being downloaded
+     */
+    void onInsufficientStorage(String url);
+}
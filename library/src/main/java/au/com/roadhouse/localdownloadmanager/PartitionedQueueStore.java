@@ -0,0 +1,26 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.IOException;
+
+/**
+ * A {@link QueueStore} which stores parts of each element separately, so a change to one part is
+ * persisted without writing the whole element. A {@link PersistentQueue} uses
+ * {@link #writePart(Object, int)} for the changes made with {@link PersistentQueue#updatePart(Object, int)},
+ * and any other store is written the whole element instead.
+ *
+ * Parts are numbered by the element type, for example a DownloadTask numbers its download items by
+ * their position.
+ *
+ * @param <E> The class type stored in the queue
+ */
+public interface PartitionedQueueStore<E> extends QueueStore<E> {
+
+    /**
+     * Records a change to one part of an element. Changes may be buffered until {@link #commit()}
+     * is called.
+     * @param element The element changed
+     * @param part The part of the element changed
+     * @throws IOException If the change couldn't be recorded
+     */
+    void writePart(E element, int part) throws IOException;
+}
@@ -7,17 +7,23 @@ import android.os.Message;
 import android.support.annotation.NonNull;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import timber.log.Timber;
 
@@ -25,6 +31,25 @@ import timber.log.Timber;
  * A queue which saves it's state to disk in a background thread. This provides in memory queue operation
  * speed with the benefit of disk persistence.
  *
+ * Changes are persisted by a {@link QueueStore}. By default this is a {@link FileQueueStore}, which
+ * appends each change to a journal and compacts the journal into a snapshot of the queue as it
+ * grows. Changes made close together are coalesced into a single write.
+ *
+ * The queue is held in memory as an indexed heap, so elements can be looked up, removed and
+ * repositioned without scanning the queue. Elements are identified by equals and hashCode, and are
+ * unique within the queue.
+ *
+ * Every change is numbered with a write generation. {@link #flushUpdates()} blocks until the changes
+ * made before it are on disk, while {@link #flush()} returns a future which completes once they are,
+ * so callers on latency sensitive threads don't block on persistence. Changes which couldn't be
+ * written are kept and written again with the next commit, and fail the futures waiting on them.
+ *
+ * The queue is loaded on its own thread, so creating it doesn't block the caller. Operations wait
+ * until the queue has been loaded. Stores may load only the fields needed to identify and order
+ * each element, for example the index of a snapshot written with an {@link IndexedQueueCodec}, in
+ * which case each full element is read the first time it's returned by the queue.
+ * {@link #indexSnapshot()} lists the queue without reading any more elements.
+ *
  * It's important to call flushChanges before removing the reference to a PersistentQueue instance,
  * failure to do this will likely result in state loss when loading the queue from persistent storage.
  * It may not happen today, or tomorrow, but it will eventually happen.
@@ -33,219 +58,922 @@ import timber.log.Timber;
  */
 public class PersistentQueue<E extends Serializable> implements Queue<E> {
 
-    private Queue<E> mInMemoryQueue;
+    public static final long DEFAULT_COMPACTION_THRESHOLD = FileQueueStore.DEFAULT_COMPACTION_THRESHOLD;
+    public static final long DEFAULT_MAX_COMMIT_DELAY = 50;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    private static final int MSG_COMMIT = 1;
+    private static final int MSG_LOAD = 2;
+    //The part of a pending record which changes the whole element
+    private static final int PART_WHOLE = Integer.MIN_VALUE;
+
+    private IndexedPriorityQueue<E> mInMemoryQueue;
     private final UpdateHandler mUpdateHandler;
-    private File mFile;
-    private CountDownLatch mFlushLatch;
+    private final QueueStore<E> mStore;
     private boolean mIsBlocking = false;
+    //Guards the in memory queue and pending records, so records are journaled in the order the
+    //changes were made
+    private final Object mJournalLock = new Object();
+    private final List<PendingRecord<E>> mPendingRecords = new ArrayList<>();
+    //Elements the store has only partly loaded. Guarded by the journal lock.
+    private final Set<E> mUnhydrated = new HashSet<>();
+    private final CountDownLatch mLoadLatch = new CountDownLatch(1);
+    //Guards the store
+    private final Object mWriteLock = new Object();
+    //Set when a failed write may have left a partial record in the store. Guarded by the write lock.
+    private boolean mIsRewriteRequired;
+    private long mRecoveryTime;
+    private long mMaxCommitDelay = DEFAULT_MAX_COMMIT_DELAY;
+    private int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private boolean mIsCommitScheduled;
+    private boolean mIsBatchCommitScheduled;
+    private final AtomicLong mCommitCount = new AtomicLong();
+    private int mBatchDepth;
+    //Every change is numbered with a write generation, and the durable generation is the newest one
+    //known to be on disk
+    private final AtomicLong mWriteGeneration = new AtomicLong();
+    private final Object mDurableLock = new Object();
+    private long mDurableGeneration;
+    //Guarded by the durable lock
+    private int mFailedCommitCount;
+    private IOException mCommitException;
 
     public PersistentQueue(@NonNull File file) {
+        this(file, new SerializableQueueCodec<E>());
+    }
+
+    /**
+     * Creates a queue backed by a file. The queue is loaded in the background.
+     * @param file The file the queue is stored in
+     * @param codec Converts elements to and from the bytes stored in the file. An
+     *              {@link IndexedQueueCodec} lets elements be read on demand.
+     */
+    public PersistentQueue(@NonNull File file, @NonNull QueueCodec<E> codec) {
+        this(new FileQueueStore<>(file, codec));
+    }
+
+    /**
+     * Creates a queue persisted by a store. The queue is loaded in the background.
+     * @param store The store the queue is loaded from and persisted to
+     */
+    public PersistentQueue(@NonNull QueueStore<E> store) {
         HandlerThread thread = new HandlerThread("PersistentQueue");
         thread.start();
-        mFile = file;
+        mStore = store;
 
-        loadQueueIntoMemory();
         Looper updateLooper = thread.getLooper();
         mUpdateHandler = new UpdateHandler(updateLooper);
+        mUpdateHandler.sendEmptyMessage(MSG_LOAD);
+    }
+
+    /**
+     * @return True once the queue has been loaded from disk
+     */
+    public boolean isLoaded() {
+        return mLoadLatch.getCount() == 0;
+    }
+
+    /**
+     * Blocks until the queue has been loaded from disk. Every operation on the queue waits for this
+     * itself, so it's only needed to wait for the queue without using it.
+     */
+    public void awaitLoaded() {
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                mLoadLatch.await();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
     public int size() {
+        awaitLoaded();
         return mInMemoryQueue.size();
     }
 
     @Override
     public boolean isEmpty() {
+        awaitLoaded();
         return mInMemoryQueue.isEmpty();
     }
 
     @Override
     public boolean contains(Object o) {
+        awaitLoaded();
         return mInMemoryQueue.contains(o);
     }
 
+    /**
+     * Iterates over a copy of the queue. Every element is read from disk first, so
+     * {@link #indexSnapshot()} is cheaper when the indexed fields are enough.
+     */
     @NonNull
     @Override
     public Iterator<E> iterator() {
+        hydrateAll();
         return mInMemoryQueue.iterator();
     }
 
     @NonNull
     @Override
     public Object[] toArray() {
+        hydrateAll();
         return mInMemoryQueue.toArray();
     }
 
     @NonNull
     @Override
     public <T> T[] toArray(T[] a) {
+        hydrateAll();
         return mInMemoryQueue.toArray(a);
     }
 
+    /**
+     * Lists the queue without reading the elements which so far have only been read from the
+     * snapshot index. Those elements only hold the fields written by
+     * {@link IndexedQueueCodec#encodeIndex(Object)}, use {@link #find(Object)} to get the full element.
+     * @return The elements in no particular order
+     */
+    public List<E> indexSnapshot() {
+        awaitLoaded();
+        return new ArrayList<>(mInMemoryQueue);
+    }
+
     @Override
     public boolean add(E e) {
-        if(mInMemoryQueue.add(e)){
-            updateFileStore();
-            return true;
+        awaitLoaded();
+        synchronized (mJournalLock) {
+            if (!mInMemoryQueue.add(e)) {
+                return false;
+            }
+            addPendingRecord(QueueStore.CHANGE_ADD, e);
         }
-        return false;
+        updateFileStore();
+        return true;
     }
 
     @Override
     public boolean remove(Object o) {
+        awaitLoaded();
+        synchronized (mJournalLock) {
+            if (!mInMemoryQueue.remove(o)) {
+                return false;
+            }
+            mUnhydrated.remove(o);
+            //noinspection unchecked
+            addPendingRecord(QueueStore.CHANGE_REMOVE, (E) o);
+        }
+        updateFileStore();
+        return true;
+    }
 
-        if(mInMemoryQueue.remove(o)){
-            updateFileStore();
-            return true;
+    /**
+     * @return The comparator ordering the queue, or null if it uses the natural ordering of its elements
+     */
+    public Comparator<? super E> comparator() {
+        awaitLoaded();
+        return mInMemoryQueue.comparator();
+    }
+
+    /**
+     * Changes how the queue is ordered. The ordering isn't persisted, so it must be set each time
+     * the queue is created. Elements which are only indexed are ordered by their indexed fields.
+     * @param comparator The comparator to order the queue by, or null for the natural ordering
+     */
+    public void setComparator(Comparator<? super E> comparator) {
+        awaitLoaded();
+        synchronized (mJournalLock) {
+            mInMemoryQueue.setComparator(comparator);
+        }
+    }
+
+    /**
+     * Finds a queued element without scanning the queue
+     * @param o An object equal to the element, for example a DownloadTask with the same tag
+     * @return The queued element, or null if there is none
+     */
+    public E find(Object o) {
+        awaitLoaded();
+        return hydrate(mInMemoryQueue.find(o));
+    }
+
+    /**
+     * Replaces a queued element with an updated copy and moves it to the position its ordering now
+     * requires, for example after its priority has changed. The change is persisted like any other.
+     * @param e The updated element, equal to the queued one
+     * @return True if an equal element was queued
+     */
+    public boolean update(E e) {
+        awaitLoaded();
+        synchronized (mJournalLock) {
+            if (!mInMemoryQueue.update(e)) {
+                return false;
+            }
+            mUnhydrated.remove(e);
+            addPendingRecord(QueueStore.CHANGE_UPDATE, e);
+        }
+        updateFileStore();
+        return true;
+    }
+
+    /**
+     * Changes a queued element in place and moves it to the position its ordering now requires. Unlike
+     * {@link #update(Serializable)}, the element is changed under the queue's lock, so it is never
+     * compared with the change half made. The change is persisted like any other.
+     * @param o An object equal to the element, for example a DownloadTask with the same tag
+     * @param change The change to make, which must not change what the element is equal to
+     * @return True if an equal element was queued
+     */
+    public boolean update(Object o, ElementChange<? super E> change) {
+        awaitLoaded();
+        while (true) {
+            //The element is read in full first, as the whole element is persisted
+            E element = find(o);
+            if (element == null) {
+                return false;
+            }
+            synchronized (mJournalLock) {
+                if (mInMemoryQueue.find(element) == element) {
+                    mInMemoryQueue.update(element, change);
+                    addPendingRecord(QueueStore.CHANGE_UPDATE, element);
+                    break;
+                }
+            }
+        }
+        updateFileStore();
+        return true;
+    }
+
+    /**
+     * Persists a change already made to one part of a queued element, for example the status of one
+     * of a task's items. Stores which implement {@link PartitionedQueueStore} write only the part,
+     * others write the whole element. The change must not affect the ordering of the element, use
+     * {@link #update(Object, ElementChange)} for that.
+     * @param o An object equal to the element
+     * @param part The part changed, numbered by the element type
+     * @return True if an equal element was queued
+     */
+    public boolean updatePart(Object o, int part) {
+        awaitLoaded();
+        while (true) {
+            //Partly loaded elements are read in full first, in case the whole element is written
+            E element = find(o);
+            if (element == null) {
+                return false;
+            }
+            synchronized (mJournalLock) {
+                if (mInMemoryQueue.find(element) == element) {
+                    addPendingRecord(QueueStore.CHANGE_UPDATE, element, part);
+                    break;
+                }
+            }
         }
-        return false;
+        updateFileStore();
+        return true;
+    }
+
+    /**
+     * Finds the first element in the queue's order which a filter accepts, without sorting or copying
+     * the queue. Like {@link #indexSnapshot()}, the element may only hold its indexed fields.
+     * @param filter Called with each element in order until it accepts one. It is called under the
+     *               queue's lock, so must be quick and must not use the queue.
+     * @return The first element accepted, or null if there is none
+     */
+    public E findFirst(Filter<? super E> filter) {
+        awaitLoaded();
+        return mInMemoryQueue.findFirst(filter);
     }
 
     @Override
     public boolean containsAll(Collection<?> c) {
+        awaitLoaded();
         return mInMemoryQueue.containsAll(c);
     }
 
+    /**
+     * Adds every element of a collection, persisting them together in a single write
+     * @param c The elements to add
+     * @return True if the queue changed
+     */
     @Override
     public boolean addAll(Collection<? extends E> c) {
-        //Modifier
-        return mInMemoryQueue.addAll(c);
+        awaitLoaded();
+        boolean isModified = false;
+        synchronized (mJournalLock) {
+            for (E e : c) {
+                if (mInMemoryQueue.add(e)) {
+                    addPendingRecord(QueueStore.CHANGE_ADD, e);
+                    isModified = true;
+                }
+            }
+        }
+        if (isModified) {
+            updateFileStore();
+        }
+        return isModified;
     }
 
+    /**
+     * Removes every element equal to one in a collection, persisting the removals in a single write
+     * @param c The elements to remove
+     * @return True if the queue changed
+     */
     @Override
     public boolean removeAll(Collection<?> c) {
-        //Modifier
-        return mInMemoryQueue.removeAll(c);
+        awaitLoaded();
+        boolean isModified = false;
+        synchronized (mJournalLock) {
+            for (Object o : c) {
+                E e = mInMemoryQueue.find(o);
+                if (e != null && mInMemoryQueue.remove(e)) {
+                    mUnhydrated.remove(e);
+                    addPendingRecord(QueueStore.CHANGE_REMOVE, e);
+                    isModified = true;
+                }
+            }
+        }
+        if (isModified) {
+            updateFileStore();
+        }
+        return isModified;
     }
 
+    /**
+     * Removes every element not in a collection, persisting the removals in a single write
+     * @param c The elements to keep
+     * @return True if the queue changed
+     */
     @Override
     public boolean retainAll(Collection<?> c) {
-        //Modifier
-        return mInMemoryQueue.retainAll(c);
+        awaitLoaded();
+        boolean isModified = false;
+        synchronized (mJournalLock) {
+            for (E e : mInMemoryQueue) {
+                if (!c.contains(e) && mInMemoryQueue.remove(e)) {
+                    mUnhydrated.remove(e);
+                    addPendingRecord(QueueStore.CHANGE_REMOVE, e);
+                    isModified = true;
+                }
+            }
+        }
+        if (isModified) {
+            updateFileStore();
+        }
+        return isModified;
+    }
+
+    /**
+     * Applies several changes as one batch. No other change to the queue is interleaved with the
+     * batch, and the whole batch is persisted in a single write once the mutation returns. Changes
+     * made before an exception is thrown by the mutation are kept, and persisted.
+     * @param mutation The changes to make, using the queue passed to it
+     */
+    public void mutate(Mutation<E> mutation) {
+        awaitLoaded();
+        synchronized (mJournalLock) {
+            mBatchDepth++;
+            try {
+                mutation.apply(this);
+            } finally {
+                mBatchDepth--;
+            }
+        }
+        updateFileStore();
     }
 
     @Override
     public void clear() {
-        mInMemoryQueue.clear();
+        awaitLoaded();
+        synchronized (mJournalLock) {
+            mInMemoryQueue.clear();
+            mUnhydrated.clear();
+            addPendingRecord(QueueStore.CHANGE_CLEAR, null);
+        }
         updateFileStore();
     }
 
     @Override
     public boolean offer(E e) {
-        if (mInMemoryQueue.offer(e)) {
-            updateFileStore();
-            return true;
+        awaitLoaded();
+        synchronized (mJournalLock) {
+            if (!mInMemoryQueue.offer(e)) {
+                return false;
+            }
+            addPendingRecord(QueueStore.CHANGE_ADD, e);
         }
-        return false;
+        updateFileStore();
+        return true;
     }
 
     @Override
     public E remove() {
-        E item = mInMemoryQueue.remove();
-        updateFileStore();
-
+        E item = poll();
+        if (item == null) {
+            throw new NoSuchElementException();
+        }
         return item;
     }
 
     @Override
     public E poll() {
-        E item = mInMemoryQueue.poll();
+        E item;
+        while (true) {
+            //The head is read before it's removed, so it can't be lost to a snapshot replacing the file it's in
+            item = peek();
+            if (item == null) {
+                return null;
+            }
+            synchronized (mJournalLock) {
+                if (mInMemoryQueue.peek() == item) {
+                    mInMemoryQueue.poll();
+                    addPendingRecord(QueueStore.CHANGE_REMOVE, item);
+                    break;
+                }
+            }
+        }
         updateFileStore();
         return item;
     }
 
     private void updateFileStore() {
+        synchronized (mJournalLock) {
+            if (mBatchDepth > 0) {
+                //The batch is persisted as a whole once it ends
+                return;
+            }
+        }
+
         if(mIsBlocking){
             updatePersistentStore();
-        } else {
-            mUpdateHandler.sendMessage(mUpdateHandler.obtainMessage());
+            return;
         }
+
+        //Changes are committed together, either once the batch is full or after the commit delay
+        long commitDelay;
+        synchronized (mJournalLock) {
+            if (mPendingRecords.size() >= mMaxBatchSize && !mIsBatchCommitScheduled) {
+                mIsBatchCommitScheduled = true;
+                commitDelay = 0;
+            } else if (!mIsCommitScheduled) {
+                mIsCommitScheduled = true;
+                commitDelay = mMaxCommitDelay;
+            } else {
+                return;
+            }
+        }
+        mUpdateHandler.sendEmptyMessageDelayed(MSG_COMMIT, commitDelay);
     }
 
     @Override
     public E element() {
-        return mInMemoryQueue.element();
+        E item = peek();
+        if (item == null) {
+            throw new NoSuchElementException();
+        }
+        return item;
     }
 
     @Override
     public E peek() {
-        return mInMemoryQueue.peek();
+        awaitLoaded();
+        while (true) {
+            E item = mInMemoryQueue.peek();
+            if (item == null) {
+                return null;
+            }
+            item = hydrate(item);
+            if (item != null) {
+                return item;
+            }
+        }
     }
 
-    private void loadQueueIntoMemory(){
-        if(mFile.exists()) {
+    /**
+     * Reads the rest of an element which the store has only partly loaded. An element which can't
+     * be read is dropped from the queue.
+     * @param element A queued element
+     * @return The full element, or null if it couldn't be read
+     */
+    private E hydrate(E element) {
+        if (element == null) {
+            return null;
+        }
+
+        while (true) {
+            synchronized (mJournalLock) {
+                if (!mUnhydrated.contains(element)) {
+                    return mInMemoryQueue.find(element);
+                }
+            }
+
+            E hydratedElement;
             try {
-                FileInputStream fileInputStream = new FileInputStream(mFile);
-                ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-                //noinspection unchecked
-                mInMemoryQueue = (Queue<E>) objectInputStream.readObject(); 
-                objectInputStream.close();
-            } catch (IOException | ClassNotFoundException e) {
-                mInMemoryQueue = new PriorityBlockingQueue<>();
+                hydratedElement = mStore.hydrate(element);
+            } catch (IOException e) {
+                synchronized (mJournalLock) {
+                    if (!mUnhydrated.contains(element)) {
+                        //Replaced or removed while it was being read
+                        continue;
+                    }
+                    Timber.e("hydrate: Unable to read queue entry, dropping it", e);
+                    mUnhydrated.remove(element);
+                    mInMemoryQueue.remove(element);
+                    addPendingRecord(QueueStore.CHANGE_REMOVE, element);
+                }
+                updateFileStore();
+                return null;
             }
-        } else {
-            mInMemoryQueue = new PriorityBlockingQueue<>();
+
+            //Elements are never marked as partly loaded again, so the element read is still current
+            //unless it has been replaced or removed in the meantime
+            synchronized (mJournalLock) {
+                if (mUnhydrated.remove(element)) {
+                    mInMemoryQueue.update(hydratedElement);
+                    return hydratedElement;
+                }
+            }
+        }
+    }
+
+    private void hydrateAll() {
+        awaitLoaded();
+        List<E> unhydratedElements;
+        synchronized (mJournalLock) {
+            if (mUnhydrated.isEmpty()) {
+                return;
+            }
+            unhydratedElements = new ArrayList<>(mUnhydrated);
+        }
+        for (int i = 0; i < unhydratedElements.size(); i++) {
+            hydrate(unhydratedElements.get(i));
+        }
+    }
+
+    private void loadQueueIntoMemory(){
+        long startTime = System.currentTimeMillis();
+        mInMemoryQueue = new IndexedPriorityQueue<>();
+        try {
+            if (mStore.load(mInMemoryQueue, mUnhydrated)) {
+                rewriteStore();
+            }
+        } catch (IOException e) {
+            Timber.e("loadQueueIntoMemory: Unable to open queue store", e);
         }
+
+        mRecoveryTime = System.currentTimeMillis() - startTime;
+        Timber.i("loadQueueIntoMemory: Recovered %d entries in %d ms, %d left to read",
+                mInMemoryQueue.size(), mRecoveryTime, mUnhydrated.size());
+    }
+
+    /**
+     * @return The time in milliseconds it took to load the queue from its store
+     */
+    public long getRecoveryTime() {
+        awaitLoaded();
+        return mRecoveryTime;
     }
 
     public void setBlocking(boolean isBlocking) {
         mIsBlocking = isBlocking;
     }
 
+    /**
+     * Sets the journal size that triggers a new snapshot, for queues stored in a {@link FileQueueStore}
+     * @param compactionThreshold The journal size in bytes
+     * @see FileQueueStore#setCompactionThreshold(long)
+     */
+    public void setCompactionThreshold(long compactionThreshold) {
+        if (mStore instanceof FileQueueStore) {
+            ((FileQueueStore<E>) mStore).setCompactionThreshold(compactionThreshold);
+        }
+    }
+
+    /**
+     * Sets how long a change may wait to be written, so changes made close together are written
+     * to disk together
+     * @param maxCommitDelay The maximum delay in milliseconds
+     */
+    public void setMaxCommitDelay(long maxCommitDelay) {
+        mMaxCommitDelay = Math.max(0, maxCommitDelay);
+    }
+
+    /**
+     * Sets the number of waiting changes which are written straight away instead of waiting for the
+     * commit delay
+     * @param maxBatchSize The maximum number of changes per write
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * @return The number of writes made to the journal, each covering one or more changes
+     */
+    public long getCommitCount() {
+        return mCommitCount.get();
+    }
+
+    /**
+     * Writes every change made before this call, blocking until it's on disk
+     */
     public void flushUpdates() {
-        while(mUpdateHandler.pendingCount > 0){
-            try {
-                mFlushLatch.await();
-            } catch (InterruptedException e) {
-                Timber.d("flushUpdates: thread was interrupted while waiting, reaquiring latch");
+        awaitLoaded();
+        long generation = mWriteGeneration.get();
+        updatePersistentStore();
+        if (getDurableGeneration() >= generation) {
+            Timber.d("flushUpdates: Flush was successful");
+        } else {
+            Timber.w("flushUpdates: Changes up to generation %d could not be written", generation);
+        }
+    }
+
+    /**
+     * Starts writing every change made before this call without blocking
+     * @return A future which completes with the write generation of the last change once it's on disk,
+     * or fails with the IOException of the store if a commit fails before then
+     */
+    public Future<Long> flush() {
+        long generation = mWriteGeneration.get();
+        int failedCommitCount;
+        synchronized (mDurableLock) {
+            failedCommitCount = mFailedCommitCount;
+        }
+        if (getDurableGeneration() < generation) {
+            mUpdateHandler.sendEmptyMessage(MSG_COMMIT);
+        }
+        return new DurableFuture(generation, failedCommitCount);
+    }
+
+    /**
+     * @return The write generation of the most recent change. Generations increase by one with every change.
+     */
+    public long getWriteGeneration() {
+        return mWriteGeneration.get();
+    }
+
+    /**
+     * @return The write generation of the most recent change known to be on disk
+     */
+    public long getDurableGeneration() {
+        synchronized (mDurableLock) {
+            return mDurableGeneration;
+        }
+    }
+
+    /**
+     * Must hold the journal lock, so generations are assigned in the order changes are made
+     */
+    private void addPendingRecord(byte type, E element) {
+        addPendingRecord(type, element, PART_WHOLE);
+    }
+
+    private void addPendingRecord(byte type, E element, int part) {
+        mPendingRecords.add(new PendingRecord<>(type, element, part, mWriteGeneration.incrementAndGet()));
+    }
+
+    private void onDurable(long generation) {
+        synchronized (mDurableLock) {
+            if (generation > mDurableGeneration) {
+                mDurableGeneration = generation;
+                mDurableLock.notifyAll();
             }
         }
+    }
 
-        Timber.d("flushUpdates: Flush was successful");
+    private void onCommitFailed(IOException e) {
+        synchronized (mDurableLock) {
+            mFailedCommitCount++;
+            mCommitException = e;
+            mDurableLock.notifyAll();
+        }
     }
 
-    private final class UpdateHandler extends Handler {
-        private int pendingCount = 0;
+    private final class DurableFuture implements Future<Long> {
 
-        UpdateHandler(Looper looper) {
-            super(looper);
+        private final long mGeneration;
+        //Commits which failed before the future was created don't fail it, as the changes are retried
+        private final int mFailedCommitCount;
+
+        DurableFuture(long generation, int failedCommitCount) {
+            mGeneration = generation;
+            mFailedCommitCount = failedCommitCount;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized (mDurableLock) {
+                return mDurableGeneration >= mGeneration || mFailedCommitCount > this.mFailedCommitCount;
+            }
         }
 
         @Override
-        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
-            if(pendingCount == 0){
-                mFlushLatch = new CountDownLatch(1);
+        public Long get() throws InterruptedException, ExecutionException {
+            synchronized (mDurableLock) {
+                while (mDurableGeneration < mGeneration) {
+                    throwIfFailed();
+                    mDurableLock.wait();
+                }
             }
-            pendingCount++;
-            return super.sendMessageAtTime(msg, uptimeMillis);
+            return mGeneration;
         }
 
         @Override
-        public void dispatchMessage(Message msg) {
-            pendingCount --;
-            super.dispatchMessage(msg);
-            if(pendingCount == 0){
-                mFlushLatch.countDown();
+        public Long get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (mDurableLock) {
+                while (mDurableGeneration < mGeneration) {
+                    throwIfFailed();
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(mDurableLock, remaining);
+                }
             }
+            return mGeneration;
+        }
 
+        /**
+         * Must hold the durable lock
+         */
+        private void throwIfFailed() throws ExecutionException {
+            if (PersistentQueue.this.mFailedCommitCount > mFailedCommitCount) {
+                throw new ExecutionException(mCommitException);
+            }
+        }
+    }
+
+    private final class UpdateHandler extends Handler {
+
+        UpdateHandler(Looper looper) {
+            super(looper);
         }
 
         @Override
         public void handleMessage(Message msg) {
+            if (msg.what == MSG_LOAD) {
+                try {
+                    loadQueueIntoMemory();
+                } finally {
+                    mLoadLatch.countDown();
+                }
+                return;
+            }
             updatePersistentStore();
         }
     }
 
     private void updatePersistentStore() {
-        try {
-            FileOutputStream fileOutputStream = new FileOutputStream(mFile);
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-            objectOutputStream.writeObject(mInMemoryQueue);
-            objectOutputStream.flush();
-            objectOutputStream.close();
-            Timber.d("handleMessage: Updated persistent storage");
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized (mWriteLock) {
+            List<PendingRecord<E>> pendingRecords;
+            synchronized (mJournalLock) {
+                mIsCommitScheduled = false;
+                mIsBatchCommitScheduled = false;
+                if (mPendingRecords.isEmpty() && !mIsRewriteRequired) {
+                    return;
+                }
+                //Kept until they're committed, so they aren't lost if the write fails
+                pendingRecords = new ArrayList<>(mPendingRecords);
+            }
+
+            try {
+                if (mIsRewriteRequired) {
+                    //Records appended after a partial one would be lost, so the store is replaced instead
+                    rewriteStore();
+                    mIsRewriteRequired = false;
+                    return;
+                }
+
+                for (int i = 0; i < pendingRecords.size(); i++) {
+                    PendingRecord<E> pendingRecord = pendingRecords.get(i);
+                    if (pendingRecord.mPart != PART_WHOLE && mStore instanceof PartitionedQueueStore) {
+                        //noinspection unchecked
+                        ((PartitionedQueueStore<E>) mStore).writePart(pendingRecord.mElement, pendingRecord.mPart);
+                    } else {
+                        mStore.write(pendingRecord.mType, pendingRecord.mElement);
+                    }
+                }
+                mStore.commit();
+                synchronized (mJournalLock) {
+                    //Records are only added to the end while the write lock is held
+                    mPendingRecords.subList(0, pendingRecords.size()).clear();
+                }
+                mCommitCount.incrementAndGet();
+                onDurable(pendingRecords.get(pendingRecords.size() - 1).mGeneration);
+                Timber.d("handleMessage: Updated persistent storage with %d changes", pendingRecords.size());
+
+                if (mStore.isRewriteDue()) {
+                    rewriteStore();
+                }
+            } catch (IOException e) {
+                Timber.e("updatePersistentStore: Unable to write changes, rewriting the whole store instead", e);
+                try {
+                    rewriteStore();
+                    mIsRewriteRequired = false;
+                } catch (IOException snapshotException) {
+                    Timber.e("updatePersistentStore: Unable to rewrite the store, changes will be retried", snapshotException);
+                    mIsRewriteRequired = true;
+                    onCommitFailed(snapshotException);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the store with the whole queue, for example to compact it. Must hold
+     * the write lock.
+     */
+    private void rewriteStore() throws IOException {
+        //Changes made before the copy is taken are part of it, so their records are dropped once it's
+        //written. Until then they're kept, in case the rewrite fails.
+        List<E> elements;
+        Set<E> unhydrated;
+        long writeGeneration;
+        int pendingRecordCount;
+        synchronized (mJournalLock) {
+            elements = new ArrayList<>(mInMemoryQueue);
+            unhydrated = new HashSet<>(mUnhydrated);
+            writeGeneration = mWriteGeneration.get();
+            pendingRecordCount = mPendingRecords.size();
+        }
+
+        mStore.rewrite(elements, unhydrated);
+        synchronized (mJournalLock) {
+            mPendingRecords.subList(0, pendingRecordCount).clear();
+        }
+        onDurable(writeGeneration);
+    }
+
+    /**
+     * A batch of changes applied by {@link #mutate(Mutation)}
+     *
+     * @param <E> The class type stored in the queue
+     */
+    public interface Mutation<E extends Serializable> {
+
+        /**
+         * Makes the changes of the batch
+         * @param queue The queue to change
+         */
+        void apply(PersistentQueue<E> queue);
+    }
+
+    /**
+     * A change to a single element made by {@link #update(Object, ElementChange)}
+     *
+     * @param <E> The class type stored in the queue
+     */
+    public interface ElementChange<E> {
+
+        /**
+         * Makes the change
+         * @param element The queued element
+         */
+        void apply(E element);
+    }
+
+    /**
+     * Chooses an element for {@link #findFirst(Filter)}
+     *
+     * @param <E> The class type stored in the queue
+     */
+    public interface Filter<E> {
+
+        /**
+         * @param element A queued element
+         * @return True to choose the element
+         */
+        boolean accept(E element);
+    }
+
+    private static class PendingRecord<E> {
+        private final byte mType;
+        private final E mElement;
+        private final int mPart;
+        private final long mGeneration;
+
+        PendingRecord(byte type, E element, int part, long generation) {
+            mType = type;
+            mGeneration = generation;
+            mElement = element;
+            mPart = part;
         }
     }
 }
@@ -0,0 +1,25 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.IOException;
+
+/**
+ * Converts the elements of a {@link PersistentQueue} to and from the bytes stored on disk
+ *
+ * @param <E> The class type stored in the queue
+ */
+public interface QueueCodec<E> {
+
+    /**
+     * @param element The element to encode
+     * @return The encoded element
+     * @throws IOException If the element can't be encoded
+     */
+    byte[] encode(E element) throws IOException;
+
+    /**
+     * @param data Bytes returned by {@link #encode(Object)}, possibly by another version of the codec
+     * @return The decoded element
+     * @throws IOException If the data is corrupt
+     */
+    E decode(byte[] data) throws IOException;
+}
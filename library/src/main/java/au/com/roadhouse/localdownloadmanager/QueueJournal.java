@@ -0,0 +1,262 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * An append only log of the changes made to a {@link FileQueueStore} since its last snapshot. Each
+ * change is written as a small record, so persisting a change costs the same however large the
+ * queue is. The log header identifies the snapshot it applies to, and every record carries a
+ * checksum so a record torn by a crash is dropped along with anything after it.
+ *
+ * Elements are stored with the queue's {@link QueueCodec}. With an {@link IndexedQueueCodec} a removal
+ * is stored as the element's index entry, which identifies it without encoding the whole element,
+ * and is replayed by key.
+ *
+ * @param <E> The class type stored in the queue
+ */
+class QueueJournal<E extends Serializable> {
+
+    //Records are the changes passed to the store, and keep their values on disk
+    static final byte RECORD_ADD = QueueStore.CHANGE_ADD;
+    static final byte RECORD_REMOVE = QueueStore.CHANGE_REMOVE;
+    static final byte RECORD_CLEAR = QueueStore.CHANGE_CLEAR;
+    static final byte RECORD_UPDATE = QueueStore.CHANGE_UPDATE;
+    //A removal stored as the index entry of the element
+    static final byte RECORD_REMOVE_KEY = 5;
+
+    private static final int MAGIC = 0x50514a4c;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4;
+
+    private final File mFile;
+    private final QueueCodec<E> mCodec;
+    private final IndexedQueueCodec<E> mIndexedCodec;
+    private FileOutputStream mFileOutputStream;
+    private DataOutputStream mOutputStream;
+    private long mLength;
+
+    QueueJournal(File file, QueueCodec<E> codec) {
+        mFile = file;
+        mCodec = codec;
+        //noinspection unchecked
+        mIndexedCodec = codec instanceof IndexedQueueCodec ? (IndexedQueueCodec<E>) codec : null;
+    }
+
+    /**
+     * Replays the log into a queue loaded from a snapshot, then opens the log for appending. A log
+     * written against a different snapshot is discarded.
+     * @param snapshotLength The length of the snapshot the queue was loaded from
+     * @param snapshotChecksum The CRC32 checksum of the snapshot
+     * @param queue The queue to apply the logged changes to
+     * @return The number of records replayed
+     * @throws IOException If the log can't be opened for appending
+     */
+    int open(long snapshotLength, long snapshotChecksum, Queue<E> queue) throws IOException {
+        if (!mFile.exists() || mFile.length() < HEADER_SIZE) {
+            reset(snapshotLength, snapshotChecksum);
+            return 0;
+        }
+
+        int recordCount = 0;
+        long validLength = HEADER_SIZE;
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            int version = inputStream.readInt() == MAGIC ? inputStream.readInt() : -1;
+            if (version != VERSION ||
+                    inputStream.readLong() != snapshotLength || inputStream.readLong() != snapshotChecksum) {
+                Timber.w("open: Journal doesn't match the snapshot, discarding it");
+                inputStream.close();
+                reset(snapshotLength, snapshotChecksum);
+                return 0;
+            }
+
+            long fileLength = mFile.length();
+            while (true) {
+                byte type = inputStream.readByte();
+                int payloadLength = inputStream.readInt();
+                if (payloadLength < 0 || validLength + RECORD_OVERHEAD + payloadLength > fileLength) {
+                    break;
+                }
+                byte[] payload = new byte[payloadLength];
+                inputStream.readFully(payload);
+                if (inputStream.readInt() != getChecksum(type, payload)) {
+                    break;
+                }
+
+                apply(queue, type, payload);
+                validLength += RECORD_OVERHEAD + payloadLength;
+                recordCount++;
+            }
+        } catch (EOFException e) {
+            //The end of the log, or a record cut short by a crash
+        } catch (IOException | ClassCastException e) {
+            Timber.w("open: Unreadable journal record, dropping the rest of the journal", e);
+        } finally {
+            inputStream.close();
+        }
+
+        if (validLength < mFile.length()) {
+            Timber.w("open: Dropping %d bytes of incomplete journal records", mFile.length() - validLength);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(mFile, "rw");
+            try {
+                randomAccessFile.setLength(validLength);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        mFileOutputStream = new FileOutputStream(mFile, true);
+        mOutputStream = new DataOutputStream(new BufferedOutputStream(mFileOutputStream));
+        mLength = validLength;
+        return recordCount;
+    }
+
+    /**
+     * Checks which snapshot the log on disk was written against, without replaying it
+     * @param snapshotLength The length of the snapshot
+     * @param snapshotChecksum The checksum of the snapshot
+     * @return True if the log applies to the snapshot
+     */
+    boolean isJournalFor(long snapshotLength, long snapshotChecksum) {
+        if (!mFile.exists() || mFile.length() < HEADER_SIZE) {
+            return false;
+        }
+
+        try {
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (inputStream.readInt() != MAGIC) {
+                    return false;
+                }
+                int version = inputStream.readInt();
+                return version == VERSION &&
+                        inputStream.readLong() == snapshotLength && inputStream.readLong() == snapshotChecksum;
+            } finally {
+                inputStream.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Appends a change to the log. Changes are buffered until {@link #flush()} is called.
+     * @param type One of the RECORD_ types
+     * @param element The element added or removed, or null for {@link #RECORD_CLEAR}
+     * @throws IOException If the record couldn't be written
+     */
+    void append(byte type, E element) throws IOException {
+        byte[] payload;
+        if (element == null) {
+            payload = new byte[0];
+        } else if (type == RECORD_REMOVE && mIndexedCodec != null) {
+            //Only the key is needed to find the element again
+            type = RECORD_REMOVE_KEY;
+            payload = mIndexedCodec.encodeIndex(element);
+        } else {
+            payload = mCodec.encode(element);
+        }
+
+        mOutputStream.writeByte(type);
+        mOutputStream.writeInt(payload.length);
+        mOutputStream.write(payload);
+        mOutputStream.writeInt(getChecksum(type, payload));
+        mLength += RECORD_OVERHEAD + payload.length;
+    }
+
+    /**
+     * Writes the buffered records and waits until they're on the storage device
+     * @throws IOException If the records couldn't be written
+     */
+    void flush() throws IOException {
+        mOutputStream.flush();
+        mFileOutputStream.getFD().sync();
+    }
+
+    /**
+     * Empties the log once a new snapshot has been written
+     * @param snapshotLength The length of the new snapshot
+     * @param snapshotChecksum The CRC32 checksum of the new snapshot
+     * @throws IOException If the log couldn't be rewritten
+     */
+    void reset(long snapshotLength, long snapshotChecksum) throws IOException {
+        close();
+        mFileOutputStream = new FileOutputStream(mFile, false);
+        mOutputStream = new DataOutputStream(new BufferedOutputStream(mFileOutputStream));
+        mOutputStream.writeInt(MAGIC);
+        mOutputStream.writeInt(VERSION);
+        mOutputStream.writeLong(snapshotLength);
+        mOutputStream.writeLong(snapshotChecksum);
+        mLength = HEADER_SIZE;
+        flush();
+    }
+
+    /**
+     * @return The length of the log in bytes, including buffered records
+     */
+    long length() {
+        return mLength;
+    }
+
+    void close() {
+        if (mOutputStream != null) {
+            try {
+                mOutputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mOutputStream = null;
+            mFileOutputStream = null;
+        }
+    }
+
+    private void apply(Queue<E> queue, byte type, byte[] payload) throws IOException {
+        switch (type) {
+            case RECORD_ADD:
+                queue.add(mCodec.decode(payload));
+                break;
+            case RECORD_REMOVE:
+                queue.remove(mCodec.decode(payload));
+                break;
+            case RECORD_REMOVE_KEY:
+                if (mIndexedCodec == null) {
+                    throw new IOException("Journal was written with an indexed codec");
+                }
+                //Equal to the queued element, as the index holds every field used by equals
+                queue.remove(mIndexedCodec.decodeIndex(payload));
+                break;
+            case RECORD_CLEAR:
+                queue.clear();
+                break;
+            case RECORD_UPDATE:
+                E element = mCodec.decode(payload);
+                queue.remove(element);
+                queue.add(element);
+                break;
+            default:
+                throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private static int getChecksum(byte type, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(type);
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+}
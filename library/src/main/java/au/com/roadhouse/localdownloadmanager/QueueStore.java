@@ -0,0 +1,78 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Where a {@link PersistentQueue} keeps its elements. The queue holds every element in memory and
+ * passes each change to its store, which must have made the changes durable once
+ * {@link #commit()} returns.
+ *
+ * A store can load elements with only the fields needed to identify and order them, and read the
+ * rest the first time the element is needed with {@link #hydrate(Object)}.
+ *
+ * Apart from {@link #hydrate(Object)}, which can be called from any thread, a store is only called
+ * from one thread at a time.
+ *
+ * @param <E> The class type stored in the queue
+ */
+public interface QueueStore<E> {
+
+    byte CHANGE_ADD = 1;
+    byte CHANGE_REMOVE = 2;
+    byte CHANGE_CLEAR = 3;
+    byte CHANGE_UPDATE = 4;
+
+    /**
+     * Loads the stored queue. Called once, before any other method.
+     * @param queue Receives the stored elements
+     * @param unhydrated Receives the elements which were only partly loaded
+     * @return True if the store should be rewritten with {@link #rewrite(List, Set)} straight away,
+     * for example to migrate it from an older format
+     * @throws IOException If the store can't be opened
+     */
+    boolean load(Queue<E> queue, Collection<E> unhydrated) throws IOException;
+
+    /**
+     * Reads the rest of a partly loaded element
+     * @param element An element passed to the unhydrated collection when the store was loaded
+     * @return The full element
+     * @throws IOException If the element can't be read, or is no longer stored
+     */
+    E hydrate(E element) throws IOException;
+
+    /**
+     * Records a change. Changes may be buffered until {@link #commit()} is called.
+     * @param type One of the CHANGE_ types
+     * @param element The element changed, or null for {@link #CHANGE_CLEAR}
+     * @throws IOException If the change couldn't be recorded
+     */
+    void write(byte type, E element) throws IOException;
+
+    /**
+     * Makes every change written so far durable
+     * @throws IOException If the changes couldn't be made durable
+     */
+    void commit() throws IOException;
+
+    /**
+     * @return True if the store has grown enough that it should be rewritten
+     */
+    boolean isRewriteDue();
+
+    /**
+     * Replaces the contents of the store, discarding any changes which haven't been committed
+     * @param elements Every element of the queue
+     * @param unhydrated The elements which are still only partly loaded, so should be kept as they are stored
+     * @throws IOException If the store couldn't be rewritten
+     */
+    void rewrite(List<E> elements, Set<E> unhydrated) throws IOException;
+
+    /**
+     * Releases the resources held by the store
+     */
+    void close();
+}
@@ -0,0 +1,39 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * The codec used by a {@link PersistentQueue} which isn't given one, storing elements with java
+ * serialization
+ *
+ * @param <E> The class type stored in the queue
+ */
+class SerializableQueueCodec<E extends Serializable> implements QueueCodec<E> {
+
+    @Override
+    public byte[] encode(E element) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+        objectOutputStream.writeObject(element);
+        objectOutputStream.close();
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    @Override
+    public E decode(byte[] data) throws IOException {
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            //noinspection unchecked
+            return (E) objectInputStream.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Unable to decode queue element", e);
+        } finally {
+            objectInputStream.close();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+/**
+ * A {@link DownloadEventListener} which ignores every event, so subclasses only override the
+ * callbacks they need
+ */
+public class SimpleDownloadEventListener implements DownloadEventListener {
+
+    @Override
+    public void onDownloadTaskQueued(DownloadTask downloadTask) {
+    }
+
+    @Override
+    public void onDownloadTaskProgress(String tag, long bytesDownloaded, long totalBytes, long bytesPerSecond) {
+    }
+
+    @Override
+    public void onDownloadTaskCancelled(DownloadTask downloadTask) {
+    }
+
+    @Override
+    public void onDownloadTaskError(DownloadTask downloadTask, int errorCode) {
+    }
+
+    @Override
+    public void onDownloadItemComplete(DownloadTask downloadTask, DownloadItem downloadItem) {
+    }
+
+    @Override
+    public void onDownloadTaskComplete(DownloadTask downloadTask) {
+    }
+}
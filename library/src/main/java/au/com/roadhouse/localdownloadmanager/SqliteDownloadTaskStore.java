@@ -0,0 +1,416 @@
+package au.com.roadhouse.localdownloadmanager;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+
+/**
+ * A {@link QueueStore} for download tasks backed by a SQLite database, an alternative to
+ * {@link FileQueueStore} for very large queues.
+ *
+ * Each task is a row of the tasks table, and each of its download items a row of the items table.
+ * A task row holds the task without its items, which are only stored in their own rows. Changes
+ * update the rows of the task changed, so the cost of a change doesn't depend on the size of the
+ * queue and the store never needs to be compacted. A change to the task or one of its items made
+ * with {@link PersistentQueue#updatePart(Object, int)} updates a single row, see
+ * {@link DownloadTask#PART_TASK}. Tasks are loaded with only their tag, priority, status and enqueue
+ * order, and the rest of a task and its items are read when it's hydrated.
+ *
+ * The tables are indexed by tag, status and priority, so the status of the queue can be queried
+ * without loading it, see {@link #getTaskCount(int)}. Queries only see changes which have been committed.
+ */
+public class SqliteDownloadTaskStore implements PartitionedQueueStore<DownloadTask> {
+
+    private static final int DATABASE_VERSION = 1;
+
+    private final DatabaseHelper mDatabaseHelper;
+    private SQLiteDatabase mDatabase;
+    private SQLiteStatement mInsertTaskStatement;
+    private SQLiteStatement mUpdateTaskStatement;
+    private SQLiteStatement mDeleteTaskStatement;
+    private SQLiteStatement mInsertItemStatement;
+    private SQLiteStatement mUpdateItemStatement;
+    private SQLiteStatement mDeleteItemsStatement;
+
+    /**
+     * Creates a store backed by a database in the app's database directory
+     * @param context The context used to open the database
+     * @param name The name of the database file
+     */
+    public SqliteDownloadTaskStore(@NonNull Context context, @NonNull String name) {
+        mDatabaseHelper = new DatabaseHelper(context.getApplicationContext(), name);
+    }
+
+    @Override
+    public boolean load(Queue<DownloadTask> queue, Collection<DownloadTask> unhydrated) throws IOException {
+        try {
+            mDatabase = mDatabaseHelper.getWritableDatabase();
+            mInsertTaskStatement = mDatabase.compileStatement("INSERT OR REPLACE INTO tasks " +
+                    "(tag, priority, status, sequence_number, enqueue_time, data) VALUES (?, ?, ?, ?, ?, ?)");
+            mUpdateTaskStatement = mDatabase.compileStatement("UPDATE tasks SET " +
+                    "priority = ?, status = ?, sequence_number = ?, enqueue_time = ?, data = ? WHERE tag = ?");
+            mDeleteTaskStatement = mDatabase.compileStatement("DELETE FROM tasks WHERE tag = ?");
+            mInsertItemStatement = mDatabase.compileStatement("INSERT OR REPLACE INTO items " +
+                    "(task_tag, position, url, status, download_size, bytes_downloaded, error_code, data) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            mUpdateItemStatement = mDatabase.compileStatement("UPDATE items SET " +
+                    "url = ?, status = ?, download_size = ?, bytes_downloaded = ?, error_code = ?, data = ? WHERE task_tag = ? AND position = ?");
+            mDeleteItemsStatement = mDatabase.compileStatement("DELETE FROM items WHERE task_tag = ? AND position >= ?");
+
+            Cursor cursor = mDatabase.rawQuery("SELECT tag, priority, status, sequence_number, enqueue_time FROM tasks", null);
+            try {
+                while (cursor.moveToNext()) {
+                    DownloadTask downloadTask = new DownloadTask(cursor.getString(0));
+                    downloadTask.setPriority(cursor.getInt(1));
+                    downloadTask.setStatus(cursor.getInt(2));
+                    downloadTask.setEnqueued(cursor.getLong(3), cursor.getLong(4));
+                    queue.add(downloadTask);
+                    unhydrated.add(downloadTask);
+                }
+            } finally {
+                cursor.close();
+            }
+            return false;
+        } catch (SQLException e) {
+            throw new IOException("Unable to open download task database", e);
+        }
+    }
+
+    @Override
+    public DownloadTask hydrate(DownloadTask downloadTask) throws IOException {
+        try {
+            DownloadTask hydratedTask;
+            String[] tag = new String[]{downloadTask.getTag()};
+            Cursor cursor = mDatabase.rawQuery("SELECT data FROM tasks WHERE tag = ?", tag);
+            try {
+                if (!cursor.moveToFirst()) {
+                    throw new IOException("Download task " + downloadTask.getTag() + " isn't stored");
+                }
+                hydratedTask = DownloadTask.fromByteArray(cursor.getBlob(0));
+            } finally {
+                cursor.close();
+            }
+
+            cursor = mDatabase.rawQuery("SELECT data FROM items WHERE task_tag = ? ORDER BY position", tag);
+            try {
+                List<DownloadItem> downloadItems = hydratedTask.getDownloadItems();
+                while (cursor.moveToNext()) {
+                    downloadItems.add(DownloadItem.fromByteArray(cursor.getBlob(0)));
+                }
+            } finally {
+                cursor.close();
+            }
+            return hydratedTask;
+        } catch (SQLException e) {
+            throw new IOException("Unable to read download task", e);
+        }
+    }
+
+    /**
+     * Applies a change to the rows of the task changed. Changes are applied in a transaction which
+     * {@link #commit()} completes.
+     */
+    @Override
+    public void write(byte type, DownloadTask downloadTask) throws IOException {
+        try {
+            if (!mDatabase.inTransaction()) {
+                mDatabase.beginTransaction();
+            }
+
+            switch (type) {
+                case CHANGE_ADD:
+                    insertTask(downloadTask);
+                    break;
+                case CHANGE_REMOVE:
+                    deleteTask(downloadTask.getTag());
+                    break;
+                case CHANGE_CLEAR:
+                    mDatabase.execSQL("DELETE FROM items");
+                    mDatabase.execSQL("DELETE FROM tasks");
+                    break;
+                case CHANGE_UPDATE:
+                    updateTask(downloadTask);
+                    break;
+                default:
+                    throw new IOException("Unknown change " + type);
+            }
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Unable to write download task", e);
+        }
+    }
+
+    /**
+     * Updates the task row for {@link DownloadTask#PART_TASK}, or the row of the item at the position
+     * of the part
+     */
+    @Override
+    public void writePart(DownloadTask downloadTask, int part) throws IOException {
+        try {
+            if (!mDatabase.inTransaction()) {
+                mDatabase.beginTransaction();
+            }
+
+            if (part == DownloadTask.PART_TASK) {
+                if (!updateTaskRow(downloadTask)) {
+                    insertTask(downloadTask);
+                }
+            } else if (part >= 0 && part < downloadTask.getDownloadItems().size()) {
+                updateItem(downloadTask.getTag(), part, downloadTask.getDownloadItems().get(part));
+            } else {
+                throw new IOException("Download task " + downloadTask.getTag() + " has no item " + part);
+            }
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Unable to write download task", e);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        if (!mDatabase.inTransaction()) {
+            return;
+        }
+
+        try {
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Unable to commit download tasks", e);
+        }
+    }
+
+    @Override
+    public boolean isRewriteDue() {
+        return false;
+    }
+
+    /**
+     * Replaces every stored task. Tasks which are still only partly loaded keep their rows.
+     */
+    @Override
+    public void rewrite(List<DownloadTask> downloadTasks, Set<DownloadTask> unhydrated) throws IOException {
+        rollback();
+        try {
+            mDatabase.beginTransaction();
+            try {
+                Set<String> tags = new HashSet<>();
+                for (int i = 0; i < downloadTasks.size(); i++) {
+                    DownloadTask downloadTask = downloadTasks.get(i);
+                    tags.add(downloadTask.getTag());
+                    if (!unhydrated.contains(downloadTask)) {
+                        deleteTask(downloadTask.getTag());
+                        insertTask(downloadTask);
+                    }
+                }
+
+                List<String> removedTags = new ArrayList<>();
+                Cursor cursor = mDatabase.rawQuery("SELECT tag FROM tasks", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        if (!tags.contains(cursor.getString(0))) {
+                            removedTags.add(cursor.getString(0));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                for (int i = 0; i < removedTags.size(); i++) {
+                    deleteTask(removedTags.get(i));
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } catch (SQLException e) {
+            throw new IOException("Unable to rewrite download tasks", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        rollback();
+        mDatabaseHelper.close();
+    }
+
+    /**
+     * @param status One of the DownloadTask status constants
+     * @return The number of stored tasks with the status
+     */
+    public int getTaskCount(int status) {
+        return (int) queryForLong("SELECT COUNT(*) FROM tasks WHERE status = ?", status);
+    }
+
+    /**
+     * @param status One of the DownloadItem status constants
+     * @return The number of download items of stored tasks with the status
+     */
+    public int getItemCount(int status) {
+        return (int) queryForLong("SELECT COUNT(*) FROM items WHERE status = ?", status);
+    }
+
+    /**
+     * @param status One of the DownloadTask status constants
+     * @return The tags of the stored tasks with the status, highest priority first
+     */
+    public List<String> getTaskTags(int status) {
+        List<String> tags = new ArrayList<>();
+        Cursor cursor = mDatabaseHelper.getReadableDatabase().rawQuery(
+                "SELECT tag FROM tasks WHERE status = ? ORDER BY priority, sequence_number",
+                new String[]{String.valueOf(status)});
+        try {
+            while (cursor.moveToNext()) {
+                tags.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tags;
+    }
+
+    private long queryForLong(String query, int status) {
+        Cursor cursor = mDatabaseHelper.getReadableDatabase().rawQuery(query, new String[]{String.valueOf(status)});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insertTask(DownloadTask downloadTask) {
+        mInsertTaskStatement.bindString(1, downloadTask.getTag());
+        mInsertTaskStatement.bindLong(2, downloadTask.getPriority());
+        mInsertTaskStatement.bindLong(3, downloadTask.getStatus());
+        mInsertTaskStatement.bindLong(4, downloadTask.getSequenceNumber());
+        mInsertTaskStatement.bindLong(5, downloadTask.getEnqueueTime());
+        mInsertTaskStatement.bindBlob(6, downloadTask.toByteArrayWithoutItems());
+        mInsertTaskStatement.executeInsert();
+
+        List<DownloadItem> downloadItems = downloadTask.getDownloadItems();
+        for (int i = 0; i < downloadItems.size(); i++) {
+            bindItem(mInsertItemStatement, downloadItems.get(i), downloadTask.getTag(), i, 1);
+            mInsertItemStatement.executeInsert();
+        }
+    }
+
+    /**
+     * Updates the row of a task and the rows of all of its items in place, only inserting or deleting
+     * item rows if the number of items has changed. Changes to the task or a single item are written
+     * with {@link #writePart(DownloadTask, int)} instead.
+     */
+    private void updateTask(DownloadTask downloadTask) {
+        if (!updateTaskRow(downloadTask)) {
+            insertTask(downloadTask);
+            return;
+        }
+
+        List<DownloadItem> downloadItems = downloadTask.getDownloadItems();
+        for (int i = 0; i < downloadItems.size(); i++) {
+            updateItem(downloadTask.getTag(), i, downloadItems.get(i));
+        }
+        mDeleteItemsStatement.bindString(1, downloadTask.getTag());
+        mDeleteItemsStatement.bindLong(2, downloadItems.size());
+        mDeleteItemsStatement.executeUpdateDelete();
+    }
+
+    /**
+     * @return False if the task isn't stored
+     */
+    private boolean updateTaskRow(DownloadTask downloadTask) {
+        mUpdateTaskStatement.bindLong(1, downloadTask.getPriority());
+        mUpdateTaskStatement.bindLong(2, downloadTask.getStatus());
+        mUpdateTaskStatement.bindLong(3, downloadTask.getSequenceNumber());
+        mUpdateTaskStatement.bindLong(4, downloadTask.getEnqueueTime());
+        mUpdateTaskStatement.bindBlob(5, downloadTask.toByteArrayWithoutItems());
+        mUpdateTaskStatement.bindString(6, downloadTask.getTag());
+        return mUpdateTaskStatement.executeUpdateDelete() > 0;
+    }
+
+    private void updateItem(String tag, int position, DownloadItem downloadItem) {
+        bindItem(mUpdateItemStatement, downloadItem, null, 0, 1);
+        mUpdateItemStatement.bindString(7, tag);
+        mUpdateItemStatement.bindLong(8, position);
+        if (mUpdateItemStatement.executeUpdateDelete() == 0) {
+            bindItem(mInsertItemStatement, downloadItem, tag, position, 1);
+            mInsertItemStatement.executeInsert();
+        }
+    }
+
+    private void deleteTask(String tag) {
+        mDeleteItemsStatement.bindString(1, tag);
+        mDeleteItemsStatement.bindLong(2, 0);
+        mDeleteItemsStatement.executeUpdateDelete();
+        mDeleteTaskStatement.bindString(1, tag);
+        mDeleteTaskStatement.executeUpdateDelete();
+    }
+
+    /**
+     * Binds the columns of an item row, starting with the task tag and position if a tag is given
+     */
+    private static void bindItem(SQLiteStatement statement, DownloadItem downloadItem, String tag, int position, int index) {
+        if (tag != null) {
+            statement.bindString(index++, tag);
+            statement.bindLong(index++, position);
+        }
+        if (downloadItem.getUrl() != null) {
+            statement.bindString(index++, downloadItem.getUrl());
+        } else {
+            statement.bindNull(index++);
+        }
+        statement.bindLong(index++, downloadItem.getStatus());
+        statement.bindLong(index++, downloadItem.getDownloadSize());
+        statement.bindLong(index++, downloadItem.getBytesDownloaded());
+        statement.bindLong(index++, downloadItem.getErrorCode());
+        statement.bindBlob(index, downloadItem.toByteArray());
+    }
+
+    private void rollback() {
+        if (mDatabase != null && mDatabase.inTransaction()) {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private static final class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE tasks (tag TEXT PRIMARY KEY, priority INTEGER NOT NULL, status INTEGER NOT NULL, " +
+                    "sequence_number INTEGER NOT NULL, enqueue_time INTEGER NOT NULL, data BLOB NOT NULL)");
+            db.execSQL("CREATE INDEX tasks_status ON tasks (status)");
+            db.execSQL("CREATE INDEX tasks_priority ON tasks (priority, sequence_number)");
+            db.execSQL("CREATE TABLE items (task_tag TEXT NOT NULL, position INTEGER NOT NULL, url TEXT, " +
+                    "status INTEGER NOT NULL, download_size INTEGER NOT NULL, bytes_downloaded INTEGER NOT NULL, " +
+                    "error_code INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY (task_tag, position))");
+            db.execSQL("CREATE INDEX items_status ON items (status)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            //Committed changes must survive a power loss, like the journal of the file store
+            db.execSQL("PRAGMA synchronous = FULL");
+        }
+    }
+}
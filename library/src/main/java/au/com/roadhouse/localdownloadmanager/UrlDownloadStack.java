@@ -1,24 +1,151 @@
 package au.com.roadhouse.localdownloadmanager;
 
-import java.io.BufferedInputStream;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadSegment;
 import timber.log.Timber;
 
 /**
  * An implementation of DownloadHttpStack which uses a UrlConnection to download a file. This
- * stack supports file resuming if paused.
+ * stack supports file resuming if paused, and can split a download item into byte range segments
+ * which are downloaded over parallel connections when the server supports it.
  */
-public class UrlDownloadStack implements DownloadHttpStack {
+public class UrlDownloadStack implements ItemDownloadHttpStack {
+
+    /**
+     * Copies response bodies through a heap byte array
+     */
+    public static final int TRANSFER_MODE_STREAM = 0;
+    /**
+     * Copies response bodies through a channel into a direct buffer, which is written to the file
+     * channel at an exact position
+     */
+    public static final int TRANSFER_MODE_CHANNEL = 1;
 
     private static final int BUFFER_SIZE = 8192;
-    private boolean mContinueDownload = false;
+    private static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private volatile boolean mContinueDownload = false;
+    private int mTransferMode = TRANSFER_MODE_CHANNEL;
+    private int mSegmentCount = 1;
+    private long mMinSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+    private long mCheckpointInterval = DownloadCheckpoint.DEFAULT_INTERVAL;
+    private HostConnectionScheduler mHostConnectionScheduler;
+    private BufferPool mBufferPool = BufferPool.getSharedPool();
+    private final AdaptiveBufferSizer mBufferSizer = new AdaptiveBufferSizer();
+
+    /**
+     * Sets the maximum number of parallel connections used to download a single download item. A
+     * value of 1 disables segmented downloads.
+     * @param segmentCount The maximum number of segments per download item
+     */
+    public void setSegmentCount(int segmentCount) {
+        mSegmentCount = Math.max(1, segmentCount);
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * Sets how response bodies are copied into files. Both modes write to exact file positions, so
+     * they can be swapped at any time to compare them.
+     * @param transferMode Either {@link #TRANSFER_MODE_CHANNEL} or {@link #TRANSFER_MODE_STREAM}
+     */
+    public void setTransferMode(int transferMode) {
+        if (transferMode != TRANSFER_MODE_CHANNEL && transferMode != TRANSFER_MODE_STREAM) {
+            throw new IllegalArgumentException("Unknown transfer mode " + transferMode);
+        }
+        mTransferMode = transferMode;
+    }
+
+    public int getTransferMode() {
+        return mTransferMode;
+    }
+
+    /**
+     * Sets the range transfer buffers are sized within. The size used is chosen from the measured
+     * throughput of this stack's connections.
+     * @param minBufferSize The smallest buffer size in bytes
+     * @param maxBufferSize The largest buffer size in bytes
+     */
+    public void setBufferSizeBounds(int minBufferSize, int maxBufferSize) {
+        mBufferSizer.setBounds(minBufferSize, maxBufferSize);
+    }
+
+    /**
+     * @return The buffer size currently chosen for transfers, in bytes
+     */
+    public int getBufferSize() {
+        return mBufferSizer.getBufferSize();
+    }
+
+    /**
+     * @return The smoothed throughput of recent transfers in bytes per second, or -1 if nothing has
+     * been measured yet
+     */
+    public long getThroughput() {
+        return mBufferSizer.getThroughput();
+    }
+
+    /**
+     * Sets the pool transfer buffers are taken from. By default every stack uses the shared pool.
+     * @param bufferPool The buffer pool
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        mBufferPool = bufferPool;
+    }
+
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Sets a scheduler used to limit the connections opened to each host. The connection used for
+     * each download item is expected to have been claimed by the caller, extra connections for
+     * segments are only opened while the host has free connections.
+     * @param hostConnectionScheduler The scheduler shared by all stacks of the download service
+     */
+    public void setHostConnectionScheduler(HostConnectionScheduler hostConnectionScheduler) {
+        mHostConnectionScheduler = hostConnectionScheduler;
+    }
+
+    /**
+     * Sets the smallest segment size a download item will be split into. Files smaller than twice
+     * this size are always downloaded over a single connection.
+     * @param minSegmentSize The minimum segment size in bytes
+     */
+    public void setMinimumSegmentSize(long minSegmentSize) {
+        mMinSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    /**
+     * Sets the minimum time between progress checkpoints of a download item. Each checkpoint syncs
+     * the downloaded file to disk, so a shorter interval loses less progress to a crash but costs
+     * more writes.
+     * @param checkpointInterval The minimum time between checkpoints in milliseconds
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        mCheckpointInterval = Math.max(0, checkpointInterval);
+    }
 
     /**
      * {@inheritDoc}
@@ -27,10 +154,11 @@ public class UrlDownloadStack implements DownloadHttpStack {
     public long requestFileSize(String url) {
         long length = -1;
         InputStream inputStream = null;
+        HttpURLConnection urlConnection = null;
+        boolean isDrained = false;
 
         try {
-            URL fileUrl = new URL(url);
-            HttpURLConnection urlConnection = (HttpURLConnection) fileUrl.openConnection();
+            urlConnection = openConnection(url);
             urlConnection.setRequestMethod("HEAD");
             inputStream = urlConnection.getInputStream();
             String contentLength = urlConnection.getHeaderField("content-length");
@@ -38,6 +166,8 @@ public class UrlDownloadStack implements DownloadHttpStack {
             if(contentLength != null){
                 length = Long.valueOf(contentLength);
             }
+            //A HEAD response has no body, so the connection can be reused once the stream is closed
+            isDrained = true;
         } catch (IOException e) {
             Timber.e("requestFileSize: Failed to receive file size", e);
             e.printStackTrace();
@@ -45,6 +175,9 @@ public class UrlDownloadStack implements DownloadHttpStack {
             if(inputStream != null) {
                 closeInputStream(inputStream);
             }
+            if(urlConnection != null) {
+                releaseConnection(urlConnection, isDrained);
+            }
         }
 
         return length;
@@ -55,83 +188,595 @@ public class UrlDownloadStack implements DownloadHttpStack {
      */
     @Override
     public File downloadFile(File file, String url, OnDownloadProgressListener listener){
+        //Without a checkpoint the file length is the resume point, so the file can't be preallocated
+        return downloadStream(file, url, false, listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public File downloadFile(DownloadItem downloadItem, OnDownloadProgressListener listener) {
+        if (!downloadItem.isSegmented() && mSegmentCount > 1) {
+            prepareSegments(downloadItem);
+        }
 
-        BufferedInputStream bufferedInputStream = null;
-        FileOutputStream fileOutputStream = null;
+        if (!downloadItem.isSegmented()) {
+            File file = downloadStream(downloadItem.getFile(), downloadItem.getUrl(), true, new ItemProgress(downloadItem, listener));
+            downloadItem.setFile(file);
+            return file;
+        }
+
+        return downloadSegments(downloadItem, listener);
+    }
+
+    /**
+     * Downloads a file over a single connection
+     * @param file The file or directory to download to
+     * @param url The url to download
+     * @param isCheckpointed True to resume from and record progress in the file's checkpoint, which
+     *                       also allows the whole file to be reserved once its size is known
+     * @param listener The listener to notify of progress
+     * @return The downloaded file
+     */
+    private File downloadStream(File file, String url, boolean isCheckpointed, OnDownloadProgressListener listener) {
+        InputStream inputStream = null;
+        RandomAccessFile randomAccessFile = null;
+        HttpURLConnection urlConnection = null;
+        DownloadCheckpoint checkpoint = null;
+        boolean isDrained = false;
+        boolean hasError = false;
 
         mContinueDownload = true;
 
         try {
             long startSize = 0;
+            String validator = null;
 
             if (file.isDirectory()) {
                 file = File.createTempFile("fds", "tmp", file);
-            } else if (file.exists()) {
+            } else if (file.exists() && !isCheckpointed) {
                 startSize = file.length();
             }
 
-            URL fileUrl = new URL(url);
-            HttpURLConnection urlConnection = (HttpURLConnection) fileUrl.openConnection();
+            if (isCheckpointed) {
+                //A preallocated file is longer than the data written to it, so resume from the last
+                //checkpoint. Any bytes written after it are simply written again.
+                checkpoint = DownloadCheckpoint.open(file, 0, mCheckpointInterval);
+                if (checkpoint.hasRecord()) {
+                    startSize = Math.min(checkpoint.getBytesDownloaded(), file.length());
+                    validator = checkpoint.getValidator();
+                } else if (file.exists()) {
+                    //A file is only preallocated once its checkpoint is recorded, so without one the
+                    //file holds nothing but downloaded data, and its length is the resume point
+                    startSize = file.length();
+                }
+            }
+
+            urlConnection = openConnection(url);
             urlConnection.setRequestMethod("GET");
             urlConnection.setRequestProperty("Range", "bytes="+startSize+"-");
+            if (startSize > 0 && validator != null) {
+                //The server only sends the range if the file is unchanged, otherwise it sends the whole file
+                urlConnection.setRequestProperty("If-Range", validator);
+            }
             if(urlConnection.getResponseCode() == 416){
+                isDrained = drainErrorStream(urlConnection);
                 //File is likely already finished
+                if (checkpoint != null) {
+                    checkpoint.setStatus(DownloadItem.STATUS_COMPLETE);
+                    writeCheckpoint(checkpoint);
+                }
                 if(listener != null){
                     listener.onFileComplete(url, file);
                 }
                 return file;
             }
-            InputStream inputStream = urlConnection.getInputStream();
-            String contentLength = urlConnection.getHeaderField("content-length");
-            long totalBytes = contentLength != null? Long.valueOf(contentLength) : -1;
-
+            inputStream = urlConnection.getInputStream();
 
-            //Resume not supported, delete file and starting again
-            if(doesAcceptResume(startSize, urlConnection)) {
+            //Resume not supported, delete file and starting again. A full response to a range request
+            //also means the server ignored the range
+            if(doesAcceptResume(startSize, urlConnection) ||
+                    (startSize > 0 && urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK)) {
                 Timber.w("downloadFile: File resume not supported, deleting and redownloading");
+                if (checkpoint != null) {
+                    checkpoint.close();
+                    DownloadCheckpoint.delete(file);
+                }
                 //noinspection ResultOfMethodCallIgnored
                 file.delete();
                 file = File.createTempFile("fds", "tmp", file.getParentFile());
+                startSize = 0;
+                if (checkpoint != null) {
+                    checkpoint = DownloadCheckpoint.open(file, 0, mCheckpointInterval);
+                }
             }
+            final long totalBytes = getTotalSize(urlConnection, startSize);
+            final long resumeOffset = startSize;
+            final File downloadFile = file;
+            final String downloadUrl = url;
+            final OnDownloadProgressListener progressListener = listener;
+            final DownloadCheckpoint progressCheckpoint = checkpoint;
 
-            byte[] buffer = new byte[BUFFER_SIZE];
-
-            bufferedInputStream = new BufferedInputStream(inputStream);
-            fileOutputStream= new FileOutputStream(file, true);
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            if (isCheckpointed) {
+                //Recorded before any data or preallocation, so a resume is validated against this
+                //response and never mistakes reserved space for downloaded data
+                checkpoint.setStatus(DownloadItem.STATUS_INCOMPLETE);
+                checkpoint.setDownloadSize(totalBytes);
+                checkpoint.setBytesDownloaded(startSize);
+                checkpoint.setValidator(getValidator(urlConnection));
+                checkpoint.write();
+                if (totalBytes > 0) {
+                    preallocate(randomAccessFile, file, totalBytes);
+                } else {
+                    //Drop anything past the resume point, as the end of the file isn't known
+                    randomAccessFile.setLength(startSize);
+                }
+            }
 
-            int bytesRead = -1;
-            long totalBytesRead = 0;
-            do{
-                bytesRead = bufferedInputStream.read(buffer);
-                if(bytesRead >= 0){
-                    totalBytesRead += bytesRead;
-                    fileOutputStream.write(buffer, 0, bytesRead);
-                    if(!mContinueDownload){
-                        break;
+            long bytesTransferred = transfer(inputStream, randomAccessFile, startSize, Long.MAX_VALUE, new TransferListener() {
+                @Override
+                public void onBytesTransferred(long bytesTransferred) {
+                    if (progressCheckpoint != null) {
+                        progressCheckpoint.setBytesDownloaded(resumeOffset + bytesTransferred);
+                        if (progressCheckpoint.isDue()) {
+                            writeCheckpoint(progressCheckpoint);
+                        }
                     }
-                    if(listener != null){
-                        listener.onFileProgress(file, url, totalBytesRead + startSize, totalBytes + startSize);
+                    if (progressListener != null) {
+                        progressListener.onFileProgress(downloadFile, downloadUrl, resumeOffset + bytesTransferred, totalBytes);
                     }
                 }
-            } while (bytesRead != -1);
+            });
+            //Without a length limit the transfer only ends early if the download was stopped
+            isDrained = mContinueDownload;
 
+            if (isCheckpointed && mContinueDownload && totalBytes > 0 && startSize + bytesTransferred < totalBytes) {
+                //The rest of a preallocated file is empty space, so it can't be treated as complete
+                throw new IOException("Connection closed before the file was complete");
+            }
+            if (checkpoint != null) {
+                checkpoint.setStatus(mContinueDownload ? DownloadItem.STATUS_COMPLETE : DownloadItem.STATUS_INCOMPLETE);
+                writeCheckpoint(checkpoint);
+            }
+        } catch (InsufficientStorageException ise) {
+            Timber.e("downloadFile: Not enough storage for file", ise);
+            hasError = true;
+            onCheckpointError(checkpoint);
+            notifyFileError(listener, url, true);
         } catch (IOException ioe){
             Timber.e("downloadFile: Error downloading file", ioe);
-            if(listener != null){
-                listener.onFileError(url);
+            hasError = true;
+            onCheckpointError(checkpoint);
+            notifyFileError(listener, url, false);
+        } finally {
+            closeInputStream(inputStream);
+            closeRandomAccessFile(randomAccessFile);
+            if(urlConnection != null) {
+                releaseConnection(urlConnection, isDrained);
+            }
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+
+        if(listener != null && mContinueDownload && !hasError){
+            listener.onFileComplete(url, file);
+        }
+
+        return file;
+    }
+
+    /**
+     * Reports a failed download to a listener
+     * @param listener The listener, or null
+     * @param url The url that was being downloaded
+     * @param isStorageFull True if the download failed because the storage is full
+     */
+    private static void notifyFileError(OnDownloadProgressListener listener, String url, boolean isStorageFull) {
+        if (listener instanceof OnInsufficientStorageListener && isStorageFull) {
+            ((OnInsufficientStorageListener) listener).onInsufficientStorage(url);
+        } else if (listener != null) {
+            listener.onFileError(url);
+        }
+    }
+
+    /**
+     * Reserves the full length of a file before its body is written, so the download fails straight
+     * away if the storage is full and the file isn't grown piece by piece.
+     * @param randomAccessFile The open file
+     * @param file The file
+     * @param length The full length of the file in bytes
+     * @throws InsufficientStorageException If there isn't enough free storage for the file
+     * @throws IOException If the file couldn't be resized
+     */
+    private void preallocate(RandomAccessFile randomAccessFile, File file, long length) throws IOException {
+        long requiredBytes = length - randomAccessFile.length();
+        if (requiredBytes <= 0) {
+            if (requiredBytes < 0) {
+                randomAccessFile.setLength(length);
+            }
+            return;
+        }
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && directory.getUsableSpace() < requiredBytes) {
+            throw new InsufficientStorageException(requiredBytes);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            //setLength only creates a sparse file, fallocate actually reserves the blocks
+            try {
+                Os.posix_fallocate(randomAccessFile.getFD(), 0, length);
+                return;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    throw new InsufficientStorageException(requiredBytes);
+                }
+                Timber.d("preallocate: fallocate not supported, falling back to setLength");
+            }
+        }
+        randomAccessFile.setLength(length);
+    }
+
+    private void prepareSegments(DownloadItem downloadItem) {
+        File file = downloadItem.getFile();
+        if (file.isFile() && file.length() > 0) {
+            //A single stream download is already in progress, keep resuming it
+            return;
+        }
+
+        HttpURLConnection urlConnection = null;
+        boolean isDrained = false;
+        try {
+            urlConnection = openConnection(downloadItem.getUrl());
+            urlConnection.setRequestMethod("HEAD");
+            closeInputStream(urlConnection.getInputStream());
+            isDrained = true;
+            String contentLength = urlConnection.getHeaderField("content-length");
+            String acceptRanges = urlConnection.getHeaderField("Accept-Ranges");
+            if (contentLength == null || !"bytes".equalsIgnoreCase(acceptRanges)) {
+                return;
+            }
+
+            long totalBytes = Long.valueOf(contentLength);
+            int segmentCount = (int) Math.min(mSegmentCount, totalBytes / mMinSegmentSize);
+            if (segmentCount < 2) {
+                return;
+            }
+
+            if (file.isDirectory()) {
+                file = File.createTempFile("fds", "tmp", file);
+                downloadItem.setFile(file);
             }
+
+            List<DownloadSegment> segments = new ArrayList<>(segmentCount);
+            long segmentSize = totalBytes / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                long startOffset = i * segmentSize;
+                long endOffset = i == segmentCount - 1 ? totalBytes - 1 : startOffset + segmentSize - 1;
+                segments.add(new DownloadSegment(startOffset, endOffset));
+            }
+            downloadItem.setDownloadSize(totalBytes);
+            downloadItem.setSegments(segments);
+
+            //The segments resume from the checkpoint, so it's started with the validator they're checked against
+            DownloadCheckpoint checkpoint = DownloadCheckpoint.open(file, segmentCount, mCheckpointInterval);
+            checkpoint.setStatus(DownloadItem.STATUS_INCOMPLETE);
+            checkpoint.setDownloadSize(totalBytes);
+            checkpoint.setValidator(getValidator(urlConnection));
+            writeCheckpoint(checkpoint);
+            checkpoint.close();
+        } catch (IOException | NumberFormatException e) {
+            Timber.w("prepareSegments: Unable to segment download, using a single connection", e);
+        } finally {
+            if (urlConnection != null) {
+                releaseConnection(urlConnection, isDrained);
+            }
+        }
+    }
+
+    private File downloadSegments(DownloadItem downloadItem, OnDownloadProgressListener listener) {
+        mContinueDownload = true;
+
+        File file = downloadItem.getFile();
+        String url = downloadItem.getUrl();
+        List<DownloadSegment> segments = downloadItem.getSegments();
+
+        //Segments write to their own offsets in any order, so the whole file is reserved first
+        RandomAccessFile randomAccessFile = null;
+        DownloadCheckpoint checkpoint = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            preallocate(randomAccessFile, file, segments.get(segments.size() - 1).getEndOffset() + 1);
+            checkpoint = DownloadCheckpoint.open(file, segments.size(), mCheckpointInterval);
+        } catch (IOException e) {
+            Timber.e("downloadSegments: Unable to prepare file", e);
+            notifyFileError(listener, url, e instanceof InsufficientStorageException);
+            return file;
         } finally {
-            closeInputStream(bufferedInputStream);
-            closeOutputStream(fileOutputStream);
+            closeRandomAccessFile(randomAccessFile);
+        }
+
+        //Segment progress restored with the queue may be ahead of the data that reached the disk, so
+        //only the checkpointed progress is trusted. Without a checkpoint every segment starts again.
+        for (int i = 0; i < segments.size(); i++) {
+            DownloadSegment segment = segments.get(i);
+            segment.setBytesDownloaded(checkpoint.hasRecord() ?
+                    Math.min(checkpoint.getSegmentBytesDownloaded(i), segment.getLength()) : 0);
+        }
+        String validator = checkpoint.getValidator();
+        SegmentProgress segmentProgress = new SegmentProgress(file, url, segments, checkpoint, listener);
+
+        List<DownloadSegment> pendingSegments = new ArrayList<>(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            if (!segments.get(i).isComplete()) {
+                pendingSegments.add(segments.get(i));
+            }
+        }
+
+        //The first connection belongs to the download item, extra connections are only used while
+        //the host has capacity. Segments without a connection wait for another segment to finish.
+        int connectionCount = Math.min(1, pendingSegments.size());
+        while (connectionCount < pendingSegments.size() &&
+                (mHostConnectionScheduler == null || mHostConnectionScheduler.tryAcquire(url))) {
+            connectionCount++;
+        }
+
+        AtomicInteger nextSegmentIndex = new AtomicInteger();
+        List<SegmentDownloader> segmentDownloaders = new ArrayList<>(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            SegmentDownloader segmentDownloader = new SegmentDownloader(file, url, validator, pendingSegments, nextSegmentIndex, segmentProgress);
+            segmentDownloaders.add(segmentDownloader);
+            segmentDownloader.start();
+        }
+
+        boolean hasError = false;
+        boolean isRangeUnsupported = false;
+        for (int i = 0; i < segmentDownloaders.size(); i++) {
+            SegmentDownloader segmentDownloader = segmentDownloaders.get(i);
+            try {
+                segmentDownloader.join();
+            } catch (InterruptedException e) {
+                Timber.w("downloadSegments: Interrupted while waiting for segments, stopping download");
+                mContinueDownload = false;
+                Thread.currentThread().interrupt();
+            }
+            hasError |= segmentDownloader.hasError();
+            isRangeUnsupported |= segmentDownloader.isRangeUnsupported();
         }
 
-        if(listener != null && mContinueDownload){
+        if (mHostConnectionScheduler != null) {
+            for (int i = 1; i < connectionCount; i++) {
+                mHostConnectionScheduler.release(url);
+            }
+        }
+
+        if (isRangeUnsupported) {
+            Timber.w("downloadSegments: Range requests rejected, deleting and redownloading over a single connection");
+            checkpoint.close();
+            DownloadCheckpoint.delete(file);
+            downloadItem.setSegments(null);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            //Streamed directly, as the server may still advertise ranges and would be segmented again
+            file = downloadStream(file, url, true, new ItemProgress(downloadItem, listener));
+            downloadItem.setFile(file);
+            return file;
+        }
+
+        segmentProgress.checkpoint(hasError ? DownloadItem.STATUS_ERROR :
+                mContinueDownload ? DownloadItem.STATUS_COMPLETE : DownloadItem.STATUS_INCOMPLETE);
+        checkpoint.close();
+
+        if (hasError) {
+            notifyFileError(listener, url, false);
+        } else if (listener != null && mContinueDownload) {
             listener.onFileComplete(url, file);
         }
 
         return file;
     }
 
+    /**
+     * Copies a response body into a file using the current transfer mode, until the body ends, the
+     * length limit is reached or the download is stopped.
+     * @param inputStream The response body
+     * @param randomAccessFile The file to write to
+     * @param position The file position the first byte is written to
+     * @param maxBytes The maximum number of bytes to copy
+     * @param transferListener Receives the running byte count after each chunk is written
+     * @return The number of bytes copied
+     * @throws IOException If the response can't be read or the file can't be written
+     */
+    private long transfer(InputStream inputStream, RandomAccessFile randomAccessFile, long position,
+                          long maxBytes, TransferListener transferListener) throws IOException {
+        boolean isChannelTransfer = mTransferMode == TRANSFER_MODE_CHANNEL;
+        //The input channel isn't closed here, closing it would close the response stream
+        ReadableByteChannel inputChannel = isChannelTransfer ? Channels.newChannel(inputStream) : null;
+        FileChannel fileChannel = isChannelTransfer ? randomAccessFile.getChannel() : null;
+        if (!isChannelTransfer) {
+            randomAccessFile.seek(position);
+        }
+
+        int bufferSize = mBufferSizer.getBufferSize();
+        ByteBuffer buffer = mBufferPool.acquire(bufferSize, isChannelTransfer);
+        try {
+            long bytesTransferred = 0;
+            long sampleStartTime = System.currentTimeMillis();
+            long sampleBytes = 0;
+            while (mContinueDownload && bytesTransferred < maxBytes) {
+                int length = (int) Math.min(buffer.capacity(), maxBytes - bytesTransferred);
+                int bytesRead = isChannelTransfer ?
+                        transferChunk(inputChannel, fileChannel, buffer, position + bytesTransferred, length) :
+                        transferChunk(inputStream, randomAccessFile, buffer, length);
+                if (bytesRead == -1) {
+                    break;
+                }
+                bytesTransferred += bytesRead;
+                transferListener.onBytesTransferred(bytesTransferred);
+
+                //Resize the buffer for the next reads once enough time has passed to measure throughput
+                sampleBytes += bytesRead;
+                long currentTime = System.currentTimeMillis();
+                if (currentTime - sampleStartTime >= AdaptiveBufferSizer.SAMPLE_INTERVAL) {
+                    int newBufferSize = mBufferSizer.onSample(sampleBytes, currentTime - sampleStartTime);
+                    sampleStartTime = currentTime;
+                    sampleBytes = 0;
+                    if (newBufferSize != bufferSize) {
+                        mBufferPool.release(buffer);
+                        buffer = null;
+                        bufferSize = newBufferSize;
+                        buffer = mBufferPool.acquire(bufferSize, isChannelTransfer);
+                    }
+                }
+            }
+
+            return bytesTransferred;
+        } finally {
+            if (buffer != null) {
+                mBufferPool.release(buffer);
+            }
+        }
+    }
+
+    private int transferChunk(InputStream inputStream, RandomAccessFile randomAccessFile, ByteBuffer buffer,
+                              int length) throws IOException {
+        //Reads go straight into the pooled array, an extra BufferedInputStream would only add a copy
+        int bytesRead = inputStream.read(buffer.array(), 0, length);
+        if (bytesRead > 0) {
+            randomAccessFile.write(buffer.array(), 0, bytesRead);
+        }
+        return bytesRead;
+    }
+
+    private int transferChunk(ReadableByteChannel inputChannel, FileChannel fileChannel, ByteBuffer buffer,
+                              long position, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        int bytesRead = inputChannel.read(buffer);
+        if (bytesRead > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Opens a connection to a url. Subclasses can override this to manage how connections are reused.
+     * @param url The url to connect to
+     * @return An unconnected HttpURLConnection
+     * @throws IOException If the url is invalid or the connection can't be opened
+     */
+    protected HttpURLConnection openConnection(String url) throws IOException {
+        return (HttpURLConnection) new URL(url).openConnection();
+    }
+
+    /**
+     * Called once a connection opened with {@link #openConnection(String)} is no longer used.
+     * @param urlConnection The connection
+     * @param isDrained True if the response body was read to the end and closed, which allows the
+     *                  underlying socket to be reused for the next request to the same host
+     */
+    protected void releaseConnection(HttpURLConnection urlConnection, boolean isDrained) {
+        if (!isDrained) {
+            urlConnection.disconnect();
+        }
+    }
+
+    private boolean drainErrorStream(HttpURLConnection urlConnection) {
+        InputStream errorStream = urlConnection.getErrorStream();
+        if (errorStream == null) {
+            return true;
+        }
+
+        ByteBuffer buffer = null;
+        try {
+            buffer = mBufferPool.acquire(BUFFER_SIZE, false);
+            //noinspection StatementWithEmptyBody
+            while (errorStream.read(buffer.array(), 0, buffer.capacity()) != -1) {
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (buffer != null) {
+                mBufferPool.release(buffer);
+            }
+            closeInputStream(errorStream);
+        }
+    }
+
+    /**
+     * Reads the full size of a file from a GET response, so no separate size request is needed
+     * @param urlConnection The connection with a response
+     * @param startSize The offset the response body starts at
+     * @return The size of the whole file in bytes, or -1 if the server didn't report it
+     */
+    private long getTotalSize(HttpURLConnection urlConnection, long startSize) {
+        //Partial responses report the full size as "bytes <first>-<last>/<size>"
+        String contentRange = urlConnection.getHeaderField("Content-Range");
+        if (contentRange != null) {
+            int sizeIndex = contentRange.lastIndexOf('/');
+            if (sizeIndex != -1) {
+                try {
+                    return Long.parseLong(contentRange.substring(sizeIndex + 1).trim());
+                } catch (NumberFormatException e) {
+                    //The size is "*" when unknown, fall back to the content length
+                }
+            }
+        }
+
+        String contentLength = urlConnection.getHeaderField("content-length");
+        if (contentLength == null) {
+            return -1;
+        }
+
+        try {
+            return Long.valueOf(contentLength) + startSize;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the validator a resumed request can send as If-Range, so the server only sends the
+     * rest of the file if it hasn't changed
+     * @param urlConnection The connection with a response
+     * @return A strong ETag, the Last-Modified date, or null if the server sent neither
+     */
+    private String getValidator(HttpURLConnection urlConnection) {
+        //If-Range can't be used with a weak ETag
+        String eTag = urlConnection.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return urlConnection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Writes a checkpoint. A failed checkpoint doesn't stop the download, it only means less progress
+     * can be resumed after a crash.
+     * @param checkpoint The checkpoint to write
+     */
+    private static void writeCheckpoint(DownloadCheckpoint checkpoint) {
+        try {
+            checkpoint.write();
+        } catch (IOException e) {
+            Timber.w("writeCheckpoint: Unable to checkpoint download progress", e);
+        }
+    }
+
+    private static void onCheckpointError(DownloadCheckpoint checkpoint) {
+        if (checkpoint != null) {
+            checkpoint.setStatus(DownloadItem.STATUS_ERROR);
+            writeCheckpoint(checkpoint);
+        }
+    }
+
     private boolean doesAcceptResume(long startSize, HttpURLConnection urlConnection) {
         return urlConnection.getHeaderField("Accept-Ranges") != null &&
          urlConnection.getHeaderField("Accept-Ranges").equals("none") && startSize > 0;
@@ -155,13 +800,222 @@ public class UrlDownloadStack implements DownloadHttpStack {
         }
     }
 
-    private void closeOutputStream(OutputStream outputStream){
+    private void closeRandomAccessFile(RandomAccessFile randomAccessFile){
         try {
-            if(outputStream != null) {
-                outputStream.close();
+            if(randomAccessFile != null) {
+                randomAccessFile.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Thrown when a file can't be preallocated because the storage is full
+     */
+    private static class InsufficientStorageException extends IOException {
+        InsufficientStorageException(long requiredBytes) {
+            super("Not enough free storage for " + requiredBytes + " bytes");
+        }
+    }
+
+    /**
+     * Records the progress of a single stream download on its download item, so an interrupted
+     * download can resume from the last byte written
+     */
+    private static class ItemProgress implements OnInsufficientStorageListener {
+        private final DownloadItem mDownloadItem;
+        private final OnDownloadProgressListener mListener;
+
+        ItemProgress(DownloadItem downloadItem, OnDownloadProgressListener listener) {
+            mDownloadItem = downloadItem;
+            mListener = listener;
+        }
+
+        @Override
+        public void onFileProgress(File file, String url, long bytesDownloaded, long totalBytes) {
+            mDownloadItem.setBytesDownloaded(bytesDownloaded);
+            if (totalBytes > 0) {
+                mDownloadItem.setDownloadSize(totalBytes);
+            }
+            if (mListener != null) {
+                mListener.onFileProgress(file, url, bytesDownloaded, totalBytes);
+            }
+        }
+
+        @Override
+        public void onFileComplete(String url, File tempFile) {
+            if (mListener != null) {
+                mListener.onFileComplete(url, tempFile);
+            }
+        }
+
+        @Override
+        public void onFileError(String url) {
+            notifyFileError(mListener, url, false);
+        }
+
+        @Override
+        public void onInsufficientStorage(String url) {
+            notifyFileError(mListener, url, true);
+        }
+    }
+
+    /**
+     * Receives the progress of a single transfer
+     */
+    private interface TransferListener {
+        void onBytesTransferred(long bytesTransferred);
+    }
+
+    /**
+     * Combines the progress of all segments of a download item into a single total, checkpoints it,
+     * and serializes progress callbacks from the segment threads.
+     */
+    private static class SegmentProgress {
+        private final File mFile;
+        private final String mUrl;
+        private final List<DownloadSegment> mSegments;
+        private final DownloadCheckpoint mCheckpoint;
+        private final OnDownloadProgressListener mListener;
+        private final long mTotalBytes;
+
+        SegmentProgress(File file, String url, List<DownloadSegment> segments, DownloadCheckpoint checkpoint,
+                        OnDownloadProgressListener listener) {
+            mFile = file;
+            mUrl = url;
+            mSegments = segments;
+            mCheckpoint = checkpoint;
+            mListener = listener;
+            mTotalBytes = segments.get(segments.size() - 1).getEndOffset() + 1;
+        }
+
+        synchronized void onSegmentProgress(DownloadSegment segment, long bytesDownloaded) {
+            segment.setBytesDownloaded(bytesDownloaded);
+            if (mCheckpoint.isDue()) {
+                checkpoint(DownloadItem.STATUS_INCOMPLETE);
+            }
+            if (mListener != null) {
+                mListener.onFileProgress(mFile, mUrl, getBytesDownloaded(), mTotalBytes);
+            }
+        }
+
+        /**
+         * Writes the progress of every segment to the checkpoint
+         * @param status The status of the download item
+         */
+        synchronized void checkpoint(int status) {
+            for (int i = 0; i < mSegments.size(); i++) {
+                mCheckpoint.setSegmentBytesDownloaded(i, mSegments.get(i).getBytesDownloaded());
+            }
+            mCheckpoint.setBytesDownloaded(getBytesDownloaded());
+            mCheckpoint.setDownloadSize(mTotalBytes);
+            mCheckpoint.setStatus(status);
+            writeCheckpoint(mCheckpoint);
+        }
+
+        private long getBytesDownloaded() {
+            long totalBytesDownloaded = 0;
+            for (int i = 0; i < mSegments.size(); i++) {
+                totalBytesDownloaded += mSegments.get(i).getBytesDownloaded();
+            }
+            return totalBytesDownloaded;
+        }
+    }
+
+    /**
+     * Downloads byte ranges of a file one after another over its own connection, writing each to the
+     * segment's position within the file. Several downloaders share the same list of segments.
+     */
+    private class SegmentDownloader extends Thread {
+        private final File mFile;
+        private final String mUrl;
+        private final String mValidator;
+        private final List<DownloadSegment> mSegments;
+        private final AtomicInteger mNextSegmentIndex;
+        private final SegmentProgress mSegmentProgress;
+        private boolean mHasError = false;
+        private boolean mIsRangeUnsupported = false;
+
+        SegmentDownloader(File file, String url, String validator, List<DownloadSegment> segments,
+                          AtomicInteger nextSegmentIndex, SegmentProgress segmentProgress) {
+            super("SegmentDownloader");
+            mFile = file;
+            mUrl = url;
+            mValidator = validator;
+            mSegments = segments;
+            mNextSegmentIndex = nextSegmentIndex;
+            mSegmentProgress = segmentProgress;
+        }
+
+        boolean hasError() {
+            return mHasError;
+        }
+
+        boolean isRangeUnsupported() {
+            return mIsRangeUnsupported;
+        }
+
+        @Override
+        public void run() {
+            while (mContinueDownload && !mHasError && !mIsRangeUnsupported) {
+                int segmentIndex = mNextSegmentIndex.getAndIncrement();
+                if (segmentIndex >= mSegments.size()) {
+                    return;
+                }
+                downloadSegment(mSegments.get(segmentIndex));
+            }
+        }
+
+        private void downloadSegment(final DownloadSegment segment) {
+            InputStream inputStream = null;
+            RandomAccessFile randomAccessFile = null;
+            HttpURLConnection urlConnection = null;
+            boolean isDrained = false;
+
+            try {
+                urlConnection = openConnection(mUrl);
+                urlConnection.setRequestMethod("GET");
+                urlConnection.setRequestProperty("Range", "bytes=" + segment.getCurrentOffset() + "-" + segment.getEndOffset());
+                if (mValidator != null) {
+                    //A changed file is sent whole, which is handled like a server without range support
+                    urlConnection.setRequestProperty("If-Range", mValidator);
+                }
+                if (urlConnection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    mIsRangeUnsupported = true;
+                    return;
+                }
+
+                inputStream = urlConnection.getInputStream();
+                randomAccessFile = new RandomAccessFile(mFile, "rw");
+
+                final long startBytesDownloaded = segment.getBytesDownloaded();
+                long segmentLength = segment.getLength();
+                long bytesDownloaded = startBytesDownloaded + transfer(inputStream, randomAccessFile,
+                        segment.getCurrentOffset(), segmentLength - startBytesDownloaded, new TransferListener() {
+                            @Override
+                            public void onBytesTransferred(long bytesTransferred) {
+                                mSegmentProgress.onSegmentProgress(segment, startBytesDownloaded + bytesTransferred);
+                            }
+                        });
+
+                if (mContinueDownload && bytesDownloaded < segmentLength) {
+                    Timber.e("SegmentDownloader: Connection closed before segment was complete");
+                    mHasError = true;
+                } else if (bytesDownloaded >= segmentLength) {
+                    //The response should end with the segment, reaching the end allows connection reuse
+                    isDrained = inputStream.read() == -1;
+                }
+            } catch (IOException ioe) {
+                Timber.e("SegmentDownloader: Error downloading segment", ioe);
+                mHasError = true;
+            } finally {
+                closeInputStream(inputStream);
+                closeRandomAccessFile(randomAccessFile);
+                if (urlConnection != null) {
+                    releaseConnection(urlConnection, isDrained);
+                }
+            }
+        }
+    }
 }
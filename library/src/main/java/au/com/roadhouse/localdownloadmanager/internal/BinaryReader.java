@@ -0,0 +1,89 @@
+package au.com.roadhouse.localdownloadmanager.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Reads values written by a {@link BinaryWriter}. Reading past the end of the data, or a length that
+ * doesn't fit the data, fails with an IOException rather than returning partial values.
+ */
+public class BinaryReader {
+
+    private final ByteArrayInputStream mByteArrayInputStream;
+    private final DataInputStream mInputStream;
+
+    /**
+     * Creates a reader over a byte array
+     * @param data The data written by a {@link BinaryWriter}
+     */
+    public BinaryReader(byte[] data) {
+        mByteArrayInputStream = new ByteArrayInputStream(data);
+        mInputStream = new DataInputStream(mByteArrayInputStream);
+    }
+
+    public boolean readBoolean() throws IOException {
+        return mInputStream.readBoolean();
+    }
+
+    public byte readByte() throws IOException {
+        return mInputStream.readByte();
+    }
+
+    public int readInt() throws IOException {
+        return mInputStream.readInt();
+    }
+
+    public long readLong() throws IOException {
+        return mInputStream.readLong();
+    }
+
+    /**
+     * @return The next string, or null if a null string was written
+     * @throws IOException If the data is truncated
+     */
+    public String readString() throws IOException {
+        byte[] value = readBytes();
+        return value != null ? new String(value, BinaryWriter.UTF_8) : null;
+    }
+
+    /**
+     * @return The next byte array, or null if a null array was written
+     * @throws IOException If the data is truncated
+     */
+    public byte[] readBytes() throws IOException {
+        int length = mInputStream.readInt();
+        if (length < 0) {
+            return null;
+        } else if (length > mByteArrayInputStream.available()) {
+            throw new EOFException("Length " + length + " is past the end of the data");
+        }
+
+        byte[] value = new byte[length];
+        mInputStream.readFully(value);
+        return value;
+    }
+
+    /**
+     * Reads a block written with {@link BinaryWriter#writeBlock(BinaryWriter)}. Fields of the block
+     * that aren't read are skipped along with it.
+     * @return A reader over the contents of the block
+     * @throws IOException If the data is truncated
+     */
+    public BinaryReader readBlock() throws IOException {
+        byte[] block = readBytes();
+        if (block == null) {
+            throw new IOException("Missing block");
+        }
+        return new BinaryReader(block);
+    }
+
+    /**
+     * @return True if there is more data to read. Fields added in later versions of a block are only
+     * read if they are present.
+     */
+    public boolean hasRemaining() {
+        return mByteArrayInputStream.available() > 0;
+    }
+}
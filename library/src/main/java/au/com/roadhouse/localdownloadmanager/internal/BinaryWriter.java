@@ -0,0 +1,86 @@
+package au.com.roadhouse.localdownloadmanager.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Writes values in the compact binary format used to persist and broadcast the download model.
+ * Objects are written as length prefixed blocks which start with a format version, so a reader
+ * can skip fields added by a newer version of the library and detect fields missing from an older one.
+ * See {@link BinaryReader}.
+ */
+public class BinaryWriter {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteArrayOutputStream mByteArrayOutputStream;
+    private final DataOutputStream mOutputStream;
+
+    public BinaryWriter() {
+        mByteArrayOutputStream = new ByteArrayOutputStream();
+        mOutputStream = new DataOutputStream(mByteArrayOutputStream);
+    }
+
+    public BinaryWriter writeBoolean(boolean value) throws IOException {
+        mOutputStream.writeBoolean(value);
+        return this;
+    }
+
+    public BinaryWriter writeByte(int value) throws IOException {
+        mOutputStream.writeByte(value);
+        return this;
+    }
+
+    public BinaryWriter writeInt(int value) throws IOException {
+        mOutputStream.writeInt(value);
+        return this;
+    }
+
+    public BinaryWriter writeLong(long value) throws IOException {
+        mOutputStream.writeLong(value);
+        return this;
+    }
+
+    /**
+     * Writes a string, which may be null
+     * @param value The string to write
+     * @return This writer
+     * @throws IOException If the string couldn't be written
+     */
+    public BinaryWriter writeString(String value) throws IOException {
+        return writeBytes(value != null ? value.getBytes(UTF_8) : null);
+    }
+
+    /**
+     * Writes a length prefixed byte array, which may be null
+     * @param value The bytes to write
+     * @return This writer
+     * @throws IOException If the bytes couldn't be written
+     */
+    public BinaryWriter writeBytes(byte[] value) throws IOException {
+        if (value == null) {
+            mOutputStream.writeInt(-1);
+        } else {
+            mOutputStream.writeInt(value.length);
+            mOutputStream.write(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes everything written to another writer as a single block
+     * @param block The writer holding the contents of the block
+     * @return This writer
+     * @throws IOException If the block couldn't be written
+     */
+    public BinaryWriter writeBlock(BinaryWriter block) throws IOException {
+        return writeBytes(block.toByteArray());
+    }
+
+    public byte[] toByteArray() throws IOException {
+        mOutputStream.flush();
+        return mByteArrayOutputStream.toByteArray();
+    }
+}
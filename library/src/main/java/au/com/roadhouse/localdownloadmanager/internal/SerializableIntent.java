@@ -5,6 +5,11 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -18,6 +23,14 @@ import timber.log.Timber;
  */
 class SerializableIntent implements Serializable {
 
+    private static final int CODEC_VERSION = 1;
+    private static final byte EXTRA_STRING = 1;
+    private static final byte EXTRA_INT = 2;
+    private static final byte EXTRA_LONG = 3;
+    private static final byte EXTRA_BOOLEAN = 4;
+    private static final byte EXTRA_BYTE_ARRAY = 5;
+    private static final byte EXTRA_SERIALIZABLE = 6;
+
     private String mAction;
     private String mData;
     private String mIntentType;
@@ -63,6 +76,113 @@ class SerializableIntent implements Serializable {
         return serializableIntent;
     }
 
+    /**
+     * Writes this intent in the binary format read by {@link #readFrom(BinaryReader)}. The common
+     * extra types are written directly, while any other extra falls back to java serialization.
+     * @param writer The writer to write to
+     * @throws IOException If an extra couldn't be serialized
+     */
+    void writeTo(BinaryWriter writer) throws IOException {
+        BinaryWriter block = new BinaryWriter();
+        block.writeByte(CODEC_VERSION);
+        block.writeString(mAction);
+        block.writeString(mData);
+        block.writeString(mIntentType);
+        block.writeString(mPackage);
+        block.writeInt(mIntentFlags);
+        block.writeString(mComponent);
+        block.writeInt(mCategories.size());
+        for (int i = 0; i < mCategories.size(); i++) {
+            block.writeString(mCategories.get(i));
+        }
+        block.writeInt(mExtras.size());
+        for (String key : mExtras.keySet()) {
+            block.writeString(key);
+            writeExtra(block, mExtras.get(key));
+        }
+        writer.writeBlock(block);
+    }
+
+    /**
+     * Reads an intent written by {@link #writeTo(BinaryWriter)}
+     * @param reader The reader to read from
+     * @return The intent
+     * @throws IOException If the data is corrupt
+     */
+    static SerializableIntent readFrom(BinaryReader reader) throws IOException {
+        BinaryReader block = reader.readBlock();
+        block.readByte();
+        SerializableIntent serializableIntent = new SerializableIntent();
+        serializableIntent.mAction = block.readString();
+        serializableIntent.mData = block.readString();
+        serializableIntent.mIntentType = block.readString();
+        serializableIntent.mPackage = block.readString();
+        serializableIntent.mIntentFlags = block.readInt();
+        serializableIntent.mComponent = block.readString();
+        int categoryCount = block.readInt();
+        for (int i = 0; i < categoryCount; i++) {
+            serializableIntent.mCategories.add(block.readString());
+        }
+        int extraCount = block.readInt();
+        for (int i = 0; i < extraCount; i++) {
+            String key = block.readString();
+            Serializable extra = readExtra(block);
+            if (extra != null) {
+                serializableIntent.mExtras.put(key, extra);
+            }
+        }
+
+        return serializableIntent;
+    }
+
+    private static void writeExtra(BinaryWriter writer, Serializable value) throws IOException {
+        if (value instanceof String) {
+            writer.writeByte(EXTRA_STRING).writeString((String) value);
+        } else if (value instanceof Integer) {
+            writer.writeByte(EXTRA_INT).writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            writer.writeByte(EXTRA_LONG).writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            writer.writeByte(EXTRA_BOOLEAN).writeBoolean((Boolean) value);
+        } else if (value instanceof byte[]) {
+            writer.writeByte(EXTRA_BYTE_ARRAY).writeBytes((byte[]) value);
+        } else {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+            objectOutputStream.writeObject(value);
+            objectOutputStream.close();
+            writer.writeByte(EXTRA_SERIALIZABLE).writeBytes(byteArrayOutputStream.toByteArray());
+        }
+    }
+
+    private static Serializable readExtra(BinaryReader reader) throws IOException {
+        byte type = reader.readByte();
+        switch (type) {
+            case EXTRA_STRING:
+                return reader.readString();
+            case EXTRA_INT:
+                return reader.readInt();
+            case EXTRA_LONG:
+                return reader.readLong();
+            case EXTRA_BOOLEAN:
+                return reader.readBoolean();
+            case EXTRA_BYTE_ARRAY:
+                return reader.readBytes();
+            case EXTRA_SERIALIZABLE:
+                ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(reader.readBytes()));
+                try {
+                    return (Serializable) objectInputStream.readObject();
+                } catch (ClassNotFoundException e) {
+                    Timber.w("readExtra: Dropping extra of an unknown class", e);
+                    return null;
+                } finally {
+                    objectInputStream.close();
+                }
+            default:
+                throw new IOException("Unknown extra type " + type);
+        }
+    }
+
     /**
      * Builds an intent from a SerializableIntent instance
      * @return A Intent instance
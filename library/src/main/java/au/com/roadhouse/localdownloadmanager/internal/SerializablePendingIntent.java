@@ -5,6 +5,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 /**
@@ -16,6 +17,7 @@ public class SerializablePendingIntent implements Serializable {
     private static final int TYPE_ACTIVITY = 0;
     private static final int TYPE_SERVICE = 1;
     private static final int TYPE_BROADCAST = 2;
+    private static final int CODEC_VERSION = 1;
 
     private SerializableIntent mSerializableIntent;
     private int mType;
@@ -77,6 +79,39 @@ public class SerializablePendingIntent implements Serializable {
         return serializablePendingIntent;
     }
 
+    /**
+     * Writes this pending intent in the binary format read by {@link #readFrom(BinaryReader)}
+     * @param writer The writer to write to
+     * @throws IOException If the intent couldn't be written
+     */
+    public void writeTo(BinaryWriter writer) throws IOException {
+        BinaryWriter block = new BinaryWriter();
+        block.writeByte(CODEC_VERSION);
+        block.writeInt(mType);
+        block.writeInt(mRequestCode);
+        block.writeInt(mFlags);
+        mSerializableIntent.writeTo(block);
+        writer.writeBlock(block);
+    }
+
+    /**
+     * Reads a pending intent written by {@link #writeTo(BinaryWriter)}
+     * @param reader The reader to read from
+     * @return The pending intent
+     * @throws IOException If the data is corrupt
+     */
+    public static SerializablePendingIntent readFrom(BinaryReader reader) throws IOException {
+        BinaryReader block = reader.readBlock();
+        block.readByte();
+        SerializablePendingIntent serializablePendingIntent = new SerializablePendingIntent();
+        serializablePendingIntent.mType = block.readInt();
+        serializablePendingIntent.mRequestCode = block.readInt();
+        serializablePendingIntent.mFlags = block.readInt();
+        serializablePendingIntent.mSerializableIntent = SerializableIntent.readFrom(block);
+
+        return serializablePendingIntent;
+    }
+
     /**
      * Builds a pending intent from a SerializablePendingIntent instance
      * @param context A valid context
@@ -5,23 +5,38 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import au.com.roadhouse.localdownloadmanager.internal.BinaryReader;
+import au.com.roadhouse.localdownloadmanager.internal.BinaryWriter;
 
 /**
  * Represents a single download item within a download task.
  */
 public class DownloadItem implements Parcelable, Serializable {
 
+    //Matches the implicit version of the original class so queues persisted by older versions still load
+    private static final long serialVersionUID = -8846103771900933587L;
+
     public static final int STATUS_WAITING = 0;
     public static final int STATUS_INCOMPLETE = 1;
     public static final int STATUS_COMPLETE = 2;
     public static final int STATUS_ERROR = -1;
 
+    private static final int CODEC_VERSION = 1;
+
     private String mUrl;
     private int mStatus;
     private long mDownloadSize;
     private long mBytesDownloaded;
     private File mFile;
+    private ArrayList<DownloadSegment> mSegments;
+    private int mErrorCode;
+    //The totals of the task this item belongs to, once they've been read
+    private transient TaskProgress mTaskProgress;
 
     DownloadItem(){
     }
@@ -32,6 +47,8 @@ public class DownloadItem implements Parcelable, Serializable {
         mDownloadSize = in.readLong();
         mBytesDownloaded = in.readLong();
         mFile = (File) in.readSerializable();
+        mSegments = in.createTypedArrayList(DownloadSegment.CREATOR);
+        mErrorCode = in.readInt();
     }
 
     public static final Creator<DownloadItem> CREATOR = new Creator<DownloadItem>() {
@@ -62,22 +79,58 @@ public class DownloadItem implements Parcelable, Serializable {
         mStatus = status;
     }
 
-    public void setDownloadSize(long downloadSize) {
+    /**
+     * @return The reason this item failed when its status is {@link #STATUS_ERROR}, one of the
+     * OnDownloadProgressListener error codes
+     */
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    public void setErrorCode(int errorCode) {
+        mErrorCode = errorCode;
+    }
+
+    public synchronized void setDownloadSize(long downloadSize) {
+        if (mTaskProgress != null && downloadSize != mDownloadSize) {
+            mTaskProgress.onItemChanged(mDownloadSize, mBytesDownloaded, downloadSize, mBytesDownloaded);
+        }
         mDownloadSize = downloadSize;
     }
 
-    public void setBytesDownloaded(long bytesDownloaded) {
+    public synchronized void setBytesDownloaded(long bytesDownloaded) {
+        if (mTaskProgress != null && bytesDownloaded != mBytesDownloaded) {
+            mTaskProgress.onItemChanged(mDownloadSize, mBytesDownloaded, mDownloadSize, bytesDownloaded);
+        }
         mBytesDownloaded = bytesDownloaded;
     }
 
-    public long getBytesDownloaded() {
+    public synchronized long getBytesDownloaded() {
         return mBytesDownloaded;
     }
 
-    public long getDownloadSize() {
+    /**
+     * @return The size of this item in bytes, or 0 or less if it isn't known yet
+     */
+    public synchronized long getDownloadSize() {
         return mDownloadSize;
     }
 
+    /**
+     * @return True once the size of this item has been reported by the server
+     */
+    public synchronized boolean isDownloadSizeKnown() {
+        return mDownloadSize > 0;
+    }
+
+    /**
+     * Adds this item to the totals of its task, which it then keeps up to date
+     */
+    synchronized void attach(TaskProgress taskProgress) {
+        mTaskProgress = taskProgress;
+        taskProgress.onItemAdded(mDownloadSize, mBytesDownloaded);
+    }
+
     public File getFile() {
         return mFile;
     }
@@ -86,6 +139,94 @@ public class DownloadItem implements Parcelable, Serializable {
         mFile = file;
     }
 
+    /**
+     * @return True if this item is being downloaded as multiple byte range segments
+     */
+    public boolean isSegmented() {
+        return mSegments != null && !mSegments.isEmpty();
+    }
+
+    /**
+     * Returns the segments this item is split into, or null if the item is downloaded as a single
+     * stream
+     * @return The list of segments for this item
+     */
+    public List<DownloadSegment> getSegments() {
+        return mSegments;
+    }
+
+    /**
+     * Sets the segments this item is split into. Passing null reverts the item to a single stream
+     * download.
+     * @param segments The segments covering the whole download item
+     */
+    public void setSegments(List<DownloadSegment> segments) {
+        mSegments = segments != null ? new ArrayList<>(segments) : null;
+    }
+
+    /**
+     * Encodes this item in the library's binary format. Unlike java serialization the format is
+     * stable across versions of the library, see {@link #fromByteArray(byte[])}.
+     * @return The encoded item
+     */
+    public byte[] toByteArray() {
+        try {
+            BinaryWriter writer = new BinaryWriter();
+            writeTo(writer);
+            return writer.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode download item", e);
+        }
+    }
+
+    /**
+     * Decodes an item encoded by {@link #toByteArray()}, including by other versions of the library
+     * @param data The encoded item
+     * @return The download item
+     * @throws IOException If the data is corrupt
+     */
+    public static DownloadItem fromByteArray(byte[] data) throws IOException {
+        return readFrom(new BinaryReader(data));
+    }
+
+    void writeTo(BinaryWriter writer) throws IOException {
+        BinaryWriter block = new BinaryWriter();
+        block.writeByte(CODEC_VERSION);
+        block.writeString(mUrl);
+        block.writeInt(mStatus);
+        block.writeLong(mDownloadSize);
+        block.writeLong(mBytesDownloaded);
+        block.writeString(mFile != null ? mFile.getPath() : null);
+        block.writeInt(mErrorCode);
+        block.writeInt(mSegments != null ? mSegments.size() : -1);
+        for (int i = 0; mSegments != null && i < mSegments.size(); i++) {
+            mSegments.get(i).writeTo(block);
+        }
+        writer.writeBlock(block);
+    }
+
+    static DownloadItem readFrom(BinaryReader reader) throws IOException {
+        BinaryReader block = reader.readBlock();
+        block.readByte();
+        DownloadItem downloadItem = new DownloadItem();
+        downloadItem.mUrl = block.readString();
+        downloadItem.mStatus = block.readInt();
+        downloadItem.mDownloadSize = block.readLong();
+        downloadItem.mBytesDownloaded = block.readLong();
+        String path = block.readString();
+        downloadItem.mFile = path != null ? new File(path) : null;
+        downloadItem.mErrorCode = block.readInt();
+        int segmentCount = block.readInt();
+        if (segmentCount >= 0) {
+            downloadItem.mSegments = new ArrayList<>(segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                downloadItem.mSegments.add(DownloadSegment.readFrom(block));
+            }
+        }
+
+        return downloadItem;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -98,5 +239,7 @@ public class DownloadItem implements Parcelable, Serializable {
         dest.writeLong(mDownloadSize);
         dest.writeLong(mBytesDownloaded);
         dest.writeSerializable(mFile);
+        dest.writeTypedList(mSegments);
+        dest.writeInt(mErrorCode);
     }
 }
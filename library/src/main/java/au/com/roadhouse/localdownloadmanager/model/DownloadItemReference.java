@@ -0,0 +1,95 @@
+package au.com.roadhouse.localdownloadmanager.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.File;
+
+/**
+ * A compact reference to a download item, sent in batched broadcasts instead of the item and its
+ * whole download task
+ */
+public class DownloadItemReference implements Parcelable {
+
+    private final String mTag;
+    private final String mUrl;
+    private final String mFilePath;
+    private final int mStatus;
+    private final int mErrorCode;
+
+    /**
+     * Creates a reference to the current state of a download item
+     * @param downloadTask The task the item belongs to
+     * @param downloadItem The download item
+     */
+    public DownloadItemReference(DownloadTask downloadTask, DownloadItem downloadItem) {
+        mTag = downloadTask.getTag();
+        mUrl = downloadItem.getUrl();
+        mFilePath = downloadItem.getFile() != null ? downloadItem.getFile().getPath() : null;
+        mStatus = downloadItem.getStatus();
+        mErrorCode = downloadItem.getErrorCode();
+    }
+
+    private DownloadItemReference(Parcel in) {
+        mTag = in.readString();
+        mUrl = in.readString();
+        mFilePath = in.readString();
+        mStatus = in.readInt();
+        mErrorCode = in.readInt();
+    }
+
+    public static final Creator<DownloadItemReference> CREATOR = new Creator<DownloadItemReference>() {
+        @Override
+        public DownloadItemReference createFromParcel(Parcel in) {
+            return new DownloadItemReference(in);
+        }
+
+        @Override
+        public DownloadItemReference[] newArray(int size) {
+            return new DownloadItemReference[size];
+        }
+    };
+
+    /**
+     * @return The tag of the download task the item belongs to
+     */
+    public String getTag() {
+        return mTag;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return The file the item was downloaded to, or null if it wasn't assigned one
+     */
+    public File getFile() {
+        return mFilePath != null ? new File(mFilePath) : null;
+    }
+
+    /**
+     * @return One of the DownloadItem STATUS_ values
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mTag);
+        dest.writeString(mUrl);
+        dest.writeString(mFilePath);
+        dest.writeInt(mStatus);
+        dest.writeInt(mErrorCode);
+    }
+}
@@ -0,0 +1,117 @@
+package au.com.roadhouse.localdownloadmanager.model;
+
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import au.com.roadhouse.localdownloadmanager.internal.BinaryReader;
+import au.com.roadhouse.localdownloadmanager.internal.BinaryWriter;
+
+/**
+ * Represents a single byte range of a segmented download item. Each segment is downloaded over its
+ * own connection and tracks its own progress so it can be resumed independently.
+ */
+public class DownloadSegment implements Parcelable, Serializable {
+
+    //Pinned so serialized queues holding segments still load when the methods of this class change
+    private static final long serialVersionUID = 4279683069719920670L;
+    private static final int CODEC_VERSION = 1;
+
+    private long mStartOffset;
+    private long mEndOffset;
+    private long mBytesDownloaded;
+
+    /**
+     * Creates a new segment covering an inclusive byte range
+     * @param startOffset The first byte of the segment
+     * @param endOffset The last byte of the segment
+     */
+    public DownloadSegment(long startOffset, long endOffset) {
+        mStartOffset = startOffset;
+        mEndOffset = endOffset;
+    }
+
+    private DownloadSegment(Parcel in) {
+        mStartOffset = in.readLong();
+        mEndOffset = in.readLong();
+        mBytesDownloaded = in.readLong();
+    }
+
+    public static final Creator<DownloadSegment> CREATOR = new Creator<DownloadSegment>() {
+        @Override
+        public DownloadSegment createFromParcel(Parcel in) {
+            return new DownloadSegment(in);
+        }
+
+        @Override
+        public DownloadSegment[] newArray(int size) {
+            return new DownloadSegment[size];
+        }
+    };
+
+    public long getStartOffset() {
+        return mStartOffset;
+    }
+
+    public long getEndOffset() {
+        return mEndOffset;
+    }
+
+    /**
+     * @return The total size of this segment in bytes
+     */
+    public long getLength() {
+        return mEndOffset - mStartOffset + 1;
+    }
+
+    public long getBytesDownloaded() {
+        return mBytesDownloaded;
+    }
+
+    public void setBytesDownloaded(long bytesDownloaded) {
+        mBytesDownloaded = bytesDownloaded;
+    }
+
+    /**
+     * @return The file offset the next byte of this segment should be written to
+     */
+    public long getCurrentOffset() {
+        return mStartOffset + mBytesDownloaded;
+    }
+
+    public boolean isComplete() {
+        return mBytesDownloaded >= getLength();
+    }
+
+    void writeTo(BinaryWriter writer) throws IOException {
+        BinaryWriter block = new BinaryWriter();
+        block.writeByte(CODEC_VERSION);
+        block.writeLong(mStartOffset);
+        block.writeLong(mEndOffset);
+        block.writeLong(mBytesDownloaded);
+        writer.writeBlock(block);
+    }
+
+    static DownloadSegment readFrom(BinaryReader reader) throws IOException {
+        BinaryReader block = reader.readBlock();
+        block.readByte();
+        DownloadSegment segment = new DownloadSegment(block.readLong(), block.readLong());
+        segment.mBytesDownloaded = block.readLong();
+        return segment;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeLong(mStartOffset);
+        dest.writeLong(mEndOffset);
+        dest.writeLong(mBytesDownloaded);
+    }
+}
@@ -5,12 +5,16 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.DrawableRes;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import au.com.roadhouse.localdownloadmanager.IndexedQueueCodec;
 import au.com.roadhouse.localdownloadmanager.R;
+import au.com.roadhouse.localdownloadmanager.internal.BinaryReader;
+import au.com.roadhouse.localdownloadmanager.internal.BinaryWriter;
 import au.com.roadhouse.localdownloadmanager.internal.SerializablePendingIntent;
 
 /**
@@ -19,11 +23,64 @@ import au.com.roadhouse.localdownloadmanager.internal.SerializablePendingIntent;
  */
 public class DownloadTask implements Parcelable, Serializable, Comparable {
 
+    //Matches the implicit version of the original class so queues persisted by older versions still load
+    private static final long serialVersionUID = -4851761361464094989L;
+
     public static final int PENDING = 0;
     public static final int DOWNLOADING = 1;
     public static final int FINISHED = 2;
     public static final int INCOMPLETE = -1;
 
+    /**
+     * The part of a task holding its own fields, for {@link au.com.roadhouse.localdownloadmanager.PersistentQueue#updatePart(Object, int)}.
+     * The other parts of a task are its download items, numbered by their position.
+     */
+    public static final int PART_TASK = -1;
+
+    private static final int CODEC_VERSION = 1;
+
+    /**
+     * Stores download tasks in a PersistentQueue using the binary format of {@link #toByteArray()}.
+     * The index holds the tag, priority, status and enqueue order of a task, but not its download items.
+     */
+    public static final IndexedQueueCodec<DownloadTask> CODEC = new IndexedQueueCodec<DownloadTask>() {
+        @Override
+        public byte[] encode(DownloadTask downloadTask) {
+            return downloadTask.toByteArray();
+        }
+
+        @Override
+        public DownloadTask decode(byte[] data) throws IOException {
+            return fromByteArray(data);
+        }
+
+        @Override
+        public byte[] encodeIndex(DownloadTask downloadTask) throws IOException {
+            BinaryWriter writer = new BinaryWriter();
+            BinaryWriter block = new BinaryWriter();
+            block.writeByte(CODEC_VERSION);
+            block.writeString(downloadTask.mTag);
+            block.writeInt(downloadTask.mPriority);
+            block.writeInt(downloadTask.mStatus);
+            block.writeLong(downloadTask.mSequenceNumber);
+            block.writeLong(downloadTask.mEnqueueTime);
+            writer.writeBlock(block);
+            return writer.toByteArray();
+        }
+
+        @Override
+        public DownloadTask decodeIndex(byte[] data) throws IOException {
+            BinaryReader block = new BinaryReader(data).readBlock();
+            block.readByte();
+            DownloadTask downloadTask = new DownloadTask(block.readString());
+            downloadTask.mPriority = block.readInt();
+            downloadTask.mStatus = block.readInt();
+            downloadTask.mSequenceNumber = block.readLong();
+            downloadTask.mEnqueueTime = block.readLong();
+            return downloadTask;
+        }
+    };
+
     private int mPriority;
     private String mTag;
     private String mLabel;
@@ -31,6 +88,10 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
     private int mStatus;
     private SerializablePendingIntent mNotificationPendingIntent;
     private int mNotificationIcon;
+    private int mMaxConcurrentItems = 1;
+    private long mSequenceNumber;
+    private long mEnqueueTime;
+    private transient volatile TaskProgress mTaskProgress;
 
     public DownloadTask() {
         mNotificationIcon = R.drawable.ic_default_notify;
@@ -49,6 +110,9 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
         mStatus = in.readInt();
         mNotificationIcon = in.readInt();
         mNotificationPendingIntent = (SerializablePendingIntent) in.readSerializable();
+        mMaxConcurrentItems = in.readInt();
+        mSequenceNumber = in.readLong();
+        mEnqueueTime = in.readLong();
     }
 
     public static final Creator<DownloadTask> CREATOR = new Creator<DownloadTask>() {
@@ -69,6 +133,7 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
         mLabel = builder.mLabel;
         mNotificationPendingIntent = builder.mNotificationPendingIntent;
         mNotificationIcon = builder.mNotificationIcon;
+        mMaxConcurrentItems = builder.mMaxConcurrentItems;
         for (int i = 0; i < builder.mDownloadUrls.size(); i++) {
             addDownloadUrl(builder.mDownloadUrls.get(i));
         }
@@ -90,6 +155,45 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
         return mTag;
     }
 
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return The order in which this task was queued, used to download tasks of the same priority
+     * first in, first out
+     */
+    public long getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * @return The time this task was queued, in milliseconds since the epoch
+     */
+    public long getEnqueueTime() {
+        return mEnqueueTime;
+    }
+
+    /**
+     * Records when this task was queued. Set by the DownloadService as the task is added to its queue.
+     * @param sequenceNumber A number greater than that of every task queued before this one
+     * @param enqueueTime The time the task was queued, in milliseconds since the epoch
+     */
+    public void setEnqueued(long sequenceNumber, long enqueueTime) {
+        mSequenceNumber = sequenceNumber;
+        mEnqueueTime = enqueueTime;
+    }
+
+    /**
+     * Sets the priority of this task relative to the other queued tasks. Changing the priority of a
+     * queued task only takes effect through
+     * {@link au.com.roadhouse.localdownloadmanager.LocalDownloadManager#updateDownloadPriority(String, int)}.
+     * @param priority The priority of the task
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
     public int getNotificationIcon() {
         return mNotificationIcon;
     }
@@ -122,7 +226,20 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
     public void addDownloadUrl(String url) {
         DownloadItem downloadItem = new DownloadItem();
         downloadItem.setUrl(url);
-        mDownloadItemsList.add(downloadItem);
+        synchronized (this) {
+            mDownloadItemsList.add(downloadItem);
+            if (mTaskProgress != null) {
+                downloadItem.attach(mTaskProgress);
+            }
+        }
+    }
+
+    /**
+     * @return The maximum number of download items of this task which are downloaded at the same time
+     */
+    public int getMaxConcurrentItems() {
+        //Tasks persisted before this setting existed deserialize with 0
+        return Math.max(1, mMaxConcurrentItems);
     }
 
     public List<DownloadItem> getDownloadItems() {
@@ -137,22 +254,47 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
         return mStatus;
     }
 
+    /**
+     * Returns the total size of this task. Item sizes are learned as the items are downloaded, so until
+     * every size is known this is a provisional total which estimates the unknown items as the average
+     * size of the known items, or as the bytes already downloaded of them if that is larger. See
+     * {@link #isDownloadSizeKnown()}.
+     * @return The total size of all download items in bytes
+     */
     public long getDownloadSize() {
-        long totalDownloadSize = 0;
-        for (int i = 0; i < mDownloadItemsList.size(); i++) {
-            totalDownloadSize += mDownloadItemsList.get(i).getDownloadSize();
-        }
+        return getTaskProgress().getDownloadSize();
+    }
 
-        return totalDownloadSize;
+    /**
+     * @return True if the size of every download item is known, and {@link #getDownloadSize()} is final
+     */
+    public boolean isDownloadSizeKnown() {
+        return getTaskProgress().isDownloadSizeKnown();
     }
 
+    /**
+     * @return The total bytes downloaded of all download items. Like {@link #getDownloadSize()} this is
+     * a running total, so it is cheap to read while items are downloading.
+     */
     public long getBytesDownloaded() {
-        long totalBytesDownloaded = 0;
-        for (int i = 0; i < mDownloadItemsList.size(); i++) {
-            totalBytesDownloaded += mDownloadItemsList.get(i).getBytesDownloaded();
-        }
+        return getTaskProgress().getBytesDownloaded();
+    }
 
-        return totalBytesDownloaded;
+    /**
+     * The totals are created from the items the first time they are read, after which the items keep
+     * them up to date. Items added to {@link #getDownloadItems()} directly aren't counted.
+     */
+    private TaskProgress getTaskProgress() {
+        TaskProgress taskProgress = mTaskProgress;
+        if (taskProgress == null) {
+            synchronized (this) {
+                if (mTaskProgress == null) {
+                    mTaskProgress = new TaskProgress(mDownloadItemsList);
+                }
+                taskProgress = mTaskProgress;
+            }
+        }
+        return taskProgress;
     }
 
     @Override
@@ -168,6 +310,135 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
         }
     }
 
+    /**
+     * Encodes this task and its download items in the library's binary format. Unlike java
+     * serialization the format is stable across versions of the library, see {@link #fromByteArray(byte[])}.
+     * @return The encoded task
+     */
+    public byte[] toByteArray() {
+        try {
+            BinaryWriter writer = new BinaryWriter();
+            writeTo(writer, true);
+            return writer.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode download task", e);
+        }
+    }
+
+    /**
+     * Encodes this task without its download items, for stores which keep each item separately.
+     * Decoded by {@link #fromByteArray(byte[])} as a task with no items.
+     * @return The encoded task
+     */
+    public byte[] toByteArrayWithoutItems() {
+        try {
+            BinaryWriter writer = new BinaryWriter();
+            writeTo(writer, false);
+            return writer.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode download task", e);
+        }
+    }
+
+    /**
+     * Decodes a task encoded by {@link #toByteArray()}, including by other versions of the library.
+     * Fields written by a newer version are skipped, and fields missing from an older version keep
+     * their defaults.
+     * @param data The encoded task
+     * @return The download task
+     * @throws IOException If the data is corrupt
+     */
+    public static DownloadTask fromByteArray(byte[] data) throws IOException {
+        return readFrom(new BinaryReader(data));
+    }
+
+    private static DownloadTask readFrom(BinaryReader reader) throws IOException {
+        BinaryReader block = reader.readBlock();
+        block.readByte();
+        DownloadTask downloadTask = new DownloadTask();
+        downloadTask.mPriority = block.readInt();
+        downloadTask.mTag = block.readString();
+        downloadTask.mLabel = block.readString();
+        downloadTask.mStatus = block.readInt();
+        downloadTask.mNotificationIcon = block.readInt();
+        downloadTask.mMaxConcurrentItems = block.readInt();
+        if (block.readBoolean()) {
+            downloadTask.mNotificationPendingIntent = SerializablePendingIntent.readFrom(block);
+        }
+        int itemCount = block.readInt();
+        for (int i = 0; i < itemCount; i++) {
+            downloadTask.mDownloadItemsList.add(DownloadItem.readFrom(block));
+        }
+        if (block.hasRemaining()) {
+            downloadTask.mSequenceNumber = block.readLong();
+            downloadTask.mEnqueueTime = block.readLong();
+        }
+
+        return downloadTask;
+    }
+
+    /**
+     * Encodes several tasks together in the format of {@link #toByteArray()}
+     * @param downloadTasks The tasks to encode
+     * @return The encoded tasks
+     */
+    public static byte[] toByteArray(List<DownloadTask> downloadTasks) {
+        try {
+            BinaryWriter writer = new BinaryWriter();
+            writer.writeInt(downloadTasks.size());
+            for (int i = 0; i < downloadTasks.size(); i++) {
+                downloadTasks.get(i).writeTo(writer, true);
+            }
+            return writer.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to encode download tasks", e);
+        }
+    }
+
+    /**
+     * Decodes tasks encoded by {@link #toByteArray(List)}
+     * @param data The encoded tasks
+     * @return The download tasks
+     * @throws IOException If the data is corrupt
+     */
+    public static List<DownloadTask> listFromByteArray(byte[] data) throws IOException {
+        BinaryReader reader = new BinaryReader(data);
+        int taskCount = reader.readInt();
+        List<DownloadTask> downloadTasks = new ArrayList<>();
+        for (int i = 0; i < taskCount; i++) {
+            downloadTasks.add(readFrom(reader));
+        }
+        return downloadTasks;
+    }
+
+    private void writeTo(BinaryWriter writer, boolean includeItems) throws IOException {
+        BinaryWriter block = new BinaryWriter();
+        block.writeByte(CODEC_VERSION);
+        block.writeInt(mPriority);
+        block.writeString(mTag);
+        block.writeString(mLabel);
+        block.writeInt(mStatus);
+        block.writeInt(mNotificationIcon);
+        block.writeInt(mMaxConcurrentItems);
+        block.writeBoolean(mNotificationPendingIntent != null);
+        if (mNotificationPendingIntent != null) {
+            mNotificationPendingIntent.writeTo(block);
+        }
+        int itemCount = includeItems ? mDownloadItemsList.size() : 0;
+        block.writeInt(itemCount);
+        for (int i = 0; i < itemCount; i++) {
+            mDownloadItemsList.get(i).writeTo(block);
+        }
+        block.writeLong(mSequenceNumber);
+        block.writeLong(mEnqueueTime);
+        writer.writeBlock(block);
+    }
+
+    @Override
+    public int hashCode() {
+        return mTag != null ? mTag.hashCode() : 0;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -182,8 +453,14 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
         dest.writeInt(mStatus);
         dest.writeInt(mNotificationIcon);
         dest.writeSerializable(mNotificationPendingIntent);
+        dest.writeInt(mMaxConcurrentItems);
+        dest.writeLong(mSequenceNumber);
+        dest.writeLong(mEnqueueTime);
     }
 
+    /**
+     * Orders tasks by priority, and tasks of the same priority in the order they were queued
+     */
     @Override
     public int compareTo(Object o) {
         if(o instanceof DownloadTask){
@@ -191,6 +468,10 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
                 return -1;
             } else if (mPriority > ((DownloadTask) o).mPriority){
                 return 1;
+            } else if (mSequenceNumber < ((DownloadTask) o).mSequenceNumber) {
+                return -1;
+            } else if (mSequenceNumber > ((DownloadTask) o).mSequenceNumber) {
+                return 1;
             }
         }
 
@@ -204,6 +485,7 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
         private final String mTag;
         private int mNotificationIcon = R.drawable.ic_default_notify;
         private int mPriority;
+        private int mMaxConcurrentItems = 1;
         private String mLabel;
         private List<String> mDownloadUrls = new ArrayList<>();
         private SerializablePendingIntent mNotificationPendingIntent;
@@ -249,6 +531,17 @@ public class DownloadTask implements Parcelable, Serializable, Comparable {
             return this;
         }
 
+        /**
+         * Sets how many download urls of this task may be downloaded at the same time. Useful for
+         * tasks made up of many small files. Defaults to 1, which downloads the urls one after another.
+         * @param maxConcurrentItems The maximum number of urls downloaded at once
+         * @return A builder instance
+         */
+        public Builder setMaxConcurrentItems(int maxConcurrentItems){
+            mMaxConcurrentItems = Math.max(1, maxConcurrentItems);
+            return this;
+        }
+
         public DownloadTask build() {
             return new DownloadTask(this);
         }
@@ -0,0 +1,77 @@
+package au.com.roadhouse.localdownloadmanager.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A compact reference to a download task, sent in batched broadcasts instead of the whole task
+ */
+public class DownloadTaskReference implements Parcelable {
+
+    private final String mTag;
+    private final String mLabel;
+    private final int mPriority;
+    private final int mItemCount;
+
+    /**
+     * Creates a reference to a download task
+     * @param downloadTask The download task
+     */
+    public DownloadTaskReference(DownloadTask downloadTask) {
+        mTag = downloadTask.getTag();
+        mLabel = downloadTask.getLabel();
+        mPriority = downloadTask.getPriority();
+        mItemCount = downloadTask.getDownloadItems().size();
+    }
+
+    private DownloadTaskReference(Parcel in) {
+        mTag = in.readString();
+        mLabel = in.readString();
+        mPriority = in.readInt();
+        mItemCount = in.readInt();
+    }
+
+    public static final Creator<DownloadTaskReference> CREATOR = new Creator<DownloadTaskReference>() {
+        @Override
+        public DownloadTaskReference createFromParcel(Parcel in) {
+            return new DownloadTaskReference(in);
+        }
+
+        @Override
+        public DownloadTaskReference[] newArray(int size) {
+            return new DownloadTaskReference[size];
+        }
+    };
+
+    public String getTag() {
+        return mTag;
+    }
+
+    public String getLabel() {
+        return mLabel;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return The number of download items in the task
+     */
+    public int getItemCount() {
+        return mItemCount;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mTag);
+        dest.writeString(mLabel);
+        dest.writeInt(mPriority);
+        dest.writeInt(mItemCount);
+    }
+}
@@ -0,0 +1,45 @@
+package au.com.roadhouse.localdownloadmanager.model;
+
+import java.util.Comparator;
+
+/**
+ * Orders download tasks by a priority which improves the longer a task waits, so a steady stream of
+ * higher priority tasks can't hold back a lower priority task forever. A task moves one priority
+ * level ahead for every aging interval it has been queued.
+ *
+ * Every queued task ages at the same rate, so the relative order of two tasks never changes while
+ * they wait. Comparing priority * interval + enqueue time gives that order without depending on the
+ * current time, which keeps the queue's heap valid.
+ */
+public class PriorityAgingComparator implements Comparator<DownloadTask> {
+
+    private final long mAgingInterval;
+
+    /**
+     * Creates a new comparator
+     * @param agingInterval The time in milliseconds a task must wait to move one priority level ahead
+     */
+    public PriorityAgingComparator(long agingInterval) {
+        if (agingInterval <= 0) {
+            throw new IllegalArgumentException("Aging interval must be positive");
+        }
+        mAgingInterval = agingInterval;
+    }
+
+    public long getAgingInterval() {
+        return mAgingInterval;
+    }
+
+    @Override
+    public int compare(DownloadTask first, DownloadTask second) {
+        long firstRank = first.getPriority() * mAgingInterval + first.getEnqueueTime();
+        long secondRank = second.getPriority() * mAgingInterval + second.getEnqueueTime();
+        if (firstRank != secondRank) {
+            return firstRank < secondRank ? -1 : 1;
+        } else if (first.getSequenceNumber() != second.getSequenceNumber()) {
+            return first.getSequenceNumber() < second.getSequenceNumber() ? -1 : 1;
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,86 @@
+package au.com.roadhouse.localdownloadmanager.model;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of the download items of a task. Each item adds the change to its own progress as
+ * it is made, so the totals of a task can be read in constant time however many items it has, while
+ * several of its items download at once.
+ */
+class TaskProgress {
+
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+    private final AtomicLong mKnownDownloadSize = new AtomicLong();
+    private final AtomicInteger mKnownItemCount = new AtomicInteger();
+    private final AtomicLong mUnknownBytesDownloaded = new AtomicLong();
+    private final AtomicInteger mItemCount = new AtomicInteger();
+
+    /**
+     * Creates the totals of a list of items, and attaches each item so it keeps them up to date
+     * @param downloadItems The items of the task
+     */
+    TaskProgress(List<DownloadItem> downloadItems) {
+        for (int i = 0; i < downloadItems.size(); i++) {
+            downloadItems.get(i).attach(this);
+        }
+    }
+
+    void onItemAdded(long downloadSize, long bytesDownloaded) {
+        mItemCount.incrementAndGet();
+        onItemChanged(-1, 0, downloadSize, bytesDownloaded);
+    }
+
+    /**
+     * Adds the change to a single item to the totals
+     * @param oldDownloadSize The size of the item before the change, 0 or less if it wasn't known
+     * @param oldBytesDownloaded The bytes downloaded before the change
+     * @param downloadSize The size of the item after the change
+     * @param bytesDownloaded The bytes downloaded after the change
+     */
+    void onItemChanged(long oldDownloadSize, long oldBytesDownloaded, long downloadSize, long bytesDownloaded) {
+        boolean wasKnown = oldDownloadSize > 0;
+        boolean isKnown = downloadSize > 0;
+        mBytesDownloaded.addAndGet(bytesDownloaded - oldBytesDownloaded);
+        if (wasKnown == isKnown) {
+            if (isKnown) {
+                mKnownDownloadSize.addAndGet(downloadSize - oldDownloadSize);
+            } else {
+                mUnknownBytesDownloaded.addAndGet(bytesDownloaded - oldBytesDownloaded);
+            }
+        } else if (isKnown) {
+            mKnownDownloadSize.addAndGet(downloadSize);
+            mKnownItemCount.incrementAndGet();
+            mUnknownBytesDownloaded.addAndGet(-oldBytesDownloaded);
+        } else {
+            mKnownDownloadSize.addAndGet(-oldDownloadSize);
+            mKnownItemCount.decrementAndGet();
+            mUnknownBytesDownloaded.addAndGet(bytesDownloaded);
+        }
+    }
+
+    long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    /**
+     * @return The total size of the items, estimating the items of unknown size as the average size
+     * of the known items, or as the bytes already downloaded if that is larger
+     */
+    long getDownloadSize() {
+        long knownDownloadSize = mKnownDownloadSize.get();
+        int knownItemCount = mKnownItemCount.get();
+        int unknownItemCount = mItemCount.get() - knownItemCount;
+        if (unknownItemCount <= 0) {
+            return knownDownloadSize;
+        }
+
+        long estimatedItemSize = knownItemCount > 0 ? knownDownloadSize / knownItemCount : 0;
+        return knownDownloadSize + Math.max(estimatedItemSize * unknownItemCount, mUnknownBytesDownloaded.get());
+    }
+
+    boolean isDownloadSizeKnown() {
+        return mKnownItemCount.get() >= mItemCount.get();
+    }
+}
@@ -9,6 +9,8 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -23,27 +25,67 @@ import android.support.v4.content.LocalBroadcastManager;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import au.com.roadhouse.localdownloadmanager.BufferPool;
+import au.com.roadhouse.localdownloadmanager.ConnectionReuseTracker;
+import au.com.roadhouse.localdownloadmanager.DownloadCheckpoint;
+import au.com.roadhouse.localdownloadmanager.DownloadEventDispatcher;
 import au.com.roadhouse.localdownloadmanager.DownloadHttpStack;
+import au.com.roadhouse.localdownloadmanager.FileQueueStore;
+import au.com.roadhouse.localdownloadmanager.HostConnectionScheduler;
+import au.com.roadhouse.localdownloadmanager.ItemDownloadHttpStack;
+import au.com.roadhouse.localdownloadmanager.KeepAliveDownloadStack;
 import au.com.roadhouse.localdownloadmanager.OnDownloadProgressListener;
+import au.com.roadhouse.localdownloadmanager.OnInsufficientStorageListener;
 import au.com.roadhouse.localdownloadmanager.PersistentQueue;
+import au.com.roadhouse.localdownloadmanager.QueueStore;
 import au.com.roadhouse.localdownloadmanager.R;
+import au.com.roadhouse.localdownloadmanager.SqliteDownloadTaskStore;
 import au.com.roadhouse.localdownloadmanager.UrlDownloadStack;
 import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadItemReference;
 import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTaskReference;
 import au.com.roadhouse.localdownloadmanager.model.NetworkHelper;
+import au.com.roadhouse.localdownloadmanager.model.PriorityAgingComparator;
+import au.com.roadhouse.localdownloadmanager.toolkit.DownloadStatusService;
 import timber.log.Timber;
 
 /**
  * The main service for the LocalDownloadManager, manages downloads, notifications, and download state
- * broadcasts.
+ * events. Events are delivered to the listeners of the {@link DownloadEventDispatcher}, and also sent
+ * as broadcasts once enabled with LocalDownloadManager#setBroadcastsEnabled. A broadcast is only built
+ * for the local receivers and manifest receivers which subscribe to its event.
  */
 public class DownloadService extends Service implements NetworkHelper.OnNetworkStateChangeListener {
 
     private static final String TAG = "DownloadService";
     private static final String CHANNEL_ID = "NotificationChannelId";
     private static final int NOTIFICATION_ID = 101;
+    private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 1;
+    private static final long NOTIFICATION_INTERVAL = 16;
+    private static final String HOST_CONNECTION_LIMITS = "download_host_limits";
+    private static final int SIZE_PROBE_THREADS = 4;
+    //How much of the previous download rate is kept by each sample
+    private static final double RATE_SMOOTHING = 0.9;
+    //Keeps a batched broadcast well inside the binder transaction limit
+    private static final int MAX_BATCH_SIZE = 500;
+    //How often the progress of a downloading item is written to the queue, status changes are written at once
+    private static final long PROGRESS_PERSIST_INTERVAL = 5000;
 
     //Command Actions
     public static final String ACTION_QUEUE_DOWNLOAD = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_QUEUE_DOWNLOAD";
@@ -52,6 +94,14 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
     public static final String ACTION_REMOVE_DOWNLOAD = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_REMOVE_DOWNLOAD";
     public static final String ACTION_REMOVE_ALL_DOWNLOAD = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_REMOVE_ALL_DOWNLOAD";
     public static final String ACTION_SETTINGS_NETWORK_TYPE = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_NETWORK_TYPE";
+    public static final String ACTION_SETTINGS_SEGMENT_COUNT = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_SEGMENT_COUNT";
+    public static final String ACTION_SETTINGS_MAX_CONCURRENT_DOWNLOADS = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_MAX_CONCURRENT_DOWNLOADS";
+    public static final String ACTION_SETTINGS_PRIORITY_AGING = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_PRIORITY_AGING";
+    public static final String ACTION_UPDATE_PRIORITY = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_UPDATE_PRIORITY";
+    public static final String ACTION_SETTINGS_HOST_CONNECTIONS = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_HOST_CONNECTIONS";
+    public static final String ACTION_SETTINGS_BROADCASTS = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_BROADCASTS";
+    public static final String ACTION_SETTINGS_EVENT_BATCHING = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_EVENT_BATCHING";
+    public static final String ACTION_SETTINGS_COMPACT_BROADCASTS = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_SETTINGS_COMPACT_BROADCASTS";
 
     //Broadcast Actions
     public static final String ACTION_DOWNLOAD_QUEUED = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_DOWNLOAD_QUEUED";
@@ -60,36 +110,91 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
     public static final String ACTION_DOWNLOAD_ITEM_COMPLETE = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_DOWNLOAD_ITEM_COMPLETE";
     public static final String ACTION_DOWNLOAD_CANCELLED = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_DOWNLOAD_CANCELLED";
     public static final String ACTION_DOWNLOAD_ERROR = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_DOWNLOAD_ERROR";
+    public static final String ACTION_DOWNLOADS_QUEUED = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_DOWNLOADS_QUEUED";
+    public static final String ACTION_DOWNLOAD_ITEMS_COMPLETE = "au.com.roadhouse.filedownloaderservice.DownloadService.ACTION_DOWNLOAD_ITEMS_COMPLETE";
+    //In the order of the DownloadEventDispatcher EVENT_ flags
+    private static final String[] EVENT_ACTIONS = {ACTION_DOWNLOAD_QUEUED, ACTION_DOWNLOAD_PROGRESS,
+            ACTION_DOWNLOAD_CANCELLED, ACTION_DOWNLOAD_ERROR, ACTION_DOWNLOAD_ITEM_COMPLETE, ACTION_DOWNLOAD_COMPLETE};
+    private static final int CHANNEL_LOCAL = 1;
+    private static final int CHANNEL_MANIFEST = 1 << 1;
 
     //Extras
     public static final String EXTRA_DOWNLOAD_TASK = "au.com.roadhouse.filedownloaderservice.DownloadService.EXTRA_DOWNLOAD_TASK";
+    public static final String EXTRA_DOWNLOAD_TASK_DATA = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_DOWNLOAD_TASK_DATA";
+    public static final String EXTRA_DOWNLOAD_TASKS = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_DOWNLOAD_TASKS";
+    public static final String EXTRA_DOWNLOAD_TAGS = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_DOWNLOAD_TAGS";
     public static final String EXTRA_DOWNLOAD_TAG = "au.com.roadhouse.filedownloaderservice.DownloadService.EXTRA_DOWNLOAD_TAG";
     public static final String EXTRA_BYTES_DOWNLOADED = "au.com.roadhouse.filedownloaderservice.DownloadService.EXTRA_BYTES_DOWNLOADED";
     public static final String EXTRA_TOTAL_SIZE = "au.com.roadhouse.filedownloaderservice.DownloadService.EXTRA_TOTAL_SIZE";
     public static final String EXTRA_WIFI_ONLY = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_WIFI_ONLY";
+    public static final String EXTRA_SEGMENT_COUNT = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_SEGMENT_COUNT";
+    public static final String EXTRA_MAX_CONCURRENT_DOWNLOADS = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_MAX_CONCURRENT_DOWNLOADS";
+    public static final String EXTRA_MAX_CONNECTIONS_PER_HOST = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_MAX_CONNECTIONS_PER_HOST";
+    public static final String EXTRA_HOST = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_HOST";
     public static final String EXTRA_DOWNLOAD_ITEM = "au.com.roadhouse.filedownloaderservice.DownloadService.EXTRA_DOWNLOAD_ITEM";
+    public static final String EXTRA_DOWNLOAD_ITEM_DATA = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_DOWNLOAD_ITEM_DATA";
+    public static final String EXTRA_AGING_INTERVAL = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_AGING_INTERVAL";
+    public static final String EXTRA_PRIORITY = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_PRIORITY";
+    public static final String EXTRA_ERROR_CODE = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_ERROR_CODE";
+    public static final String EXTRA_BROADCASTS_ENABLED = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_BROADCASTS_ENABLED";
+    public static final String EXTRA_BYTES_PER_SECOND = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_BYTES_PER_SECOND";
+    public static final String EXTRA_BATCH_WINDOW = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_BATCH_WINDOW";
+    public static final String EXTRA_COMPACT_BROADCASTS_ENABLED = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_COMPACT_BROADCASTS_ENABLED";
+    public static final String EXTRA_DOWNLOAD_TASK_REFERENCES = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_DOWNLOAD_TASK_REFERENCES";
+    public static final String EXTRA_DOWNLOAD_ITEM_REFERENCES = "au.com.roadhouse.localdownloadmanager.DownloadService.EXTRA_DOWNLOAD_ITEM_REFERENCES";
 
     private ServiceHandler mServiceHandler;
-    private DownloadWorker mDownloadWorker;
+    private final List<DownloadWorker> mDownloadWorkers = new ArrayList<>();
     private PersistentQueue<DownloadTask> mDownloadQueue;
-    private DownloadHttpStack mDownloadStack;
+    private HostConnectionScheduler mHostConnectionScheduler;
+    private ConnectionReuseTracker mConnectionReuseTracker;
+    private ExecutorService mSizeProbeExecutor;
+    private ScheduledExecutorService mProgressSampler;
+    private ScheduledFuture<?> mProgressSample;
+    private DownloadHttpStack mSizeProbeStack;
     private NetworkHelper mNetworkHelper;
-    private int mTotalDownloadsQueued;
+    private volatile int mTotalDownloadsQueued;
     private NotificationManager mNotifyManager;
     private NotificationCompat.Builder mNotificationBuilder;
+    private long mLastNotificationTime;
+    private long mNextSequenceNumber;
     private SharedPreferences mDownloadPreferences;
+    private DownloadEventDispatcher mEventDispatcher;
+    private volatile boolean mIsBroadcastEnabled;
+    private volatile boolean mIsCompactBroadcastEnabled;
+    private volatile int mManifestReceiverEvents = -1;
+    private volatile long mBatchWindow;
+    private final Object mBatchLock = new Object();
+    private final Object mBatchFlushLock = new Object();
+    private ArrayList<DownloadTaskReference> mQueuedBatch = new ArrayList<>();
+    private ArrayList<DownloadItemReference> mItemCompleteBatch = new ArrayList<>();
+    private ScheduledFuture<?> mBatchFlush;
 
     @Override
     public void onCreate() {
         super.onCreate();
         mDownloadPreferences = getSharedPreferences("download_settings", MODE_PRIVATE);
+        mEventDispatcher = DownloadEventDispatcher.getSharedDispatcher();
+        mIsBroadcastEnabled = mDownloadPreferences.getBoolean(EXTRA_BROADCASTS_ENABLED, false);
+        mIsCompactBroadcastEnabled = mDownloadPreferences.getBoolean(EXTRA_COMPACT_BROADCASTS_ENABLED, false);
+        mBatchWindow = mDownloadPreferences.getLong(EXTRA_BATCH_WINDOW, 0);
+        mHostConnectionScheduler = createHostConnectionScheduler();
+        mConnectionReuseTracker = new ConnectionReuseTracker();
+        mSizeProbeExecutor = Executors.newFixedThreadPool(SIZE_PROBE_THREADS);
+        mProgressSampler = Executors.newSingleThreadScheduledExecutor();
+        mSizeProbeStack = createDownloadStack();
         HandlerThread thread = new HandlerThread("Service[" + TAG + "]");
         thread.start();
-        mDownloadQueue = new PersistentQueue<>(new File(ContextCompat.getDataDir(this), "download.que"));
-        mTotalDownloadsQueued = mDownloadQueue.size();
+        //The queue loads on its own thread, so the service reaches the foreground without waiting for it
+        mDownloadQueue = new PersistentQueue<>(createQueueStore());
         Looper serviceLooper = thread.getLooper();
         mServiceHandler = new ServiceHandler(serviceLooper);
-        mDownloadStack = new UrlDownloadStack();
+        mServiceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onDownloadQueueLoaded();
+            }
+        });
         mNetworkHelper = new NetworkHelper(this);
         mNetworkHelper.registerForNetworkChangeEvents(this);
         mNotifyManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
@@ -118,6 +223,20 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
         return START_STICKY;
     }
 
+    /**
+     * Restores the state kept alongside the queue. Runs on the service thread before any intent is
+     * handled, waiting for the queue to load if it hasn't yet.
+     */
+    private void onDownloadQueueLoaded() {
+        List<DownloadTask> queuedTasks = mDownloadQueue.indexSnapshot();
+        mTotalDownloadsQueued = queuedTasks.size();
+        for (int i = 0; i < queuedTasks.size(); i++) {
+            mNextSequenceNumber = Math.max(mNextSequenceNumber, queuedTasks.get(i).getSequenceNumber() + 1);
+        }
+        applyPriorityAging();
+        Timber.d("onDownloadQueueLoaded: Restored %d queued downloads in %d ms", mTotalDownloadsQueued, mDownloadQueue.getRecoveryTime());
+    }
+
     private void onHandleIntent(Intent intent) {
         if (intent == null) {
             onResumeDownloads();
@@ -134,8 +253,24 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
             onRemoveDownload(intent);
         } else if (ACTION_REMOVE_ALL_DOWNLOAD.equals(intent.getAction())){
             onRemoveAllDownloads();
+        } else if (ACTION_UPDATE_PRIORITY.equals(intent.getAction())) {
+            onUpdatePriority(intent);
         } else if (ACTION_SETTINGS_NETWORK_TYPE.equals(intent.getAction())) {
             onUpdateSetting(intent);
+        } else if (ACTION_SETTINGS_SEGMENT_COUNT.equals(intent.getAction())) {
+            onUpdateSegmentSetting(intent);
+        } else if (ACTION_SETTINGS_MAX_CONCURRENT_DOWNLOADS.equals(intent.getAction())) {
+            onUpdateConcurrencySetting(intent);
+        } else if (ACTION_SETTINGS_HOST_CONNECTIONS.equals(intent.getAction())) {
+            onUpdateHostConnectionSetting(intent);
+        } else if (ACTION_SETTINGS_PRIORITY_AGING.equals(intent.getAction())) {
+            onUpdatePriorityAgingSetting(intent);
+        } else if (ACTION_SETTINGS_BROADCASTS.equals(intent.getAction())) {
+            onUpdateBroadcastSetting(intent);
+        } else if (ACTION_SETTINGS_EVENT_BATCHING.equals(intent.getAction())) {
+            onUpdateEventBatchingSetting(intent);
+        } else if (ACTION_SETTINGS_COMPACT_BROADCASTS.equals(intent.getAction())) {
+            onUpdateCompactBroadcastSetting(intent);
         }
     }
 
@@ -145,22 +280,268 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
                 .putBoolean(EXTRA_WIFI_ONLY, intent.getBooleanExtra(EXTRA_WIFI_ONLY, true))
                 .apply();
         if (isRequestedNetworkConnectionAvailable()) {
-            mDownloadWorker = new DownloadWorker();
-            mDownloadWorker.start();
+            startDownloadWorkers();
         } else {
             stopSelf();
         }
     }
 
+    private void onUpdateSegmentSetting(Intent intent) {
+        int segmentCount = intent.getIntExtra(EXTRA_SEGMENT_COUNT, 1);
+        mDownloadPreferences.edit()
+                .putInt(EXTRA_SEGMENT_COUNT, segmentCount)
+                .apply();
+        synchronized (mDownloadWorkers) {
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                DownloadHttpStack downloadStack = mDownloadWorkers.get(i).getDownloadStack();
+                if (downloadStack instanceof UrlDownloadStack) {
+                    ((UrlDownloadStack) downloadStack).setSegmentCount(segmentCount);
+                }
+            }
+        }
+    }
+
+    private void onUpdateConcurrencySetting(Intent intent) {
+        mDownloadPreferences.edit()
+                .putInt(EXTRA_MAX_CONCURRENT_DOWNLOADS,
+                        Math.max(1, intent.getIntExtra(EXTRA_MAX_CONCURRENT_DOWNLOADS, DEFAULT_MAX_CONCURRENT_DOWNLOADS)))
+                .apply();
+        //Extra workers will be started, surplus workers will stop after their current task
+        if (isRequestedNetworkConnectionAvailable()) {
+            startDownloadWorkers();
+        }
+    }
+
+    private void onUpdateHostConnectionSetting(Intent intent) {
+        String host = intent.getStringExtra(EXTRA_HOST);
+        int maxConnections = intent.getIntExtra(EXTRA_MAX_CONNECTIONS_PER_HOST, HostConnectionScheduler.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        if (host == null) {
+            mDownloadPreferences.edit()
+                    .putInt(EXTRA_MAX_CONNECTIONS_PER_HOST, maxConnections)
+                    .apply();
+            mHostConnectionScheduler.setMaxConnectionsPerHost(maxConnections);
+        } else {
+            getSharedPreferences(HOST_CONNECTION_LIMITS, MODE_PRIVATE).edit()
+                    .putInt(host, maxConnections)
+                    .apply();
+            mHostConnectionScheduler.setMaxConnectionsForHost(host, maxConnections);
+        }
+    }
+
+    private void onUpdatePriorityAgingSetting(Intent intent) {
+        mDownloadPreferences.edit()
+                .putLong(EXTRA_AGING_INTERVAL, Math.max(0, intent.getLongExtra(EXTRA_AGING_INTERVAL, 0)))
+                .apply();
+        applyPriorityAging();
+    }
+
+    private void onUpdateBroadcastSetting(Intent intent) {
+        mIsBroadcastEnabled = intent.getBooleanExtra(EXTRA_BROADCASTS_ENABLED, false);
+        mDownloadPreferences.edit()
+                .putBoolean(EXTRA_BROADCASTS_ENABLED, mIsBroadcastEnabled)
+                .apply();
+    }
+
+    private void onUpdateEventBatchingSetting(Intent intent) {
+        mBatchWindow = Math.max(0, intent.getLongExtra(EXTRA_BATCH_WINDOW, 0));
+        mDownloadPreferences.edit()
+                .putLong(EXTRA_BATCH_WINDOW, mBatchWindow)
+                .apply();
+        if (mBatchWindow == 0) {
+            flushEventBatches();
+        }
+    }
+
+    private void onUpdateCompactBroadcastSetting(Intent intent) {
+        mIsCompactBroadcastEnabled = intent.getBooleanExtra(EXTRA_COMPACT_BROADCASTS_ENABLED, false);
+        mDownloadPreferences.edit()
+                .putBoolean(EXTRA_COMPACT_BROADCASTS_ENABLED, mIsCompactBroadcastEnabled)
+                .apply();
+    }
+
+    private void applyPriorityAging() {
+        long agingInterval = mDownloadPreferences.getLong(EXTRA_AGING_INTERVAL, 0);
+        mDownloadQueue.setComparator(agingInterval > 0 ? new PriorityAgingComparator(agingInterval) : null);
+    }
+
+    /**
+     * Creates the store the download queue is kept in. Services with very large queues can return a
+     * {@link SqliteDownloadTaskStore} instead of the default file store. Tasks aren't moved between
+     * stores, so the store should only change while the queue is empty.
+     * @return The store for the download queue
+     */
+    protected QueueStore<DownloadTask> createQueueStore() {
+        return new FileQueueStore<>(new File(ContextCompat.getDataDir(this), "download.que"), DownloadTask.CODEC);
+    }
+
+    private HostConnectionScheduler createHostConnectionScheduler() {
+        HostConnectionScheduler hostConnectionScheduler = new HostConnectionScheduler(mDownloadPreferences.getInt(
+                EXTRA_MAX_CONNECTIONS_PER_HOST, HostConnectionScheduler.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+        Map<String, ?> hostConnectionLimits = getSharedPreferences(HOST_CONNECTION_LIMITS, MODE_PRIVATE).getAll();
+        for (Map.Entry<String, ?> hostConnectionLimit : hostConnectionLimits.entrySet()) {
+            if (hostConnectionLimit.getValue() instanceof Integer) {
+                hostConnectionScheduler.setMaxConnectionsForHost(hostConnectionLimit.getKey(), (Integer) hostConnectionLimit.getValue());
+            }
+        }
+        return hostConnectionScheduler;
+    }
+
     private void onResumeDownloads() {
         if (isRequestedNetworkConnectionAvailable()) {
-            if (mDownloadWorker == null || !mDownloadWorker.isRunning()) {
-                mDownloadWorker = new DownloadWorker();
-                mDownloadWorker.start();
+            startDownloadWorkers();
+        }
+    }
+
+    private int getMaxConcurrentDownloads() {
+        return mDownloadPreferences.getInt(EXTRA_MAX_CONCURRENT_DOWNLOADS, DEFAULT_MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    private DownloadHttpStack createDownloadStack() {
+        UrlDownloadStack urlDownloadStack = new KeepAliveDownloadStack(mConnectionReuseTracker);
+        urlDownloadStack.setSegmentCount(mDownloadPreferences.getInt(EXTRA_SEGMENT_COUNT, 1));
+        urlDownloadStack.setHostConnectionScheduler(mHostConnectionScheduler);
+        return urlDownloadStack;
+    }
+
+    /**
+     * Starts new download workers until the maximum number of concurrent downloads is running.
+     * Workers which have been asked to stop are still finishing their current item and aren't counted.
+     */
+    private void startDownloadWorkers() {
+        synchronized (mDownloadWorkers) {
+            int runningWorkers = 0;
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                if (mDownloadWorkers.get(i).isRunning()) {
+                    runningWorkers++;
+                }
+            }
+
+            int maxConcurrentDownloads = getMaxConcurrentDownloads();
+            while (runningWorkers < maxConcurrentDownloads && runningWorkers < mDownloadQueue.size()) {
+                DownloadWorker downloadWorker = new DownloadWorker(createDownloadStack());
+                mDownloadWorkers.add(downloadWorker);
+                downloadWorker.start();
+                runningWorkers++;
+            }
+
+            if (runningWorkers > 0 && mProgressSample == null) {
+                //Progress is sampled on its own thread rather than reported from the workers' read loops
+                mProgressSample = mProgressSampler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        sampleProgress();
+                    }
+                }, NOTIFICATION_INTERVAL, NOTIFICATION_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Reports the progress of every task being downloaded. Task totals are kept up to date by their
+     * items, so each sample costs the same however large the tasks are.
+     */
+    private void sampleProgress() {
+        List<DownloadWorker> downloadWorkers;
+        synchronized (mDownloadWorkers) {
+            downloadWorkers = new ArrayList<>(mDownloadWorkers);
+        }
+
+        for (int i = 0; i < downloadWorkers.size(); i++) {
+            downloadWorkers.get(i).sampleProgress();
+        }
+        updateNotification(false);
+    }
+
+    /**
+     * Finds the highest priority task in the queue which isn't already being downloaded by another
+     * worker and assigns it to the requesting worker.
+     * @param downloadWorker The worker requesting a task
+     * @return The task to download, or null if there is no more work for this worker
+     */
+    private DownloadTask claimNextDownloadTask(DownloadWorker downloadWorker) {
+        synchronized (mDownloadWorkers) {
+            int runningWorkers = 0;
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                if (mDownloadWorkers.get(i) != downloadWorker && mDownloadWorkers.get(i).isRunning()) {
+                    runningWorkers++;
+                }
+            }
+            if (runningWorkers >= getMaxConcurrentDownloads()) {
+                //The pool has been shrunk, let this worker retire
+                return null;
+            }
+
+            final Set<DownloadTask> claimedTasks = new HashSet<>();
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                DownloadTask claimedTask = mDownloadWorkers.get(i).getCurrentDownloadTask();
+                if (claimedTask != null) {
+                    claimedTasks.add(claimedTask);
+                }
+            }
+
+            //The queue is walked in order from its head, skipping the claimed tasks. The index is enough
+            //to choose a task, so only the chosen task is read in full.
+            while (true) {
+                DownloadTask indexedTask = mDownloadQueue.findFirst(new PersistentQueue.Filter<DownloadTask>() {
+                    @Override
+                    public boolean accept(DownloadTask downloadTask) {
+                        return downloadTask.getStatus() != DownloadTask.FINISHED && !claimedTasks.contains(downloadTask);
+                    }
+                });
+                if (indexedTask == null) {
+                    return null;
+                }
+
+                //Null if the task was removed, or couldn't be read and was dropped from the queue
+                DownloadTask downloadTask = mDownloadQueue.find(indexedTask);
+                if (downloadTask != null) {
+                    downloadWorker.setCurrentDownloadTask(downloadTask);
+                    return downloadTask;
+                }
             }
         }
     }
 
+    private DownloadWorker findWorkerForTask(DownloadTask downloadTask) {
+        synchronized (mDownloadWorkers) {
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                if (downloadTask.equals(mDownloadWorkers.get(i).getCurrentDownloadTask())) {
+                    return mDownloadWorkers.get(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    private void onDownloadWorkerFinished(DownloadWorker downloadWorker) {
+        boolean isLastWorker;
+        synchronized (mDownloadWorkers) {
+            mDownloadWorkers.remove(downloadWorker);
+            isLastWorker = mDownloadWorkers.isEmpty();
+            if (isLastWorker && mProgressSample != null) {
+                mProgressSample.cancel(false);
+                mProgressSample = null;
+            }
+        }
+
+        if (isLastWorker) {
+            mConnectionReuseTracker.evictIdleConnections();
+            Timber.d("onDownloadWorkerFinished: Estimated connection reuses %d, new connections %d, evictions %d",
+                    mConnectionReuseTracker.getEstimatedReuseCount(), mConnectionReuseTracker.getEstimatedNewConnectionCount(),
+                    mConnectionReuseTracker.getEvictionCount());
+            BufferPool bufferPool = BufferPool.getSharedPool();
+            Timber.d("onDownloadWorkerFinished: Buffer pool hits %d, misses %d, waits %d, outstanding %d",
+                    bufferPool.getHitCount(), bufferPool.getMissCount(), bufferPool.getWaitCount(), bufferPool.getOutstandingCount());
+            mNotifyManager.cancel(NOTIFICATION_ID);
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    checkIfWorkComplete();
+                }
+            });
+        }
+    }
+
     private boolean isDownloadRestrictedToWifi() {
         return mDownloadPreferences.getBoolean(EXTRA_WIFI_ONLY, true);
     }
@@ -170,115 +551,496 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
                 mNetworkHelper.getCurrentConnection() != NetworkHelper.TYPE_NO_CONNECTION;
     }
 
+    /**
+     * Reads the download task of a download manager intent or broadcast. The task is either in the
+     * binary format of {@link DownloadTask#toByteArray()} under {@link #EXTRA_DOWNLOAD_TASK_DATA}, or
+     * serialized under {@link #EXTRA_DOWNLOAD_TASK}.
+     * @param intent The intent
+     * @return The download task, or null if the intent doesn't hold a readable task
+     */
+    @Nullable
+    public static DownloadTask getDownloadTask(Intent intent) {
+        byte[] data = intent.getByteArrayExtra(EXTRA_DOWNLOAD_TASK_DATA);
+        if (data != null) {
+            try {
+                return DownloadTask.fromByteArray(data);
+            } catch (IOException e) {
+                Timber.e("getDownloadTask: Unable to decode download task", e);
+                return null;
+            }
+        }
+
+        Serializable extra = intent.getSerializableExtra(EXTRA_DOWNLOAD_TASK);
+        return extra instanceof DownloadTask ? (DownloadTask) extra : null;
+    }
+
+    /**
+     * Reads the download item of an item complete broadcast, from either {@link #EXTRA_DOWNLOAD_ITEM_DATA}
+     * or {@link #EXTRA_DOWNLOAD_ITEM}, see {@link #getDownloadTask(Intent)}
+     * @param intent The intent
+     * @return The download item, or null if the intent doesn't hold a readable item
+     */
+    @Nullable
+    public static DownloadItem getDownloadItem(Intent intent) {
+        byte[] data = intent.getByteArrayExtra(EXTRA_DOWNLOAD_ITEM_DATA);
+        if (data != null) {
+            try {
+                return DownloadItem.fromByteArray(data);
+            } catch (IOException e) {
+                Timber.e("getDownloadItem: Unable to decode download item", e);
+                return null;
+            }
+        }
+
+        Serializable extra = intent.getSerializableExtra(EXTRA_DOWNLOAD_ITEM);
+        return extra instanceof DownloadItem ? (DownloadItem) extra : null;
+    }
+
     private void onQueueDownload(Intent intent) {
-        DownloadTask downloadTask = (DownloadTask) intent.getSerializableExtra(EXTRA_DOWNLOAD_TASK);
-        downloadTask.setStatus(DownloadTask.PENDING);
-        initDownloadItems(downloadTask);
-        mTotalDownloadsQueued++;
-        addToQueue(downloadTask);
+        List<DownloadTask> downloadTasks = new ArrayList<>();
+        byte[] encodedTasks = intent.getByteArrayExtra(EXTRA_DOWNLOAD_TASKS);
+        if (encodedTasks != null) {
+            try {
+                downloadTasks.addAll(DownloadTask.listFromByteArray(encodedTasks));
+            } catch (IOException e) {
+                Timber.e("onQueueDownload: Unable to decode download tasks", e);
+                return;
+            }
+        } else {
+            DownloadTask downloadTask = getDownloadTask(intent);
+            if (downloadTask == null) {
+                return;
+            }
+            downloadTasks.add(downloadTask);
+        }
+
+        long enqueueTime = System.currentTimeMillis();
+        for (int i = 0; i < downloadTasks.size(); i++) {
+            DownloadTask downloadTask = downloadTasks.get(i);
+            downloadTask.setEnqueued(mNextSequenceNumber++, enqueueTime);
+            initDownloadItems(downloadTask);
+        }
+        mTotalDownloadsQueued += downloadTasks.size();
+        addToQueue(downloadTasks);
     }
 
     private void onPauseDownloads() {
-        if (mDownloadWorker != null) {
-            mDownloadWorker.stopWork();
+        stopDownloadWorkers();
+    }
+
+    private void stopDownloadWorkers() {
+        synchronized (mDownloadWorkers) {
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                mDownloadWorkers.get(i).stopWork();
+            }
         }
     }
 
     private void onRemoveDownload(Intent intent) {
-        String tag = intent.getStringExtra(EXTRA_DOWNLOAD_TAG);
-        DownloadTask downloadTask = new DownloadTask(tag);
+        final List<DownloadTask> downloadTasks = new ArrayList<>();
+        String[] tags = intent.getStringArrayExtra(EXTRA_DOWNLOAD_TAGS);
+        if (tags == null) {
+            tags = new String[]{intent.getStringExtra(EXTRA_DOWNLOAD_TAG)};
+        }
 
-        if (!mDownloadQueue.remove(downloadTask)) {
-            if (mDownloadWorker != null && downloadTask.equals(mDownloadWorker.getCurrentDownloadTask())) {
-                mDownloadWorker.cancelCurrentDownload();
+        for (String tag : tags) {
+            //Tasks in progress are removed from the queue by their worker once the download has stopped
+            DownloadTask downloadTask = new DownloadTask(tag);
+            DownloadWorker downloadWorker = findWorkerForTask(downloadTask);
+            if (downloadWorker != null) {
+                downloadWorker.cancelCurrentDownload();
                 mTotalDownloadsQueued--;
+            } else {
+                downloadTasks.add(downloadTask);
+            }
+        }
+
+        final List<DownloadTask> removedTasks = new ArrayList<>();
+        mDownloadQueue.mutate(new PersistentQueue.Mutation<DownloadTask>() {
+            @Override
+            public void apply(PersistentQueue<DownloadTask> queue) {
+                for (int i = 0; i < downloadTasks.size(); i++) {
+                    //The stored task is found first, as its items are needed to remove their checkpoints
+                    DownloadTask removedTask = queue.find(downloadTasks.get(i));
+                    if (removedTask != null && queue.remove(removedTask)) {
+                        removedTasks.add(removedTask);
+                    }
+                }
+            }
+        });
+        mTotalDownloadsQueued -= removedTasks.size();
+        for (int i = 0; i < removedTasks.size(); i++) {
+            deleteCheckpoints(removedTasks.get(i));
+        }
+    }
+
+    private void onUpdatePriority(Intent intent) {
+        if (!intent.hasExtra(EXTRA_PRIORITY)) {
+            return;
+        }
+        DownloadTask downloadTask = new DownloadTask(intent.getStringExtra(EXTRA_DOWNLOAD_TAG));
+        final int priority = intent.getIntExtra(EXTRA_PRIORITY, 0);
+        //Held so no worker claims the task while its priority changes
+        synchronized (mDownloadWorkers) {
+            if (findWorkerForTask(downloadTask) != null) {
+                Timber.d("onUpdatePriority: Task is already downloading");
+                return;
+            }
+
+            boolean isQueued = mDownloadQueue.update(downloadTask, new PersistentQueue.ElementChange<DownloadTask>() {
+                @Override
+                public void apply(DownloadTask queuedTask) {
+                    queuedTask.setPriority(priority);
+                }
+            });
+            if (!isQueued) {
+                Timber.d("onUpdatePriority: Task is no longer queued");
             }
-        } else {
-            mTotalDownloadsQueued--;
         }
     }
 
     private void onRemoveAllDownloads() {
-        mDownloadQueue.clear();
-        if (mDownloadWorker != null) {
-            mDownloadWorker.cancelCurrentDownload();
-            mTotalDownloadsQueued = 0;
+        final List<DownloadTask> removedTasks = new ArrayList<>();
+        mDownloadQueue.mutate(new PersistentQueue.Mutation<DownloadTask>() {
+            @Override
+            public void apply(PersistentQueue<DownloadTask> queue) {
+                //The stored tasks are read first, as their items are needed to remove their checkpoints
+                removedTasks.addAll(queue);
+                queue.clear();
+            }
+        });
+        for (int i = 0; i < removedTasks.size(); i++) {
+            deleteCheckpoints(removedTasks.get(i));
+        }
+        synchronized (mDownloadWorkers) {
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                mDownloadWorkers.get(i).cancelCurrentDownload();
+            }
         }
+        mTotalDownloadsQueued = 0;
     }
 
-    private void addToQueue(DownloadTask downloadTask) {
-        downloadTask.setStatus(DownloadTask.PENDING);
-        mDownloadQueue.add(downloadTask);
-        broadcastAddedToQueue(downloadTask);
+    private void addToQueue(List<DownloadTask> downloadTasks) {
+        for (int i = 0; i < downloadTasks.size(); i++) {
+            downloadTasks.get(i).setStatus(DownloadTask.PENDING);
+        }
+        mDownloadQueue.addAll(downloadTasks);
+        for (int i = 0; i < downloadTasks.size(); i++) {
+            broadcastAddedToQueue(downloadTasks.get(i));
+        }
         if (isRequestedNetworkConnectionAvailable()) {
-            if (mDownloadWorker == null || !mDownloadWorker.isRunning()) {
-                mDownloadWorker = new DownloadWorker();
-                mDownloadWorker.start();
-            }
+            startDownloadWorkers();
         }
     }
 
     private void broadcastAddedToQueue(DownloadTask downloadTask) {
+        mEventDispatcher.dispatchDownloadTaskQueued(downloadTask);
+        int channels = getBroadcastChannels(DownloadEventDispatcher.EVENT_QUEUED);
+        if (channels == 0) {
+            return;
+        }
+        if (mBatchWindow > 0) {
+            addToBatch(new DownloadTaskReference(downloadTask), null);
+            return;
+        }
+
         Intent intent = new Intent(ACTION_DOWNLOAD_QUEUED);
-        intent.setPackage(getPackageName());
         intent.putExtra("FROM", "DownloadService");
-        intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
-
-        sendBroadcast(intent);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        sendEventBroadcast(intent, channels, downloadTask, null);
     }
 
-    private void broadcastTaskProgress(DownloadTask downloadTask, long bytesDownloaded, long totalBytes) {
+    private void broadcastTaskProgress(DownloadTask downloadTask, long bytesDownloaded, long totalBytes,
+                                       long bytesPerSecond) {
+        mEventDispatcher.dispatchDownloadTaskProgress(downloadTask.getTag(), bytesDownloaded, totalBytes, bytesPerSecond);
+        int channels = getBroadcastChannels(DownloadEventDispatcher.EVENT_PROGRESS);
+        if (channels == 0) {
+            return;
+        }
+
         Intent intent = new Intent(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
-        intent.setPackage(getPackageName());
         intent.putExtra(EXTRA_BYTES_DOWNLOADED, bytesDownloaded);
         intent.putExtra(EXTRA_TOTAL_SIZE, totalBytes);
-
-        sendBroadcast(intent);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        intent.putExtra(EXTRA_BYTES_PER_SECOND, bytesPerSecond);
+        sendEventBroadcast(intent, channels, downloadTask, null);
     }
 
     private void broadcastTaskItemComplete(DownloadTask downloadTask, DownloadItem downloadItem) {
         Timber.d("broadcastTaskItemComplete: Broadcasting downloadtask complete");
-        Intent intent = new Intent(ACTION_DOWNLOAD_ITEM_COMPLETE);
-        intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
-        intent.putExtra(EXTRA_DOWNLOAD_ITEM, (Serializable) downloadItem);
-
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        mEventDispatcher.dispatchDownloadItemComplete(downloadTask, downloadItem);
+        int channels = getBroadcastChannels(DownloadEventDispatcher.EVENT_ITEM_COMPLETE);
+        if (channels == 0) {
+            return;
+        }
+        if (mBatchWindow > 0) {
+            addToBatch(null, new DownloadItemReference(downloadTask, downloadItem));
+            return;
+        }
 
-        intent.setPackage(getPackageName());
-        sendBroadcast(intent);
+        Intent intent = new Intent(ACTION_DOWNLOAD_ITEM_COMPLETE);
+        sendEventBroadcast(intent, channels, downloadTask, downloadItem);
     }
 
     private void broadcastTaskCancelled(DownloadTask downloadTask) {
         Timber.d("broadcastTaskItemComplete: Broadcasting downloadtask complete");
-        Intent intent = new Intent(ACTION_DOWNLOAD_CANCELLED);
-        sendBroadcast(intent);
-        intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
+        mEventDispatcher.dispatchDownloadTaskCancelled(downloadTask);
+        flushEventBatches();
+        int channels = getBroadcastChannels(DownloadEventDispatcher.EVENT_CANCELLED);
+        if (channels == 0) {
+            return;
+        }
 
-        intent.setPackage(getPackageName());
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        Intent intent = new Intent(ACTION_DOWNLOAD_CANCELLED);
+        sendEventBroadcast(intent, channels, downloadTask, null);
     }
 
-    private void broadcastTaskError(DownloadTask downloadTask) {
-        Timber.d("broadcastTaskError: Broadcasting download error");
-        Intent intent = new Intent(ACTION_DOWNLOAD_ERROR);
-        intent.setPackage(getPackageName());
-        intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
+    private void broadcastTaskError(DownloadTask downloadTask, int errorCode) {
+        Timber.d("broadcastTaskError: Broadcasting download error %d", errorCode);
+        mEventDispatcher.dispatchDownloadTaskError(downloadTask, errorCode);
+        int channels = getBroadcastChannels(DownloadEventDispatcher.EVENT_ERROR);
+        if (channels == 0) {
+            return;
+        }
 
-        sendBroadcast(intent);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+        Intent intent = new Intent(ACTION_DOWNLOAD_ERROR);
+        intent.putExtra(EXTRA_ERROR_CODE, errorCode);
+        sendEventBroadcast(intent, channels, downloadTask, null);
     }
 
     private void broadcastTaskComplete(DownloadTask downloadTask) {
         Timber.d("broadcastTaskItemComplete: Broadcasting downloadtask complete");
+        mEventDispatcher.dispatchDownloadTaskComplete(downloadTask);
+        //Batched events of the task are sent before it completes
+        flushEventBatches();
+        int channels = getBroadcastChannels(DownloadEventDispatcher.EVENT_COMPLETE);
+        if (channels == 0) {
+            return;
+        }
+
         Intent intent = new Intent(ACTION_DOWNLOAD_COMPLETE);
+        sendEventBroadcast(intent, channels, downloadTask, null);
+    }
+
+    /**
+     * Adds a queued or item complete event to the pending batches, which are sent once the batch
+     * window has passed or a batch is full
+     */
+    private void addToBatch(@Nullable DownloadTaskReference queuedTask, @Nullable DownloadItemReference completeItem) {
+        boolean isFull;
+        synchronized (mBatchLock) {
+            if (queuedTask != null) {
+                mQueuedBatch.add(queuedTask);
+            }
+            if (completeItem != null) {
+                mItemCompleteBatch.add(completeItem);
+            }
+            isFull = mQueuedBatch.size() >= MAX_BATCH_SIZE || mItemCompleteBatch.size() >= MAX_BATCH_SIZE;
+            if (!isFull && mBatchFlush == null) {
+                try {
+                    mBatchFlush = mProgressSampler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushEventBatches();
+                        }
+                    }, mBatchWindow, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    //The service is stopping, and flushes the batches itself
+                    Timber.d("addToBatch: Service is stopping");
+                }
+            }
+        }
+
+        if (isFull) {
+            flushEventBatches();
+        }
+    }
+
+    /**
+     * Sends the pending batches of queued and item complete events
+     */
+    private void flushEventBatches() {
+        //Held while sending, so a batch is never overtaken by the events which follow it
+        synchronized (mBatchFlushLock) {
+            ArrayList<DownloadTaskReference> queuedBatch;
+            ArrayList<DownloadItemReference> itemCompleteBatch;
+            synchronized (mBatchLock) {
+                if (mBatchFlush != null) {
+                    mBatchFlush.cancel(false);
+                    mBatchFlush = null;
+                }
+                queuedBatch = mQueuedBatch;
+                itemCompleteBatch = mItemCompleteBatch;
+                if (queuedBatch.isEmpty() && itemCompleteBatch.isEmpty()) {
+                    return;
+                }
+                mQueuedBatch = new ArrayList<>();
+                mItemCompleteBatch = new ArrayList<>();
+            }
+
+            int channels = findBroadcastChannels(DownloadEventDispatcher.EVENT_QUEUED);
+            if (!queuedBatch.isEmpty() && channels != 0) {
+                Timber.d("flushEventBatches: Broadcasting %d queued tasks", queuedBatch.size());
+                Intent intent = new Intent(ACTION_DOWNLOADS_QUEUED);
+                intent.putParcelableArrayListExtra(EXTRA_DOWNLOAD_TASK_REFERENCES, queuedBatch);
+                sendEventBroadcast(intent, channels);
+            }
+
+            channels = findBroadcastChannels(DownloadEventDispatcher.EVENT_ITEM_COMPLETE);
+            if (!itemCompleteBatch.isEmpty() && channels != 0) {
+                Timber.d("flushEventBatches: Broadcasting %d complete items", itemCompleteBatch.size());
+                Intent intent = new Intent(ACTION_DOWNLOAD_ITEMS_COMPLETE);
+                intent.putParcelableArrayListExtra(EXTRA_DOWNLOAD_ITEM_REFERENCES, itemCompleteBatch);
+                sendEventBroadcast(intent, channels);
+            }
+        }
+    }
+
+    /**
+     * Finds the broadcast channels with subscribers for an event, and counts the others as skipped
+     * @param event One of the DownloadEventDispatcher EVENT_ flags
+     * @return A combination of CHANNEL_LOCAL and CHANNEL_MANIFEST, or 0 if no broadcast is needed
+     */
+    private int getBroadcastChannels(int event) {
+        int channels = findBroadcastChannels(event);
+        if ((channels & CHANNEL_LOCAL) == 0) {
+            mEventDispatcher.onBroadcastSkipped();
+        }
+        if ((channels & CHANNEL_MANIFEST) == 0) {
+            mEventDispatcher.onBroadcastSkipped();
+        }
+        return channels;
+    }
+
+    /**
+     * Local broadcasts are sent for every event unless receivers have subscribed to specific events
+     * through DownloadBroadcastReceiver, as receivers registered with the LocalBroadcastManager
+     * directly can't be seen
+     */
+    private int findBroadcastChannels(int event) {
+        int channels = 0;
+        if (mIsBroadcastEnabled && (!mEventDispatcher.hasBroadcastReceivers() ||
+                mEventDispatcher.hasBroadcastReceivers(event))) {
+            channels |= CHANNEL_LOCAL;
+        }
+        if (mIsBroadcastEnabled && (getManifestReceiverEvents() & event) != 0) {
+            channels |= CHANNEL_MANIFEST;
+        }
+        return channels;
+    }
+
+    /**
+     * Sends a broadcast carrying a download task, and one of its items for item events. Local
+     * broadcasts aren't serialized, so local receivers are sent the objects under the original extras.
+     * Manifest receivers are sent them serialized under the same extras, or in the binary format under
+     * the _DATA extras once compact broadcasts are enabled.
+     */
+    private void sendEventBroadcast(Intent intent, int channels, DownloadTask downloadTask,
+                                    @Nullable DownloadItem downloadItem) {
+        if ((channels & CHANNEL_LOCAL) != 0) {
+            Intent localIntent = (channels & CHANNEL_MANIFEST) != 0 ? new Intent(intent) : intent;
+            localIntent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
+            if (downloadItem != null) {
+                localIntent.putExtra(EXTRA_DOWNLOAD_ITEM, (Serializable) downloadItem);
+            }
+            sendEventBroadcast(localIntent, CHANNEL_LOCAL);
+        }
+        if ((channels & CHANNEL_MANIFEST) != 0) {
+            if (mIsCompactBroadcastEnabled) {
+                intent.putExtra(EXTRA_DOWNLOAD_TASK_DATA, downloadTask.toByteArray());
+                if (downloadItem != null) {
+                    intent.putExtra(EXTRA_DOWNLOAD_ITEM_DATA, downloadItem.toByteArray());
+                }
+            } else {
+                intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
+                if (downloadItem != null) {
+                    intent.putExtra(EXTRA_DOWNLOAD_ITEM, (Serializable) downloadItem);
+                }
+            }
+            sendEventBroadcast(intent, CHANNEL_MANIFEST);
+        }
+    }
+
+    private void sendEventBroadcast(Intent intent, int channels) {
         intent.setPackage(getPackageName());
-        intent.putExtra(EXTRA_DOWNLOAD_TASK, (Serializable) downloadTask);
+        if ((channels & CHANNEL_LOCAL) != 0) {
+            LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+            mEventDispatcher.onBroadcastDelivered();
+        }
+        if ((channels & CHANNEL_MANIFEST) != 0) {
+            sendBroadcast(intent);
+            mEventDispatcher.onBroadcastDelivered();
+        }
+    }
 
-        sendBroadcast(intent);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    /**
+     * @return The events received by the app's manifest receivers. The library's own receiver only
+     * counts if the app has a {@link DownloadStatusService} for it to forward the events to.
+     */
+    private int getManifestReceiverEvents() {
+        int events = mManifestReceiverEvents;
+        if (events < 0) {
+            //Manifests don't change while the service runs, so this is only queried once
+            PackageManager packageManager = getPackageManager();
+            Intent statusIntent = new Intent(DownloadStatusService.ACTION_DOWNLOAD_STATUS_UPDATE);
+            statusIntent.setPackage(getPackageName());
+            boolean hasStatusService = !packageManager.queryIntentServices(statusIntent, 0).isEmpty();
+
+            events = 0;
+            List<String> actions = new ArrayList<>(Arrays.asList(EVENT_ACTIONS));
+            actions.add(ACTION_DOWNLOADS_QUEUED);
+            actions.add(ACTION_DOWNLOAD_ITEMS_COMPLETE);
+            for (int i = 0; i < actions.size(); i++) {
+                Intent intent = new Intent(actions.get(i));
+                intent.setPackage(getPackageName());
+                List<ResolveInfo> receivers = packageManager.queryBroadcastReceivers(intent, 0);
+                for (int j = 0; j < receivers.size(); j++) {
+                    if (hasStatusService || !DownloadStateBroadcastReceiver.class.getName().equals(
+                            receivers.get(j).activityInfo.name)) {
+                        events |= getEventType(actions.get(i));
+                    }
+                }
+            }
+            mManifestReceiverEvents = events;
+        }
+        return events;
+    }
+
+    /**
+     * @param action One of the download broadcast actions
+     * @return The DownloadEventDispatcher EVENT_ flag of the action, or 0 if it isn't a download broadcast
+     */
+    public static int getEventType(String action) {
+        for (int i = 0; i < EVENT_ACTIONS.length; i++) {
+            if (EVENT_ACTIONS[i].equals(action)) {
+                return 1 << i;
+            }
+        }
+        //Batches are subscribed to along with the events they hold
+        if (ACTION_DOWNLOADS_QUEUED.equals(action)) {
+            return DownloadEventDispatcher.EVENT_QUEUED;
+        } else if (ACTION_DOWNLOAD_ITEMS_COMPLETE.equals(action)) {
+            return DownloadEventDispatcher.EVENT_ITEM_COMPLETE;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the task references of a batched queued broadcast
+     * @param intent The intent
+     * @return The references, or an empty list if the intent doesn't hold any
+     */
+    public static List<DownloadTaskReference> getDownloadTaskReferences(Intent intent) {
+        List<DownloadTaskReference> references = intent.getParcelableArrayListExtra(EXTRA_DOWNLOAD_TASK_REFERENCES);
+        return references != null ? references : new ArrayList<DownloadTaskReference>();
+    }
+
+    /**
+     * Reads the item references of a batched item complete broadcast
+     * @param intent The intent
+     * @return The references, or an empty list if the intent doesn't hold any
+     */
+    public static List<DownloadItemReference> getDownloadItemReferences(Intent intent) {
+        List<DownloadItemReference> references = intent.getParcelableArrayListExtra(EXTRA_DOWNLOAD_ITEM_REFERENCES);
+        return references != null ? references : new ArrayList<DownloadItemReference>();
     }
 
     private void initDownloadItems(DownloadTask downloadTask) {
@@ -292,6 +1054,20 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
         }
     }
 
+    /**
+     * Deletes the progress checkpoints of a task's items once the task has left the queue. They're
+     * kept until then so items completed before a crash aren't downloaded again.
+     */
+    private void deleteCheckpoints(DownloadTask downloadTask) {
+        List<DownloadItem> downloadItemList = downloadTask.getDownloadItems();
+        for (int i = 0; i < downloadItemList.size(); i++) {
+            File file = downloadItemList.get(i).getFile();
+            if (file != null) {
+                DownloadCheckpoint.delete(file);
+            }
+        }
+    }
+
     private File createDownloadFile(File directory) {
         try {
             return File.createTempFile("fds", "tmp", directory);
@@ -338,11 +1114,13 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
     @Override
     public void onDestroy() {
         Timber.d( "onDestroy: Stopping service");
-        if (mDownloadWorker != null) {
-            mDownloadWorker.stopWork();
-        }
+        stopDownloadWorkers();
+        mSizeProbeExecutor.shutdownNow();
+        mProgressSampler.shutdownNow();
+        flushEventBatches();
         mNetworkHelper.unregisterForNetworkChangeEvents();
         mNotifyManager.cancel(NOTIFICATION_ID);
+        //The process may be killed once the service is destroyed, so the queue must be on disk first
         mDownloadQueue.flushUpdates();
         super.onDestroy();
     }
@@ -377,13 +1155,74 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
         }
     }
 
-    //Core worker thread
-    private class DownloadWorker extends Thread implements OnDownloadProgressListener {
-        private boolean mIsRunning = false;
-        private boolean mIsCurrentDownloadCancelled = false;
-        private DownloadTask mCurrentDownloadTask;
-        private DownloadItem mCurrentDownloadItem;
-        private long mLastNotificationTime;
+    /**
+     * Updates the shared progress notification with the combined progress of every task currently
+     * being downloaded. Updates are throttled so several workers don't overload the system thread.
+     * @param force True to update the notification regardless of when it was last updated
+     */
+    private void updateNotification(boolean force) {
+        List<DownloadTask> activeTasks = new ArrayList<>();
+        synchronized (mDownloadWorkers) {
+            for (int i = 0; i < mDownloadWorkers.size(); i++) {
+                DownloadTask downloadTask = mDownloadWorkers.get(i).getCurrentDownloadTask();
+                if (downloadTask != null) {
+                    activeTasks.add(downloadTask);
+                }
+            }
+        }
+
+        synchronized (mNotificationBuilder) {
+            long currentTime = System.currentTimeMillis();
+            if (activeTasks.isEmpty() || (!force && currentTime - mLastNotificationTime < NOTIFICATION_INTERVAL)) {
+                return;
+            }
+
+            long bytesDownloaded = 0;
+            long totalBytes = 0;
+            for (int i = 0; i < activeTasks.size(); i++) {
+                bytesDownloaded += activeTasks.get(i).getBytesDownloaded();
+                totalBytes += activeTasks.get(i).getDownloadSize();
+            }
+
+            DownloadTask downloadTask = activeTasks.get(0);
+            if (activeTasks.size() == 1) {
+                mNotificationBuilder.setContentTitle(downloadTask.getLabel());
+            } else {
+                mNotificationBuilder.setContentTitle(getString(R.string.format_download_active_tasks, activeTasks.size()));
+            }
+            mNotificationBuilder.setSmallIcon(downloadTask.getNotificationIcon());
+            if (downloadTask.getNotificationPendingIntent() != null) {
+                mNotificationBuilder.setContentIntent(downloadTask.getNotificationPendingIntent().buildPendingIntent(getApplicationContext()));
+            }
+            mNotificationBuilder.setContentText(getString(
+                    R.string.format_download_queue_progress,
+                    Math.max(1, mTotalDownloadsQueued - mDownloadQueue.size() + 1),
+                    mTotalDownloadsQueued));
+            int progress = totalBytes > 0 ? (int) Math.round((double) bytesDownloaded / (double) totalBytes * 100) : 0;
+            mNotificationBuilder.setProgress(100, progress, false);
+            mNotifyManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+            mLastNotificationTime = currentTime;
+        }
+    }
+
+    //Core worker thread, several of these may run at once each downloading a different task
+    private class DownloadWorker extends Thread {
+        private final DownloadHttpStack mDownloadStack;
+        private final List<DownloadHttpStack> mActiveDownloadStacks = new CopyOnWriteArrayList<>();
+        private volatile boolean mIsRunning = false;
+        private volatile boolean mIsCurrentDownloadCancelled = false;
+        private volatile DownloadTask mCurrentDownloadTask;
+        //Only used by the progress sampler
+        private DownloadTask mSampledDownloadTask;
+        private long mSampledBytesDownloaded;
+        private long mSampledDownloadSize;
+        private long mSampledTime;
+        private double mBytesPerSecond;
+
+        DownloadWorker(DownloadHttpStack downloadStack) {
+            super("DownloadWorker");
+            mDownloadStack = downloadStack;
+        }
 
         @Override
         public synchronized void start() {
@@ -393,129 +1232,364 @@ public class DownloadService extends Service implements NetworkHelper.OnNetworkS
 
         synchronized void stopWork() {
             mIsRunning = false;
+            stopActiveDownloads();
         }
 
         boolean isRunning() {
             return mIsRunning;
         }
 
+        DownloadHttpStack getDownloadStack() {
+            return mDownloadStack;
+        }
+
         DownloadTask getCurrentDownloadTask() {
             return mCurrentDownloadTask;
         }
 
+        void setCurrentDownloadTask(DownloadTask downloadTask) {
+            mCurrentDownloadTask = downloadTask;
+        }
+
         void cancelCurrentDownload() {
-            mIsCurrentDownloadCancelled = true;
+            if (mCurrentDownloadTask != null) {
+                mIsCurrentDownloadCancelled = true;
+                stopActiveDownloads();
+            }
+        }
+
+        private void stopActiveDownloads() {
+            DownloadTask downloadTask = mCurrentDownloadTask;
+            if (downloadTask != null) {
+                //Wakes any item threads waiting for a connection
+                mHostConnectionScheduler.cancel(downloadTask);
+            }
+            for (DownloadHttpStack downloadStack : mActiveDownloadStacks) {
+                downloadStack.stopDownload();
+            }
+        }
+
+        private boolean shouldContinueTask() {
+            return mIsRunning && !mIsCurrentDownloadCancelled && isRequestedNetworkConnectionAvailable();
         }
 
         @Override
         public void run() {
-            while (mIsRunning) {
+            while (mIsRunning && isRequestedNetworkConnectionAvailable()) {
                 //We don't remove the current task from the queue as we want it to be persisted in case
-                //the service is killed. It will be removed after it has been added to the download stack
-                mCurrentDownloadTask = mDownloadQueue.peek();
+                //the service is killed. It will be removed once all of its items have been attempted
                 mIsCurrentDownloadCancelled = false;
-
-                if (mCurrentDownloadTask == null || mCurrentDownloadTask.getStatus() == DownloadTask.FINISHED) {
-                    mIsRunning = false;
-                    continue;
-                } else if (mIsCurrentDownloadCancelled) {
+                if (claimNextDownloadTask(this) == null) {
                     break;
                 }
 
-                mNotificationBuilder.setContentTitle(mCurrentDownloadTask.getLabel());
-                mNotificationBuilder.setSmallIcon(mCurrentDownloadTask.getNotificationIcon());
-                if (mCurrentDownloadTask.getNotificationPendingIntent() != null) {
-                    mNotificationBuilder.setContentIntent(mCurrentDownloadTask.getNotificationPendingIntent().buildPendingIntent(getApplicationContext()));
-                }
-                mNotificationBuilder.setContentText(getString(
-                        R.string.format_download_queue_progress,
-                        (mTotalDownloadsQueued - mDownloadQueue.size() + 1),
-                        mTotalDownloadsQueued));
-                mNotificationBuilder.setProgress(100, 0, false);
-                mNotifyManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
-
-                getTaskDownloadSize(mCurrentDownloadTask);
-                mCurrentDownloadTask.setStatus(DownloadTask.DOWNLOADING);
-                List<DownloadItem> downloadItems = mCurrentDownloadTask.getDownloadItems();
-
-                for (int i = 0; i < downloadItems.size(); i++) {
-                    mLastNotificationTime = System.currentTimeMillis();
-                    if (mCurrentDownloadTask == null || !isRequestedNetworkConnectionAvailable()) {
-                        break;
-                    }
+                downloadTask(mCurrentDownloadTask);
+                mCurrentDownloadTask = null;
+            }
 
-                    mCurrentDownloadItem = downloadItems.get(i);
-                    //This is a blocking call
-                    mDownloadStack.downloadFile(mCurrentDownloadItem.getFile(), mCurrentDownloadItem.getUrl(), this);
-                }
+            mIsRunning = false;
+            mCurrentDownloadTask = null;
+            onDownloadWorkerFinished(this);
+        }
 
-                if (isRequestedNetworkConnectionAvailable() || (mCurrentDownloadTask.getStatus() == DownloadTask.DOWNLOADING)) {
-                    mDownloadQueue.poll();
-                    mCurrentDownloadTask.setStatus(DownloadTask.FINISHED);
-                    broadcastTaskComplete(mCurrentDownloadTask);
+        private void downloadTask(DownloadTask downloadTask) {
+            updateNotification(true);
+
+            //Item sizes are learned from each download response, the remaining sizes are probed in the
+            //background so the task total firms up while the first items are already downloading
+            List<Future<?>> sizeProbes = probeTaskDownloadSize(downloadTask);
+            downloadTask.setStatus(DownloadTask.DOWNLOADING);
+            mDownloadQueue.updatePart(downloadTask, DownloadTask.PART_TASK);
+
+            //Items are handed out by the scheduler to this thread and any extra item threads the task
+            //allows, round robin across hosts with free connections
+            List<DownloadItem> downloadItems = downloadTask.getDownloadItems();
+            int pendingItemCount = 0;
+            for (int i = 0; i < downloadItems.size(); i++) {
+                //Items already downloaded before the service was paused or killed are skipped
+                if (downloadItems.get(i).getStatus() != DownloadItem.STATUS_COMPLETE) {
+                    mHostConnectionScheduler.submit(downloadTask, downloadItems.get(i));
+                    pendingItemCount++;
                 }
             }
 
-            mNotifyManager.cancel(NOTIFICATION_ID);
-            mServiceHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    checkIfWorkComplete();
+            int itemConcurrency = Math.min(downloadTask.getMaxConcurrentItems(), pendingItemCount);
+            List<ItemDownloader> itemDownloaders = new ArrayList<>();
+            for (int i = 1; i < itemConcurrency; i++) {
+                ItemDownloader itemDownloader = new ItemDownloader(downloadTask, createDownloadStack());
+                itemDownloaders.add(itemDownloader);
+                itemDownloader.start();
+            }
+
+            boolean isInterrupted = !downloadItems(downloadTask, mDownloadStack);
+            for (int i = 0; i < itemDownloaders.size(); i++) {
+                ItemDownloader itemDownloader = itemDownloaders.get(i);
+                try {
+                    itemDownloader.join();
+                } catch (InterruptedException e) {
+                    Timber.w("downloadTask: Interrupted while waiting for item downloads");
+                    stopWork();
+                    Thread.currentThread().interrupt();
                 }
-            });
+                isInterrupted |= !itemDownloader.isFinished();
+            }
+            mHostConnectionScheduler.cancel(downloadTask);
+            for (int i = 0; i < sizeProbes.size(); i++) {
+                sizeProbes.get(i).cancel(true);
+            }
 
+            if (mIsCurrentDownloadCancelled) {
+                Timber.d( "downloadTask: Cancelling current download task");
+                mDownloadQueue.remove(downloadTask);
+                deleteCheckpoints(downloadTask);
+                broadcastTaskCancelled(downloadTask);
+            } else if (!isInterrupted && mIsRunning &&
+                    (isRequestedNetworkConnectionAvailable() || downloadTask.getStatus() == DownloadTask.DOWNLOADING)) {
+                mDownloadQueue.remove(downloadTask);
+                deleteCheckpoints(downloadTask);
+                downloadTask.setStatus(DownloadTask.FINISHED);
+                broadcastTaskComplete(downloadTask);
+            }
         }
 
-        @Override
-        public void onFileProgress(File file, String url, long bytesDownloaded, long totalBytes) {
-            mCurrentDownloadItem.setStatus(DownloadItem.STATUS_INCOMPLETE);
-            mCurrentDownloadItem.setBytesDownloaded(bytesDownloaded);
+        /**
+         * Downloads items of a task until none are left or the task is stopped. This may run on several
+         * threads at once for the same task, each with its own download stack.
+         * @return True if every remaining item was attempted, false if the download was stopped
+         */
+        private boolean downloadItems(DownloadTask downloadTask, DownloadHttpStack downloadStack) {
+            mActiveDownloadStacks.add(downloadStack);
+            try {
+                while (shouldContinueTask()) {
+                    DownloadItem downloadItem = mHostConnectionScheduler.take(downloadTask);
+                    if (downloadItem == null) {
+                        //Either every item has been handed out, or the task was stopped while waiting
+                        return shouldContinueTask();
+                    }
 
-            if (mIsCurrentDownloadCancelled) {
-                Timber.d( "onFileProgress: Cancelling current download task");
-                mDownloadStack.stopDownload();
-                broadcastTaskCancelled(mCurrentDownloadTask);
-            } else if (!isRunning()) {
-                mDownloadStack.stopDownload();
-                Timber.d( "onFileProgress: Stopping download ");
-            } else if (System.currentTimeMillis() - mLastNotificationTime >= 16) { //Don't overload the System thread with notification requests
-                double progressPercent =
-                        (double) mCurrentDownloadTask.getBytesDownloaded() / (double) mCurrentDownloadTask.getDownloadSize();
-                mNotificationBuilder.setContentText(getString(
-                        R.string.format_download_queue_progress,
-                        (mTotalDownloadsQueued - mDownloadQueue.size() + 1),
-                        mTotalDownloadsQueued));
-                mNotificationBuilder.setProgress(100, (int) Math.round(progressPercent * 100), false);
-                mNotifyManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
-                broadcastTaskProgress(
-                        mCurrentDownloadTask,
-                        mCurrentDownloadTask.getBytesDownloaded(),
-                        mCurrentDownloadTask.getDownloadSize());
-                mLastNotificationTime = System.currentTimeMillis();
+                    ItemProgressListener listener = new ItemProgressListener(downloadTask, downloadItem, downloadStack);
+                    try {
+                        //This is a blocking call
+                        if (downloadStack instanceof ItemDownloadHttpStack) {
+                            ((ItemDownloadHttpStack) downloadStack).downloadFile(downloadItem, listener);
+                        } else {
+                            downloadItem.setFile(downloadStack.downloadFile(downloadItem.getFile(), downloadItem.getUrl(), listener));
+                        }
+                    } finally {
+                        mHostConnectionScheduler.release(downloadItem);
+                        listener.persistProgress();
+                    }
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Timber.w("downloadItems: Interrupted while waiting for a connection");
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mActiveDownloadStacks.remove(downloadStack);
             }
         }
 
-        @Override
-        public void onFileComplete(String url, File tempFile) {
-            mCurrentDownloadItem.setStatus(DownloadItem.STATUS_COMPLETE);
-            broadcastTaskItemComplete(mCurrentDownloadTask, mCurrentDownloadItem);
-        }
+        /**
+         * Broadcasts the progress of the current task if it has changed since the last sample, along
+         * with its download rate smoothed over recent samples
+         */
+        void sampleProgress() {
+            DownloadTask downloadTask = mCurrentDownloadTask;
+            if (downloadTask == null || mIsCurrentDownloadCancelled || !mIsRunning) {
+                return;
+            }
 
-        @Override
-        public void onFileError(String url) {
-            mCurrentDownloadTask.setStatus(DownloadTask.INCOMPLETE);
-            mCurrentDownloadItem.setStatus(DownloadItem.STATUS_ERROR);
-            broadcastTaskError(mCurrentDownloadTask);
+            long bytesDownloaded = downloadTask.getBytesDownloaded();
+            long downloadSize = downloadTask.getDownloadSize();
+            if (downloadTask == mSampledDownloadTask && bytesDownloaded == mSampledBytesDownloaded &&
+                    downloadSize == mSampledDownloadSize) {
+                return;
+            }
+
+            long currentTime = System.currentTimeMillis();
+            if (downloadTask != mSampledDownloadTask) {
+                mBytesPerSecond = 0;
+            } else if (currentTime > mSampledTime) {
+                double sampleRate = (bytesDownloaded - mSampledBytesDownloaded) * 1000d / (currentTime - mSampledTime);
+                mBytesPerSecond = mBytesPerSecond == 0 ? sampleRate :
+                        RATE_SMOOTHING * mBytesPerSecond + (1 - RATE_SMOOTHING) * sampleRate;
+            }
+
+            mSampledDownloadTask = downloadTask;
+            mSampledBytesDownloaded = bytesDownloaded;
+            mSampledDownloadSize = downloadSize;
+            mSampledTime = currentTime;
+            broadcastTaskProgress(downloadTask, bytesDownloaded, downloadSize, Math.max(0, (long) mBytesPerSecond));
         }
 
-        private void getTaskDownloadSize(DownloadTask downloadTask) {
+        /**
+         * Requests the sizes of a task's items on the size probe threads. A probe is skipped if the item
+         * has already reported its size, or if its host has no free connection, in which case the size
+         * is learned once the item itself is downloaded.
+         * @return The pending probes, which should be cancelled once the task stops
+         */
+        private List<Future<?>> probeTaskDownloadSize(final DownloadTask downloadTask) {
+            List<Future<?>> sizeProbes = new ArrayList<>();
             List<DownloadItem> downloadItemList = downloadTask.getDownloadItems();
+            if (downloadItemList.size() < 2) {
+                //A single item reports its size as soon as its own download starts
+                return sizeProbes;
+            }
+
             for (int i = 0; i < downloadItemList.size(); i++) {
-                DownloadItem downloadItem = downloadItemList.get(i);
-                long size = mDownloadStack.requestFileSize(downloadItem.getUrl());
-                downloadItem.setDownloadSize(size);
+                final DownloadItem downloadItem = downloadItemList.get(i);
+                if (downloadItem.isDownloadSizeKnown() || downloadItem.getStatus() == DownloadItem.STATUS_COMPLETE) {
+                    continue;
+                }
+
+                sizeProbes.add(mSizeProbeExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!shouldContinueTask() || downloadItem.isDownloadSizeKnown() ||
+                                !mHostConnectionScheduler.tryAcquire(downloadItem.getUrl())) {
+                            return;
+                        }
+
+                        try {
+                            long size = mSizeProbeStack.requestFileSize(downloadItem.getUrl());
+                            if (size > 0 && !downloadItem.isDownloadSizeKnown()) {
+                                downloadItem.setDownloadSize(size);
+                            }
+                        } finally {
+                            mHostConnectionScheduler.release(downloadItem.getUrl());
+                        }
+                    }
+                }));
             }
+
+            return sizeProbes;
         }
 
+        /**
+         * An extra thread used to download items of a task in parallel with its worker
+         */
+        private class ItemDownloader extends Thread {
+            private final DownloadTask mDownloadTask;
+            private final DownloadHttpStack mItemDownloadStack;
+            private volatile boolean mIsFinished = false;
+
+            ItemDownloader(DownloadTask downloadTask, DownloadHttpStack downloadStack) {
+                super("ItemDownloader[" + downloadTask.getTag() + "]");
+                mDownloadTask = downloadTask;
+                mItemDownloadStack = downloadStack;
+            }
+
+            /**
+             * @return True if this thread ran out of items rather than being stopped
+             */
+            boolean isFinished() {
+                return mIsFinished;
+            }
+
+            @Override
+            public void run() {
+                mIsFinished = downloadItems(mDownloadTask, mItemDownloadStack);
+            }
+        }
+
+        /**
+         * Receives the progress of a single download item, so items downloading in parallel each keep
+         * their own state. Status changes of the item are written to the queue as they happen, and its
+         * progress at most every {@link #PROGRESS_PERSIST_INTERVAL}.
+         */
+        private class ItemProgressListener implements OnInsufficientStorageListener {
+            private final DownloadTask mDownloadTask;
+            private final DownloadItem mDownloadItem;
+            private final DownloadHttpStack mItemDownloadStack;
+            private final int mItemPosition;
+            private long mPersistedTime;
+            private boolean mIsProgressPersisted = true;
+
+            ItemProgressListener(DownloadTask downloadTask, DownloadItem downloadItem, DownloadHttpStack downloadStack) {
+                mDownloadTask = downloadTask;
+                mDownloadItem = downloadItem;
+                mItemDownloadStack = downloadStack;
+                mItemPosition = indexOfItem(downloadTask, downloadItem);
+            }
+
+            @Override
+            public void onFileProgress(File file, String url, long bytesDownloaded, long totalBytes) {
+                boolean isStatusChanged = mDownloadItem.getStatus() != DownloadItem.STATUS_INCOMPLETE;
+                mDownloadItem.setStatus(DownloadItem.STATUS_INCOMPLETE);
+                mDownloadItem.setBytesDownloaded(bytesDownloaded);
+                if (totalBytes > 0) {
+                    mDownloadItem.setDownloadSize(totalBytes);
+                }
+
+                mIsProgressPersisted = false;
+                long currentTime = System.currentTimeMillis();
+                if (isStatusChanged || currentTime - mPersistedTime >= PROGRESS_PERSIST_INTERVAL) {
+                    persistProgress();
+                }
+
+                //Progress is reported by the sampler, so nothing here waits on the clock or the system thread
+                if (mIsCurrentDownloadCancelled || !mIsRunning) {
+                    mItemDownloadStack.stopDownload();
+                    Timber.d( "onFileProgress: Stopping download ");
+                }
+            }
+
+            @Override
+            public void onFileComplete(String url, File tempFile) {
+                mDownloadItem.setStatus(DownloadItem.STATUS_COMPLETE);
+                persistItem();
+                broadcastTaskItemComplete(mDownloadTask, mDownloadItem);
+            }
+
+            @Override
+            public void onFileError(String url) {
+                onItemError(OnDownloadProgressListener.ERROR_DOWNLOAD_FAILED);
+            }
+
+            @Override
+            public void onInsufficientStorage(String url) {
+                onItemError(OnDownloadProgressListener.ERROR_INSUFFICIENT_STORAGE);
+            }
+
+            private void onItemError(int errorCode) {
+                mDownloadTask.setStatus(DownloadTask.INCOMPLETE);
+                mDownloadItem.setStatus(DownloadItem.STATUS_ERROR);
+                mDownloadItem.setErrorCode(errorCode);
+                mDownloadQueue.updatePart(mDownloadTask, DownloadTask.PART_TASK);
+                persistItem();
+                broadcastTaskError(mDownloadTask, errorCode);
+            }
+
+            /**
+             * Writes the progress of the item to the queue if it has changed since it was last written
+             */
+            void persistProgress() {
+                if (!mIsProgressPersisted) {
+                    persistItem();
+                }
+            }
+
+            private void persistItem() {
+                mIsProgressPersisted = true;
+                mPersistedTime = System.currentTimeMillis();
+                //The task is no longer queued once it's been removed, so there's nothing left to update
+                mDownloadQueue.updatePart(mDownloadTask, mItemPosition);
+            }
+        }
+
+        /**
+         * @return The position of the item in the task's list, matched by identity as parallel items
+         * may share a url, or {@link DownloadTask#PART_TASK} if the item isn't in the list
+         */
+        private int indexOfItem(DownloadTask downloadTask, DownloadItem downloadItem) {
+            List<DownloadItem> downloadItems = downloadTask.getDownloadItems();
+            for (int i = 0; i < downloadItems.size(); i++) {
+                if (downloadItems.get(i) == downloadItem) {
+                    return i;
+                }
+            }
+            return DownloadTask.PART_TASK;
+        }
     }
 }
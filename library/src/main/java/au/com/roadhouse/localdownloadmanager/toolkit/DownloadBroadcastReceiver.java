@@ -4,9 +4,15 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
 
+import java.util.List;
+
+import au.com.roadhouse.localdownloadmanager.DownloadEventDispatcher;
 import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadItemReference;
 import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTaskReference;
 import au.com.roadhouse.localdownloadmanager.service.DownloadService;
 
 /**
@@ -14,9 +20,55 @@ import au.com.roadhouse.localdownloadmanager.service.DownloadService;
  * functionality within an activity/fragment. Calls to this broadcast receiver are sent via
  * {@link android.support.v4.content.LocalBroadcastManager} and therefore will not be triggered by a manifest entry.
  * If you require this functionality please extend the {@link }DownloadStatusService}
+ *
+ * Broadcasts are only sent once enabled with
+ * {@link au.com.roadhouse.localdownloadmanager.LocalDownloadManager#setBroadcastsEnabled(boolean)}.
+ * Once a receiver is registered with {@link #register(Context)}, only the events receivers have
+ * registered for this way are broadcast, so register every receiver with it rather than with the
+ * LocalBroadcastManager directly.
+ * In process, {@link au.com.roadhouse.localdownloadmanager.DownloadEventListener} receives the same
+ * events without serializing the download task.
  */
 public abstract class DownloadBroadcastReceiver extends BroadcastReceiver {
 
+    private int mSubscribedEvents;
+
+    /**
+     * Registers the receiver with the LocalBroadcastManager for every download broadcast
+     * @param context A valid context
+     */
+    public void register(Context context) {
+        register(context, createBasicIntentFilter());
+    }
+
+    /**
+     * Registers the receiver with the LocalBroadcastManager, and subscribes it to the download
+     * broadcasts of the filter's actions
+     * @param context A valid context
+     * @param intentFilter The filter to register with
+     */
+    public synchronized void register(Context context, IntentFilter intentFilter) {
+        unregister(context);
+        LocalBroadcastManager.getInstance(context).registerReceiver(this, intentFilter);
+
+        int events = 0;
+        for (int i = 0; i < intentFilter.countActions(); i++) {
+            events |= DownloadService.getEventType(intentFilter.getAction(i));
+        }
+        DownloadEventDispatcher.getSharedDispatcher().addBroadcastReceiver(events);
+        mSubscribedEvents = events;
+    }
+
+    /**
+     * Unregisters a receiver registered with {@link #register(Context)}
+     * @param context A valid context
+     */
+    public synchronized void unregister(Context context) {
+        LocalBroadcastManager.getInstance(context).unregisterReceiver(this);
+        DownloadEventDispatcher.getSharedDispatcher().removeBroadcastReceiver(mSubscribedEvents);
+        mSubscribedEvents = 0;
+    }
+
     public IntentFilter createBasicIntentFilter() {
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addCategory(Intent.CATEGORY_DEFAULT);
@@ -27,6 +79,8 @@ public abstract class DownloadBroadcastReceiver extends BroadcastReceiver {
         intentFilter.addAction(DownloadService.ACTION_DOWNLOAD_ERROR);
         intentFilter.addAction(DownloadService.ACTION_DOWNLOAD_ITEM_COMPLETE);
         intentFilter.addAction(DownloadService.ACTION_DOWNLOAD_COMPLETE);
+        intentFilter.addAction(DownloadService.ACTION_DOWNLOADS_QUEUED);
+        intentFilter.addAction(DownloadService.ACTION_DOWNLOAD_ITEMS_COMPLETE);
 
         return intentFilter;
     }
@@ -34,22 +88,26 @@ public abstract class DownloadBroadcastReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (DownloadService.ACTION_DOWNLOAD_QUEUED.equals(intent.getAction())) {
-            onDownloadTaskQueuedReceived((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskQueuedReceived(DownloadService.getDownloadTask(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_PROGRESS.equals(intent.getAction())) {
             onDownloadTaskProgressReceived(
-                    (DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK),
+                    DownloadService.getDownloadTask(intent),
                     intent.getLongExtra(DownloadService.EXTRA_BYTES_DOWNLOADED, 0),
                     intent.getLongExtra(DownloadService.EXTRA_TOTAL_SIZE, 0));
         } else if (DownloadService.ACTION_DOWNLOAD_CANCELLED.equals(intent.getAction())) {
-            onDownloadTaskCancelledReceived((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskCancelledReceived(DownloadService.getDownloadTask(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_ERROR.equals(intent.getAction())) {
-            onDownloadTaskErrorReceived((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskErrorReceived(DownloadService.getDownloadTask(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_ITEM_COMPLETE.equals(intent.getAction())) {
             onDownloadItemCompleteReceived(
-                    (DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK),
-                    (DownloadItem) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_ITEM));
+                    DownloadService.getDownloadTask(intent),
+                    DownloadService.getDownloadItem(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_COMPLETE.equals(intent.getAction())) {
-            onDownloadTaskCompleteReceived((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskCompleteReceived(DownloadService.getDownloadTask(intent));
+        } else if (DownloadService.ACTION_DOWNLOADS_QUEUED.equals(intent.getAction())) {
+            onDownloadTasksQueuedReceived(DownloadService.getDownloadTaskReferences(intent));
+        } else if (DownloadService.ACTION_DOWNLOAD_ITEMS_COMPLETE.equals(intent.getAction())) {
+            onDownloadItemsCompleteReceived(DownloadService.getDownloadItemReferences(intent));
         }
 
     }
@@ -98,4 +156,20 @@ public abstract class DownloadBroadcastReceiver extends BroadcastReceiver {
      * @param downloadTask The download task that completed
      */
     protected abstract void onDownloadTaskCompleteReceived(DownloadTask downloadTask);
+
+    /**
+     * Triggered instead of {@link #onDownloadTaskQueuedReceived(DownloadTask)} when event batching is
+     * enabled with LocalDownloadManager#setEventBatchWindow
+     * @param downloadTasks The download tasks queued during the batch window, in queue order
+     */
+    protected void onDownloadTasksQueuedReceived(List<DownloadTaskReference> downloadTasks) {
+    }
+
+    /**
+     * Triggered instead of {@link #onDownloadItemCompleteReceived(DownloadTask, DownloadItem)} when event
+     * batching is enabled with LocalDownloadManager#setEventBatchWindow
+     * @param downloadItems The download items completed during the batch window, in completion order
+     */
+    protected void onDownloadItemsCompleteReceived(List<DownloadItemReference> downloadItems) {
+    }
 }
@@ -4,13 +4,18 @@ import android.app.IntentService;
 import android.content.Intent;
 import android.support.v4.content.WakefulBroadcastReceiver;
 
+import java.util.List;
+
 import au.com.roadhouse.localdownloadmanager.model.DownloadItem;
+import au.com.roadhouse.localdownloadmanager.model.DownloadItemReference;
 import au.com.roadhouse.localdownloadmanager.model.DownloadTask;
+import au.com.roadhouse.localdownloadmanager.model.DownloadTaskReference;
 import au.com.roadhouse.localdownloadmanager.service.DownloadService;
 
 /**
  * A base service class which provides an easy way to implement file status logic outside of an active
- * activity/fragment.
+ * activity/fragment. Status updates are only sent once broadcasts are enabled with
+ * {@link au.com.roadhouse.localdownloadmanager.LocalDownloadManager#setBroadcastsEnabled(boolean)}.
  */
 public abstract class DownloadStatusService extends IntentService {
 
@@ -24,22 +29,26 @@ public abstract class DownloadStatusService extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         if(DownloadService.ACTION_DOWNLOAD_QUEUED.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
-            onDownloadTaskQueued((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskQueued(DownloadService.getDownloadTask(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_PROGRESS.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
             onDownloadTaskProgress(
-                    (DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK),
+                    DownloadService.getDownloadTask(intent),
                     intent.getLongExtra(DownloadService.EXTRA_BYTES_DOWNLOADED, 0),
                     intent.getLongExtra(DownloadService.EXTRA_TOTAL_SIZE, 0));
         } else if (DownloadService.ACTION_DOWNLOAD_CANCELLED.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
-            onDownloadTaskCancelled((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskCancelled(DownloadService.getDownloadTask(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_ERROR.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
-            onDownloadTaskError((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskError(DownloadService.getDownloadTask(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_ITEM_COMPLETE.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
             onDownloadItemComplete(
-                    (DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK),
-                    (DownloadItem) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_ITEM));
+                    DownloadService.getDownloadTask(intent),
+                    DownloadService.getDownloadItem(intent));
         } else if (DownloadService.ACTION_DOWNLOAD_COMPLETE.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
-            onDownloadTaskComplete((DownloadTask) intent.getSerializableExtra(DownloadService.EXTRA_DOWNLOAD_TASK));
+            onDownloadTaskComplete(DownloadService.getDownloadTask(intent));
+        } else if (DownloadService.ACTION_DOWNLOADS_QUEUED.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
+            onDownloadTasksQueued(DownloadService.getDownloadTaskReferences(intent));
+        } else if (DownloadService.ACTION_DOWNLOAD_ITEMS_COMPLETE.equals(intent.getStringExtra(EXTRA_DOWNLOAD_STATUS))){
+            onDownloadItemsComplete(DownloadService.getDownloadItemReferences(intent));
         }
 
         WakefulBroadcastReceiver.completeWakefulIntent(intent);
@@ -91,4 +100,20 @@ public abstract class DownloadStatusService extends IntentService {
      */
     protected abstract void onDownloadTaskComplete(DownloadTask downloadTask);
 
+    /**
+     * Triggered instead of {@link #onDownloadTaskQueued(DownloadTask)} when event batching is enabled
+     * with LocalDownloadManager#setEventBatchWindow
+     * @param downloadTasks The download tasks queued during the batch window, in queue order
+     */
+    protected void onDownloadTasksQueued(List<DownloadTaskReference> downloadTasks) {
+    }
+
+    /**
+     * Triggered instead of {@link #onDownloadItemComplete(DownloadTask, DownloadItem)} when event
+     * batching is enabled with LocalDownloadManager#setEventBatchWindow
+     * @param downloadItems The download items completed during the batch window, in completion order
+     */
+    protected void onDownloadItemsComplete(List<DownloadItemReference> downloadItems) {
+    }
+
 }